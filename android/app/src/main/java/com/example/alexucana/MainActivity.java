@@ -13,6 +13,8 @@ import android.speech.RecognizerIntent;
 import android.view.View;
 import android.widget.ImageButton;
 import androidx.fragment.app.Fragment;
+import com.example.alexucana.controllers.DataManager;
+import com.example.alexucana.controllers.HomeSwitcher;
 import com.example.alexucana.fragments.alex.AlexFragment;
 import com.example.alexucana.fragments.devices.DevicesFragment;
 import com.example.alexucana.fragments.rooms.RoomsFragment;
@@ -55,6 +57,15 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // Let DataManager restore the last persisted home state before any fragment asks for it
+        DataManager.init(this);
+
+        // Stop streaming the home while the app is in the background, unless the assistant needs it
+        HomeSwitcher.getInstance().suspendWhileStopped(this);
+
+        // Screens hold the DataManager of the home they were created for, so rebuild them on a switch
+        DataManager.bindTo(this, HomeSwitcher.getInstance().observeSwitches(home -> recreate()));
+
         // Request necessary permissions
         PermissionUtils.requestAllPermissions(this);
 
@@ -0,0 +1,169 @@
+/**
+ * ChangeRegistry: Path-filtered registry of data-changed listeners.
+ *
+ * Listeners register under a path pattern such as "roomId", "roomId/devices_map/deviceId" or
+ * "*" (every room). Patterns are stored in a trie of path segments, so dispatching a change only
+ * visits the nodes on the changed path and the subtree below it; listeners on unrelated branches
+ * are never looked at.
+ *
+ * A change at path C reaches a listener registered at pattern P when:
+ *   - P matches C exactly,
+ *   - P is below C (the change replaced the listener's subtree), or
+ *   - P is above C and the listener asked for descendants.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * The ChangeRegistry class dispatches path changes to the listeners whose pattern they touch.
+ * Not thread-safe; DataManager uses it on the main thread only.
+ */
+public class ChangeRegistry {
+
+    // Pattern segment matching any single path segment
+    public static final String WILDCARD = "*";
+
+    /**
+     * One registered listener.
+     */
+    private static final class Entry {
+        final DataManager.OnDataChanged listener;
+        final boolean includeDescendants;
+
+        Entry(DataManager.OnDataChanged listener, boolean includeDescendants) {
+            this.listener = listener;
+            this.includeDescendants = includeDescendants;
+        }
+    }
+
+    /**
+     * One trie node per pattern segment.
+     */
+    private static final class Node {
+        final Node parent;
+        final String segment;
+        final HashMap<String, Node> children = new HashMap<>();
+        final ArrayList<Entry> entries = new ArrayList<>();
+
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+    }
+
+    private final Node root = new Node(null, "");
+
+    /**
+     * Register a listener under a path pattern.
+     *
+     * @param pattern            The pattern, '/'-separated; "" is the whole home and "*" matches any segment.
+     * @param includeDescendants Whether changes below the pattern should reach the listener too.
+     * @param listener           The listener.
+     * @return The subscription that unregisters the listener.
+     */
+    public DataManager.Subscription register(String pattern, boolean includeDescendants, DataManager.OnDataChanged listener) {
+        Node node = root;
+        for (String segment : split(pattern)) {
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node(node, segment);
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        Entry entry = new Entry(listener, includeDescendants);
+        node.entries.add(entry);
+        final Node target = node;
+        return () -> unregister(target, entry);
+    }
+
+    /**
+     * Collect the listeners a change touches. Each listener appears once even if several
+     * changed paths reach it.
+     *
+     * @param path      The changed path, '/'-separated; "" is the whole home.
+     * @param listeners The set collecting the listeners to notify.
+     */
+    public void collect(String path, Set<DataManager.OnDataChanged> listeners) {
+        collect(root, split(path), 0, listeners);
+    }
+
+    /**
+     * Walk the pattern nodes matching the changed path.
+     *
+     * @param node      The node matched so far.
+     * @param segments  The segments of the changed path.
+     * @param depth     The number of segments matched by node.
+     * @param listeners The set collecting the listeners to notify.
+     */
+    private void collect(Node node, String[] segments, int depth, Set<DataManager.OnDataChanged> listeners) {
+        if (depth == segments.length) {
+            // Exact match, and every pattern below it: the change replaced their data
+            collectSubtree(node, listeners);
+            return;
+        }
+        // The change is below this pattern
+        for (Entry entry : node.entries) {
+            if (entry.includeDescendants) listeners.add(entry.listener);
+        }
+        Node exact = node.children.get(segments[depth]);
+        if (exact != null) collect(exact, segments, depth + 1, listeners);
+        Node wildcard = node.children.get(WILDCARD);
+        if (wildcard != null) collect(wildcard, segments, depth + 1, listeners);
+    }
+
+    /**
+     * Collect every listener at or below a node.
+     *
+     * @param node      The node.
+     * @param listeners The set collecting the listeners to notify.
+     */
+    private void collectSubtree(Node node, Set<DataManager.OnDataChanged> listeners) {
+        for (Entry entry : node.entries) {
+            listeners.add(entry.listener);
+        }
+        for (Node child : node.children.values()) {
+            collectSubtree(child, listeners);
+        }
+    }
+
+    /**
+     * Remove a listener and prune nodes left without listeners or children.
+     *
+     * @param node  The node holding the entry.
+     * @param entry The entry to remove.
+     */
+    private void unregister(Node node, Entry entry) {
+        node.entries.remove(entry);
+        while (node.parent != null && node.entries.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.segment);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Create an identity set for collecting listeners; listeners are lambdas without useful equals().
+     *
+     * @return The empty set.
+     */
+    public static Set<DataManager.OnDataChanged> newListenerSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Split a '/'-separated path into segments.
+     *
+     * @param path The path; "" is the root.
+     * @return The segments.
+     */
+    private static String[] split(String path) {
+        if (path == null || path.isEmpty()) return new String[0];
+        return path.split("/");
+    }
+}
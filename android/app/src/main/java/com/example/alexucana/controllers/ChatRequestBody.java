@@ -0,0 +1,202 @@
+/**
+ * ChatRequestBody: Streams a chat completion request straight to the connection.
+ *
+ * The request used to be built as a JSONObject, serialized with toString() and then encoded again
+ * by RequestBody.create(), so every request held the whole body several times over. This body
+ * writes its JSON to the okio sink as it goes:
+ *   - the parts that never change, i.e. the model and the system message before the messages, and
+ *     functions.json and the parameters after them, are bytes encoded once per conversation;
+ *   - each message is escaped on the fly;
+ *   - the home state of a message is written row by row from the bytes every Device keeps (see
+ *     Device.promptRow()), so no string of the whole state is built.
+ * Apart from okio's pooled segments and one array of alias references per state message, a
+ * request allocates nothing that grows with the home.
+ *
+ * With gzip on, the body is compressed on the way out and sent with Content-Encoding: gzip, for
+ * endpoints (e.g. a proxy) that accept compressed requests.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import androidx.annotation.NonNull;
+
+import com.example.alexucana.models.HomeSnapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * The ChatRequestBody class writes one request of a conversation. It holds a copy of the message
+ * list, so it can be written again (e.g. on a retry) while the conversation goes on.
+ */
+public class ChatRequestBody extends RequestBody {
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    /**
+     * One message of the conversation. Immutable.
+     */
+    public static final class Message {
+        public final String role;
+        public final String content;
+
+        // Home state whose rows follow the content, or null
+        public final HomeSnapshot state;
+
+        public Message(String role, String content, HomeSnapshot state) {
+            this.role = role;
+            this.content = content;
+            this.state = state;
+        }
+    }
+
+    private final byte[] head;
+    private final List<Message> messages;
+    private final byte[] tail;
+    private final PromptEncoding encoding;
+    private final boolean gzip;
+
+    /**
+     * Constructor for the ChatRequestBody class.
+     *
+     * @param head     The encoded start of the request, up to and including the system message.
+     * @param messages The messages after the system message; copied.
+     * @param tail     The encoded end of the request, from the end of the messages array.
+     * @param encoding The encoding that renders the home state of messages.
+     * @param gzip     Whether to compress the body.
+     */
+    public ChatRequestBody(byte[] head, List<Message> messages, byte[] tail, PromptEncoding encoding, boolean gzip) {
+        this.head = head;
+        this.messages = new ArrayList<>(messages);
+        this.tail = tail;
+        this.encoding = encoding;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Check whether the body is compressed, so the request can say so in its headers.
+     *
+     * @return True if the body is gzipped.
+     */
+    public boolean isGzipped() {
+        return gzip;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public void writeTo(@NonNull BufferedSink sink) throws IOException {
+        if (!gzip) {
+            write(sink);
+            return;
+        }
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+        write(gzipSink);
+        // Writes the gzip trailer; closing the request's sink is left to OkHttp
+        gzipSink.close();
+    }
+
+    private void write(BufferedSink sink) throws IOException {
+        sink.write(head);
+        // The head ends with the system message, or opens an empty array without one
+        boolean first = head[head.length - 1] == '[';
+        for (Message message : messages) {
+            if (!first) sink.writeByte(',');
+            first = false;
+            sink.writeUtf8("{\"role\":");
+            writeString(sink, message.role);
+            sink.writeUtf8(",\"content\":\"");
+            writeEscaped(sink, message.content);
+            if (message.state != null) encoding.writeRows(message.state, sink);
+            sink.writeUtf8("\"}");
+        }
+        sink.write(tail);
+    }
+
+    /**
+     * Write a JSON string, quotes included.
+     *
+     * @param sink The sink.
+     * @param s    The string.
+     * @throws IOException If the sink fails.
+     */
+    static void writeString(BufferedSink sink, String s) throws IOException {
+        sink.writeByte('"');
+        writeEscaped(sink, s);
+        sink.writeByte('"');
+    }
+
+    /**
+     * Write the inside of a JSON string: runs of plain characters in one call, and escapes between them.
+     *
+     * @param sink The sink.
+     * @param s    The string.
+     * @throws IOException If the sink fails.
+     */
+    static void writeEscaped(BufferedSink sink, String s) throws IOException {
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+            if (i > start) sink.writeUtf8(s, start, i);
+            writeEscape(sink, c);
+            start = i + 1;
+        }
+        if (start < s.length()) sink.writeUtf8(s, start, s.length());
+    }
+
+    /**
+     * Write UTF-8 bytes as the inside of a JSON string. Bytes of multi-byte characters are never
+     * quotes, backslashes or control characters, so they are copied as they are.
+     *
+     * @param sink  The sink.
+     * @param bytes The UTF-8 bytes.
+     * @throws IOException If the sink fails.
+     */
+    static void writeEscaped(BufferedSink sink, byte[] bytes) throws IOException {
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xFF;
+            if (b >= 0x20 && b != '"' && b != '\\') continue;
+            if (i > start) sink.write(bytes, start, i - start);
+            writeEscape(sink, (char) b);
+            start = i + 1;
+        }
+        if (start < bytes.length) sink.write(bytes, start, bytes.length - start);
+    }
+
+    private static void writeEscape(BufferedSink sink, char c) throws IOException {
+        switch (c) {
+            case '"':
+                sink.writeUtf8("\\\"");
+                break;
+            case '\\':
+                sink.writeUtf8("\\\\");
+                break;
+            case '\n':
+                sink.writeUtf8("\\n");
+                break;
+            case '\r':
+                sink.writeUtf8("\\r");
+                break;
+            case '\t':
+                sink.writeUtf8("\\t");
+                break;
+            default:
+                sink.writeUtf8("\\u00").writeByte(HEX[c >> 4]).writeByte(HEX[c & 0xF]);
+                break;
+        }
+    }
+}
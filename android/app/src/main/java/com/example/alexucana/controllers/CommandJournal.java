@@ -0,0 +1,371 @@
+/**
+ * CommandJournal: Durable, append-only log of the writes DataManager has not delivered yet.
+ *
+ * Every controllable write and every removal is appended before it is sent, and marked done once
+ * the server accepts it. While the phone is offline the journal keeps the latest value per path,
+ * so a burst of commands collapses to what the home should end up as, and the whole journal is
+ * replayed as one multi-path update on reconnect, including after the app was killed. Appends go
+ * to the page cache at once; DataManager fsyncs them in batches.
+ *
+ * Layout (big-endian), one record after another:
+ *   int payloadLength, int crc32(payload), payload
+ * where payload is byte kind, long seq, str path, and for a put: byte type, value.
+ * str is DataOutput.writeUTF. A torn or corrupt tail is cut off when the journal is opened.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The CommandJournal class keeps pending commands collapsed per path and backs them with a file.
+ * Runs on DataManager's sync thread.
+ */
+final class CommandJournal {
+
+    public static final String TAG = CommandJournal.class.getSimpleName();
+
+    // Record kinds
+    private static final byte KIND_PUT = 1;
+    private static final byte KIND_DONE = 2;
+
+    // Value types, as in SnapshotStore; anything else is stored as JSON
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_STRING = 4;
+    private static final byte TYPE_JSON = 5;
+
+    // Once nothing is pending, a file above this size is truncated
+    private static final long COMPACT_BYTES = 64 * 1024;
+
+    /**
+     * One pending write of a value, or removal of a path.
+     */
+    static final class Command {
+        final long seq;
+        final String path;
+        final Object value;
+
+        // The optimistic write behind this command, or null for removals and commands from an earlier run
+        final PendingWrites.Write write;
+
+        Command(long seq, String path, Object value, PendingWrites.Write write) {
+            this.seq = seq;
+            this.path = path;
+            this.value = value;
+            this.write = write;
+        }
+    }
+
+    private final File file;
+    private FileChannel channel;
+    private boolean dirty = false;
+    private long lastSeq = 0;
+
+    // Pending commands keyed by path, in arrival order
+    private final LinkedHashMap<String, Command> pending = new LinkedHashMap<>();
+
+    /**
+     * Constructor for the CommandJournal class. Reads back the commands still pending in the file.
+     *
+     * @param file The journal file, or null to keep the journal in memory only.
+     */
+    CommandJournal(File file) {
+        this.file = file;
+        if (file == null) return;
+        int records = load();
+        try {
+            // Rewrite the file with only what is still pending, so it does not grow across runs
+            if (records > pending.size()) rewrite();
+            channel = new FileOutputStream(file, true).getChannel();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + file + ", journaling in memory only: " + e.getMessage());
+        }
+        if (!pending.isEmpty()) Log.d(TAG, "Loaded " + pending.size() + " pending commands from disk");
+    }
+
+    /**
+     * Append a command. Pending commands at the same path or below it are superseded.
+     *
+     * @param path  The database path.
+     * @param value The value to write, or null to remove the path.
+     * @param write The optimistic write behind the command, or null.
+     * @return The command, or null if an ancestor is already queued for removal and the command is moot.
+     */
+    Command append(String path, Object value, PendingWrites.Write write) {
+        Command command = new Command(++lastSeq, path, value, write);
+        if (!apply(command)) return null;
+        writeRecord(KIND_PUT, command.seq, path, value);
+        return command;
+    }
+
+    /**
+     * Mark a command as delivered. A newer command at the same path stays pending.
+     *
+     * @param command The command the server accepted.
+     */
+    void done(Command command) {
+        if (pending.get(command.path) != command) return;
+        pending.remove(command.path);
+        writeRecord(KIND_DONE, command.seq, command.path, null);
+        if (pending.isEmpty()) compact();
+    }
+
+    /**
+     * Drop the pending command at a path, e.g. because it was cancelled before being sent.
+     *
+     * @param path The database path.
+     */
+    void discard(String path) {
+        Command command = pending.get(path);
+        if (command != null) done(command);
+    }
+
+    /**
+     * Get the pending commands.
+     *
+     * @return A copy of the commands, in arrival order.
+     */
+    List<Command> pending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    /**
+     * Force appended records to disk. Called in batches by DataManager.
+     */
+    void sync() {
+        if (!dirty || channel == null) return;
+        dirty = false;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Sync failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Force appended records to disk and release the file. Pending commands stay in the file
+     * for the next journal opened on it.
+     */
+    void close() {
+        sync();
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Close failed: " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    /**
+     * Fold a command into the pending set.
+     *
+     * @param command The command.
+     * @return False if an ancestor is queued for removal, so the command is dropped.
+     */
+    private boolean apply(Command command) {
+        Iterator<Map.Entry<String, Command>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Command> entry = it.next();
+            String queued = entry.getKey();
+            if (isBelow(command.path, queued) && entry.getValue().value == null) return false;
+            if (queued.equals(command.path) || isBelow(queued, command.path)) it.remove();
+        }
+        pending.put(command.path, command);
+        return true;
+    }
+
+    /**
+     * Check whether a path lies strictly below another.
+     *
+     * @param path     The path to check.
+     * @param ancestor The possible ancestor; "" is the home root.
+     * @return True if path is a descendant of ancestor.
+     */
+    private static boolean isBelow(String path, String ancestor) {
+        if (ancestor.isEmpty()) return !path.isEmpty();
+        return path.length() > ancestor.length() && path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+    }
+
+    private void writeRecord(byte kind, long seq, String path, Object value) {
+        if (channel == null) return;
+        try {
+            byte[] payload = encode(kind, seq, path, value);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            ByteBuffer buf = ByteBuffer.allocate(8 + payload.length);
+            buf.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            buf.flip();
+            while (buf.hasRemaining()) channel.write(buf);
+            dirty = true;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Append failed for " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static byte[] encode(byte kind, long seq, String path, Object value) throws IOException, JSONException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(kind);
+        out.writeLong(seq);
+        out.writeUTF(path);
+        if (kind == KIND_PUT) {
+            if (value == null) {
+                out.writeByte(TYPE_NULL);
+            } else if (value instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Long || value instanceof Integer) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble(((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                out.writeByte(TYPE_STRING);
+                out.writeUTF((String) value);
+            } else {
+                out.writeByte(TYPE_JSON);
+                out.writeUTF(new JSONObject().put("v", JsonTree.toJson(value)).toString());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read the file back into the pending set and cut off a torn tail.
+     *
+     * @return The number of valid records read.
+     */
+    private int load() {
+        if (!file.exists() || file.length() == 0) return 0;
+        int records = 0;
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException end) {
+                    break;
+                }
+                int crc = in.readInt();
+                if (length <= 0 || length > file.length()) break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 check = new CRC32();
+                check.update(payload, 0, length);
+                if ((int) check.getValue() != crc) break;
+                replay(new DataInputStream(new ByteArrayInputStream(payload)));
+                records++;
+                valid += 8 + length;
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Journal ends in a torn record after " + records + " records: " + e.getMessage());
+        }
+        if (valid < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot truncate " + file + ": " + e.getMessage());
+            }
+        }
+        return records;
+    }
+
+    private void replay(DataInputStream in) throws IOException, JSONException {
+        byte kind = in.readByte();
+        long seq = in.readLong();
+        String path = in.readUTF();
+        lastSeq = Math.max(lastSeq, seq);
+        if (kind == KIND_DONE) {
+            Command command = pending.get(path);
+            if (command != null && command.seq == seq) pending.remove(path);
+            return;
+        }
+        Object value;
+        switch (in.readByte()) {
+            case TYPE_BOOLEAN:
+                value = in.readBoolean();
+                break;
+            case TYPE_LONG:
+                value = in.readLong();
+                break;
+            case TYPE_DOUBLE:
+                value = in.readDouble();
+                break;
+            case TYPE_STRING:
+                value = in.readUTF();
+                break;
+            case TYPE_JSON:
+                value = JsonTree.fromJson(new JSONObject(in.readUTF()).opt("v"));
+                break;
+            default:
+                value = null;
+        }
+        apply(new Command(seq, path, value, null));
+    }
+
+    /**
+     * Replace the file with one put record per pending command.
+     */
+    private void rewrite() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            channel = out.getChannel();
+            for (Command command : pending.values()) {
+                writeRecord(KIND_PUT, command.seq, command.path, command.value);
+            }
+            channel.force(false);
+        } finally {
+            channel = null;
+            dirty = false;
+        }
+        if (!tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+    }
+
+    /**
+     * Truncate the file once every command was delivered.
+     */
+    private void compact() {
+        if (channel == null) return;
+        try {
+            if (channel.size() < COMPACT_BYTES) return;
+            channel.truncate(0);
+            dirty = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Compaction failed: " + e.getMessage());
+        }
+    }
+}
@@ -1,223 +1,1634 @@
 /**
- * DataManager: Singleton class for managing data in Firebase Realtime Database.
+ * DataManager: Manages the data of one home in Firebase Realtime Database.
  * This class provides methods for fetching, synchronizing, and updating data in Firebase Realtime Database.
  * It includes functionality to retrieve lists of rooms and devices, as well as adding, removing, and updating data.
+ * The database itself is reached through a HomeBackend: the Firebase SDK by default, or the REST
+ * streaming and in-memory backends passed to init().
+ * There is one DataManager per home; HomeSwitcher creates them over one shared backend, and
+ * getInstance() returns the one of the active home.
  *
  */
 package com.example.alexucana.controllers;
 
+import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
 
-import com.example.alexucana.config;
 import com.example.alexucana.models.Device;
+import com.example.alexucana.models.HomeChange;
+import com.example.alexucana.models.HomeSnapshot;
+import com.example.alexucana.models.LoadState;
 import com.example.alexucana.models.Room;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.GenericTypeIndicator;
-import com.google.firebase.database.ValueEventListener;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * The DataManager class represents a singleton class for managing data in Firebase Realtime Database.
+ * The DataManager class manages the data of one home; HomeSwitcher owns one instance per home.
  */
 public class DataManager {
 
     public static final String TAG = DataManager.class.getSimpleName();
-    private static DataManager instance;
+
+    // Default window in which repeated writes to the same device path collapse into one
+    public static final long DEFAULT_WRITE_WINDOW_MS = 150;
+
+    // Name of the persisted snapshot file, and how long the state must settle before it is rewritten
+    private static final String SNAPSHOT_FILE = "home_snapshot.bin";
+    private static final long SNAPSHOT_SAVE_DELAY_MS = 2000;
+
+    // Directory of the persistent sensor archive
+    private static final String SENSOR_ARCHIVE_DIR = "sensor_history";
+
+    // Directory of the event log
+    private static final String EVENT_LOG_DIR = "events";
+
+    // How long the app must stay in the background before live sync is suspended
+    private static final long SUSPEND_DELAY_MS = 5000;
+
+    // Typical wire size of one device update (a sensors patch with its path and framing), for the savings estimate
+    private static final int BYTES_PER_EVENT = 200;
+
+    // File of the offline command journal, and how long appends may wait before they are fsynced together.
+    // Named after the database layout, so commands journaled against another layout are never replayed.
+    private static final String COMMAND_JOURNAL_FILE = "command_journal_v3.bin";
+    private static final long JOURNAL_SYNC_DELAY_MS = 50;
+
+    // Database layout (v3): rarely changing configuration under rooms/<roomId>, and the sensor
+    // readings the devices rewrite every few seconds under telemetry/<deviceId>
+    static final String ROOMS_PATH = "rooms";
+    static final String TELEMETRY_PATH = "telemetry";
+
+    // What each device reports it applied, under reported/<deviceId>, written by the devices
+    static final String REPORTED_PATH = "reported";
+
+    // Room of a device under telemetry/<deviceId> and reported/<deviceId>, written when the device
+    // registers so the database rules can tell it from a deleted one; neither a reading nor a report
+    static final String DEVICE_ROOM_KEY = "room_id";
+
+    // Directory for the files of every home, set by init() before the first getInstance()
+    static File filesDir;
+
+    // Backend at the database root chosen by init(), shared by all homes; null means the Firebase SDK
+    static HomeBackend initBackend;
+
+    /**
+     * Interface for handling data changes. Called on the main thread.
+     */
+    public interface OnDataChanged {
+        void apply();
+    }
+
+    private final HomeBackend backend;
+    private final Handler mainHandler;
+
+    // The home root in the shared backend
+    public final String homeId;
+
+    // Immutable home state, built on syncExecutor and published here; any thread may read it without locks
+    private final AtomicReference<HomeSnapshot> snapshotRef = new AtomicReference<>(HomeSnapshot.EMPTY);
+
+    // Single background thread that parses database events and builds the next snapshot. Once the
+    // home is closed, callbacks still in flight are dropped instead of throwing.
+    private final ThreadPoolExecutor syncExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), new ThreadPoolExecutor.DiscardPolicy());
+
+    /**
+     * Interface for handling typed changes. Called on the main thread.
+     */
+    public interface OnHomeChanges {
+        void apply(List<HomeChange> changes);
+    }
+
+    /**
+     * Interface for handling load state changes. Called on the main thread.
+     */
+    public interface OnLoadStateChanged {
+        void apply(LoadState state);
+    }
+
+    /**
+     * Handle for an active subscription; call unsubscribe() when the data is no longer on screen.
+     */
+    public interface Subscription {
+        void unsubscribe();
+    }
+
+    // Room headers (name and device count), attached while roomsSubscribers + homeSubscribers > 0
+    private final HomeBackend.ChildListener roomsListener;
+    private HomeBackend.Registration roomsRegistration = null;
+
+    // One devices_map listener per subscribed room, so a device change only re-parses that device
+    private final HashMap<String, HomeBackend.Registration> devicesListeners = new HashMap<>();
+
+    // One telemetry listener per device of a subscribed room, and the devices each room listens to (main thread only)
+    private final HashMap<String, HomeBackend.Registration> telemetryListeners = new HashMap<>();
+    private final HashMap<String, Set<String>> telemetryDevices = new HashMap<>();
+
+    // Last readings of each device with a telemetry listener, keyed by sensor (syncExecutor only)
+    private final HashMap<String, HashMap<String, Object>> telemetryByDevice = new HashMap<>();
+
+    // Whether this is the active home; an inactive home keeps its snapshot but attaches no listener (main thread only)
+    private boolean active = true;
+
+    // Registration of the connection listener, removed when the home is closed
+    private final HomeBackend.Registration connectionRegistration;
+
+    // Background suspension: room and device listeners are detached while suspended; only the
+    // assistant's home subscription keeps the home streaming (main thread only)
+    private boolean suspended = false;
+    private final Runnable suspendTask = this::suspend;
+    private long suspendedAtMs = 0;
+
+    // Live events and the time spent not suspended, to estimate what a suspension saves (main thread only)
+    private long liveEvents = 0;
+    private long liveMs = 0;
+    private long liveSinceMs = SystemClock.elapsedRealtime();
+    private long backgroundEventsSaved = 0;
+
+    // Load state of the room headers ("") and of each room's devices; a listener is attached only by a load it starts
+    private final LoadCoordinator loadCoordinator = new LoadCoordinator();
+
+    // Subscription reference counts; all listener bookkeeping happens on the main thread
+    private int roomsSubscribers = 0;
+    private int homeSubscribers = 0;
+    private final HashMap<String, Integer> roomSubscribers = new HashMap<>();
+
+    // Data-changed listeners keyed by path pattern (main thread only)
+    private final ChangeRegistry changeRegistry = new ChangeRegistry();
+
+    // Typed change observers, and the snapshot they last saw (main thread only)
+    private final ArrayList<OnHomeChanges> changeObservers = new ArrayList<>();
+    private HomeSnapshot dispatchedSnapshot = HomeSnapshot.EMPTY;
+
+    // True while a dispatch is queued; bursts of child events collapse into one
+    private final AtomicBoolean notifyPending = new AtomicBoolean(false);
+
+    // Merges setDevice calls into multi-path updates
+    private final WriteCoalescer writeCoalescer;
+
+    // Persisted copy of the last snapshot, for instant cold start; null if init() was not called
+    private final SnapshotStore snapshotStore;
+    private final AtomicBoolean savePending = new AtomicBoolean(false);
+
+    // Cold start bookkeeping: time to the first populated rooms list, and where it came from
+    private final long createdAtMs = SystemClock.elapsedRealtime();
+    private volatile boolean restoredFromCache = false;
+    private volatile boolean liveDataReceived = false;
+    private boolean firstPopulatedLogged = false;
+
+    // Main-thread cost of applying syncs to the UI
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong mainThreadSyncMicros = new AtomicLong();
+
+    // Recent readings of every sensor, fed as device updates arrive
+    private final SensorHistory sensorHistory = new SensorHistory();
+
+    // Compressed on-disk history of the same readings; opened on syncExecutor, null without init()
+    private volatile SensorArchive sensorArchive;
+
+    // Everything that happened to the home, for answering what happened to a device and when;
+    // opened on syncExecutor, null without init()
+    private volatile EventLog eventLog;
+
+    // Desired and reported state of every device, and the commands the devices have not confirmed yet
+    private final DeviceShadows shadows = new DeviceShadows();
+    private final AtomicBoolean expiryPending = new AtomicBoolean(false);
+
+    // Listener on the reported branch, attached while anything of the home is watched or a command is unconfirmed
+    private final HomeBackend.ChildListener reportedListener;
+    private HomeBackend.Registration reportedRegistration = null;
+
+    // Controllable writes shown locally before the server confirms them (syncExecutor only)
+    private final PendingWrites pendingWrites = new PendingWrites();
+
+    // Which rooms keep their devices resident, within a byte budget (syncExecutor only)
+    private final RoomCache roomCache = new RoomCache();
+
+    // Writes and removals not yet accepted by the server; opened on syncExecutor, used there only
+    private CommandJournal journal;
+    private final AtomicBoolean journalSyncPending = new AtomicBoolean(false);
+
+    // Connection to the server as reported by the backend, and writes replayed after reconnecting (main thread only)
+    private boolean connected = false;
+    private long replayedWrites = 0;
+
+    // Control latency: when each controllable path was requested, until the change is dispatched
+    private final ConcurrentHashMap<String, Long> requestedAtMs = new ConcurrentHashMap<>();
+    private long controlCount = 0;
+    private long controlTotalMs = 0;
+
+    // Write latency: when each written path was flushed, until the server acknowledged it (main thread only)
+    private final HashMap<String, Long> flushedAtMs = new HashMap<>();
+    private long ackCount = 0;
+    private long ackTotalMs = 0;
+
+    /**
+     * Constructor for one home. Use HomeSwitcher, or getInstance() for the active home.
+     *
+     * @param homeId      The home root in the shared backend.
+     * @param backend     The database backend rooted at the home.
+     * @param homeDir     The directory for the files of this home, or null to keep nothing on disk.
+     * @param predecessor The executor of a closed DataManager of the same home that may still be
+     *                    writing its files, or null.
+     */
+    DataManager(String homeId, HomeBackend backend, File homeDir, ExecutorService predecessor) {
+        this.homeId = homeId;
+        this.backend = backend;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.writeCoalescer = new WriteCoalescer(mainHandler, DEFAULT_WRITE_WINDOW_MS, this::flushWrites);
+        this.snapshotStore = homeDir == null ? null : new SnapshotStore(new File(homeDir, SNAPSHOT_FILE));
+        if (predecessor != null) syncExecutor.execute(() -> awaitTermination(predecessor));
+        if (homeDir != null && !homeDir.isDirectory() && !homeDir.mkdirs()) Log.e(TAG, "Cannot create " + homeDir);
+        // Render the last persisted state first; live events queue up behind it on the same executor
+        syncExecutor.execute(this::restoreSnapshot);
+        if (homeDir != null) {
+            File archiveDir = new File(homeDir, SENSOR_ARCHIVE_DIR);
+            syncExecutor.execute(() -> sensorArchive = new SensorArchive(archiveDir));
+            File eventLogDir = new File(homeDir, EVENT_LOG_DIR);
+            syncExecutor.execute(() -> eventLog = new EventLog(eventLogDir));
+        }
+        File journalFile = homeDir == null ? null : new File(homeDir, COMMAND_JOURNAL_FILE);
+        syncExecutor.execute(() -> journal = new CommandJournal(journalFile));
+        // The first report replays whatever an earlier run left in the journal
+        this.connectionRegistration = backend.addConnectionListener(this::onConnectionChanged);
+        // Rooms are tracked one child at a time; the listener is attached while someone subscribes to rooms
+        this.roomsListener = new HomeBackend.ChildListener() {
+            @Override
+            public void onChildPut(HomeBackend.Node child) {
+                liveEvents++;
+                onRoomChanged(child);
+            }
+
+            @Override
+            public void onChildRemoved(String key) {
+                onRoomRemoved(key);
+            }
+
+            @Override
+            public void onInitialLoaded(Set<String> keys) {
+                // Drops cached rooms that were deleted while we were away
+                syncExecutor.execute(() -> {
+                    pruneRooms(keys);
+                    mainHandler.post(() -> {
+                        if (roomsRegistration != null) loadCoordinator.loaded("");
+                    });
+                });
+            }
+
+            @Override
+            public void onCancelled(String reason) {
+                Log.e(TAG, "Rooms listener cancelled: " + reason);
+                // A cancelled listener gets nothing more; retryLoad() attaches a new one
+                if (roomsRegistration != null) {
+                    roomsRegistration.remove();
+                    roomsRegistration = null;
+                }
+                loadCoordinator.failed("", reason, !snapshotRef.get().isEmpty());
+            }
+        };
+        this.reportedListener = new HomeBackend.ChildListener() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onChildPut(HomeBackend.Node child) {
+                syncExecutor.execute(() -> {
+                    Object value = child.value();
+                    HashMap<String, Object> reported = new HashMap<>();
+                    if (value instanceof Map) reported.putAll((Map<String, Object>) value);
+                    reported.remove(DEVICE_ROOM_KEY);
+                    onReported(child.key(), reported);
+                });
+            }
+
+            @Override
+            public void onChildRemoved(String deviceId) {
+                syncExecutor.execute(() -> onReported(deviceId, Collections.emptyMap()));
+            }
+
+            @Override
+            public void onInitialLoaded(Set<String> keys) {
+            }
+
+            @Override
+            public void onCancelled(String reason) {
+                Log.e(TAG, "Reported listener cancelled: " + reason);
+                if (reportedRegistration == null) return;
+                reportedRegistration.remove();
+                reportedRegistration = null;
+            }
+        };
+    }
+
+    /**
+     * Initialize DataManager with the application context. Call before the first getInstance().
+     *
+     * @param ctx Any context of the application.
+     */
+    public static void init(Context ctx) {
+        filesDir = ctx.getApplicationContext().getFilesDir();
+    }
+
+    /**
+     * Initialize DataManager with the application context and a backend other than the Firebase SDK,
+     * e.g. a RestSseBackend pointed at a local stand-in server. Call before the first getInstance().
+     *
+     * @param ctx     Any context of the application.
+     * @param backend The database backend, rooted at the database root; each home is a child of it.
+     */
+    public static void init(Context ctx, HomeBackend backend) {
+        init(ctx);
+        initBackend = backend;
+    }
+
+    /**
+     * Get the DataManager of the current home, i.e. the one HomeSwitcher has active;
+     * config.DATABASE_PATH until HomeSwitcher switches. It changes when the home is switched,
+     * so callers should not keep the returned instance across a switch.
+     *
+     * @return The DataManager of the current home.
+     */
+    public static DataManager getInstance() {
+        return HomeSwitcher.getInstance().getActive();
+    }
+
+    /**
+     * Subscribe to the room headers (name and device count) shown on the rooms screen.
+     * Must be called on the main thread.
+     *
+     * @return The subscription.
+     */
+    public Subscription subscribeRooms() {
+        roomsSubscribers++;
+        loadCoordinator.clearError("");
+        updateListeners();
+        return once(() -> {
+            roomsSubscribers--;
+            updateListeners();
+        });
+    }
+
+    /**
+     * Subscribe to the devices_map of one room.
+     * Must be called on the main thread.
+     *
+     * @param roomId The ID of the room.
+     * @return The subscription.
+     */
+    public Subscription subscribeRoom(String roomId) {
+        Integer count = roomSubscribers.get(roomId);
+        roomSubscribers.put(roomId, count == null ? 1 : count + 1);
+        // Opening a room again retries a failed load
+        loadCoordinator.clearError(roomId);
+        updateListeners();
+        return once(() -> {
+            Integer current = roomSubscribers.get(roomId);
+            if (current == null || current <= 1) roomSubscribers.remove(roomId);
+            else roomSubscribers.put(roomId, current - 1);
+            updateListeners();
+        });
+    }
+
+    /**
+     * Subscribe to the whole home, e.g. while the assistant is answering about it.
+     * Must be called on the main thread.
+     *
+     * @return The subscription.
+     */
+    public Subscription subscribeHome() {
+        homeSubscribers++;
+        updateListeners();
+        return once(() -> {
+            homeSubscribers--;
+            updateListeners();
+        });
+    }
+
+    /**
+     * Wrap an unsubscribe action so that calling it twice has no effect.
+     *
+     * @param action The unsubscribe action.
+     * @return The subscription.
+     */
+    private static Subscription once(Runnable action) {
+        AtomicBoolean done = new AtomicBoolean(false);
+        return () -> {
+            if (done.compareAndSet(false, true)) action.run();
+        };
+    }
+
+    /**
+     * Handle the app coming to the foreground: resume live sync. Called by HomeSwitcher on the main thread.
+     */
+    void onStarted() {
+        mainHandler.removeCallbacks(suspendTask);
+        if (suspended) resume();
+    }
+
+    /**
+     * Handle the app going to the background: suspend live sync after a few seconds, so quick app
+     * switches and rotations keep their listeners. Called by HomeSwitcher on the main thread.
+     */
+    void onStopped() {
+        mainHandler.postDelayed(suspendTask, SUSPEND_DELAY_MS);
+    }
+
+    /**
+     * Make this the active home, or park it. A parked home detaches every listener, including
+     * the assistant's, and keeps its snapshot in memory, so switching back to it renders at once
+     * and revalidates in the background. Called by HomeSwitcher on the main thread.
+     *
+     * @param isActive Whether the home is now the active one.
+     */
+    void setActive(boolean isActive) {
+        if (active == isActive) return;
+        active = isActive;
+        if (!isActive) {
+            mainHandler.removeCallbacks(suspendTask);
+            // Parking is not a suspension; the home comes back with whatever the app state is then
+            if (suspended) {
+                suspended = false;
+                liveSinceMs = SystemClock.elapsedRealtime();
+            }
+            syncExecutor.execute(() -> {
+                if (snapshotStore != null) snapshotStore.save(snapshotRef.get());
+                if (eventLog != null) eventLog.flush();
+                journal.sync();
+            });
+        }
+        updateListeners();
+    }
+
+    /**
+     * Release the home for good: detach every listener, write out the snapshot, the archive and
+     * the journal, and stop the sync thread. Writes still queued stay in the journal and are
+     * replayed by the next DataManager of this home. Called by HomeSwitcher on the main thread.
+     *
+     * @return The sync thread's executor, which terminates once the files are written.
+     */
+    ExecutorService close() {
+        setActive(false);
+        connectionRegistration.remove();
+        syncExecutor.execute(() -> {
+            if (snapshotStore != null) snapshotStore.save(snapshotRef.get());
+            if (sensorArchive != null) sensorArchive.close();
+            if (eventLog != null) eventLog.close();
+            journal.close();
+        });
+        syncExecutor.shutdown();
+        return syncExecutor;
+    }
+
+    /**
+     * Wait until a closed home's sync thread has written its files.
+     *
+     * @param executor The executor.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) Log.e(TAG, "Previous home still closing");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Detach every listener only the UI needs, and write out what the process may not get to
+     * write before it is killed in the background.
+     */
+    private void suspend() {
+        if (suspended) return;
+        suspended = true;
+        long now = SystemClock.elapsedRealtime();
+        suspendedAtMs = now;
+        liveMs += now - liveSinceMs;
+        updateListeners();
+        syncExecutor.execute(() -> {
+            if (snapshotStore != null) snapshotStore.save(snapshotRef.get());
+            if (sensorArchive != null) sensorArchive.flush();
+            if (eventLog != null) eventLog.flush();
+            journal.sync();
+        });
+        Log.d(TAG, "Live sync suspended" + (homeSubscribers > 0 ? ", the assistant keeps the home streaming" : ""));
+    }
+
+    /**
+     * Re-attach the listeners the subscriptions need. They start from the current snapshot, so
+     * only devices that changed meanwhile are re-published; with Firebase persistence the SDK also
+     * re-listens with the hash of its cached data and the server only sends what differs.
+     */
+    private void resume() {
+        suspended = false;
+        long now = SystemClock.elapsedRealtime();
+        long awayMs = now - suspendedAtMs;
+        liveSinceMs = now;
+        // Events that would have streamed meanwhile, at the rate seen while live
+        long saved = liveMs == 0 ? 0 : liveEvents * awayMs / liveMs;
+        backgroundEventsSaved += saved;
+        Log.d(TAG, "Live sync resumed after " + awayMs / 1000 + " s, skipped ~" + saved + " events (~"
+                + saved * BYTES_PER_EVENT / 1024 + " KiB, " + getBackgroundBytesSaved() / 1024 + " KiB in total)");
+        updateListeners();
+    }
+
+    /**
+     * Get the estimated network bytes not received because live sync was suspended in the background.
+     * Counts the device and room events that would have streamed, at the rate seen while live,
+     * at a typical size per event.
+     *
+     * @return The estimate in bytes.
+     */
+    public long getBackgroundBytesSaved() {
+        return backgroundEventsSaved * BYTES_PER_EVENT;
+    }
+
+    /**
+     * Attach exactly the database listeners the current subscriptions need, and detach the rest.
+     * While suspended, only the assistant's home subscription keeps listeners attached; while the
+     * home is not the active one, nothing does.
+     */
+    private void updateListeners() {
+        boolean wantRooms = active && ((!suspended && roomsSubscribers > 0) || homeSubscribers > 0);
+        if (wantRooms && roomsRegistration == null) {
+            // Cached rooms stay on screen while the listener revalidates them
+            if (loadCoordinator.begin("", !snapshotRef.get().isEmpty())) {
+                roomsRegistration = backend.addChildListener(ROOMS_PATH, roomsListener);
+            }
+        } else if (!wantRooms && roomsRegistration != null) {
+            roomsRegistration.remove();
+            roomsRegistration = null;
+            loadCoordinator.abandon("");
+        }
+
+        Set<String> wantDevices = new HashSet<>();
+        if (active && !suspended) wantDevices.addAll(roomSubscribers.keySet());
+        if (active && homeSubscribers > 0) {
+            for (Room room : snapshotRef.get().rooms) wantDevices.add(room.id);
+        }
+        for (String roomId : new ArrayList<>(devicesListeners.keySet())) {
+            if (!wantDevices.contains(roomId)) detachDevicesListener(roomId);
+        }
+        for (String roomId : wantDevices) {
+            attachDevicesListener(roomId);
+        }
+
+        // Reports are small and only change when a device applies a command, so one listener covers all devices
+        boolean wantReported = active && (wantRooms || !wantDevices.isEmpty() || shadows.unconvergedCount() > 0);
+        if (wantReported && reportedRegistration == null) {
+            reportedRegistration = backend.addChildListener(REPORTED_PATH, reportedListener);
+        } else if (!wantReported && reportedRegistration != null) {
+            reportedRegistration.remove();
+            reportedRegistration = null;
+        }
+    }
+
+    /**
+     * Handle a room being added under the rooms branch, or a change anywhere inside its configuration.
+     * Only the room header is read: the name, and the device count without parsing any device.
+     * Devices already known (e.g. restored from disk) are kept.
+     *
+     * @param node The node of the room.
+     */
+    private void onRoomChanged(HomeBackend.Node node) {
+        String roomId = node.key();
+        if (roomId == null) return;
+        liveDataReceived = true;
+        if (active && homeSubscribers > 0) attachDevicesListener(roomId);
+        syncExecutor.execute(() -> {
+            String name = roomNameOf(node);
+            int deviceCount = (int) node.child("devices_map").childrenCount();
+            HomeSnapshot current = snapshotRef.get();
+            Room room = current.room(roomId);
+            if (room == null) {
+                logEvent(EventLog.ROOM_PUT, roomId, null, name);
+                publish(current.withRoom(Room.header(roomId, name, deviceCount)));
+                return;
+            }
+            Room updated = room.withHeader(name, deviceCount);
+            if (updated == room) return;
+            if (!Objects.equals(updated.name, room.name)) logEvent(EventLog.ROOM_PUT, roomId, null, updated.name);
+            publish(current.withRoom(updated));
+        });
+    }
+
+    /**
+     * Handle a room being deleted from the database.
+     *
+     * @param roomId The ID of the removed room.
+     */
+    private void onRoomRemoved(String roomId) {
+        detachDevicesListener(roomId);
+        loadCoordinator.remove(roomId);
+        syncExecutor.execute(() -> {
+            roomCache.remove(roomId);
+            pendingWrites.forgetRoom(roomId);
+            if (snapshotRef.get().room(roomId) != null) logEvent(EventLog.ROOM_REMOVED, roomId, null, null);
+            publish(snapshotRef.get().withoutRoom(roomId));
+        });
+    }
+
+    /**
+     * Listen to the devices_map of one room, patching only the device that changed.
+     *
+     * @param roomId The ID of the room.
+     */
+    private void attachDevicesListener(String roomId) {
+        if (devicesListeners.containsKey(roomId)) return;
+        Room cached = snapshotRef.get().room(roomId);
+        if (!loadCoordinator.begin(roomId, cached != null && !cached.devices.isEmpty())) return;
+        HomeBackend.ChildListener listener = new HomeBackend.ChildListener() {
+            @Override
+            public void onChildPut(HomeBackend.Node child) {
+                liveEvents++;
+                attachTelemetryListener(roomId, child.key());
+                syncExecutor.execute(() -> putDevice(roomId, child));
+            }
+
+            @Override
+            public void onChildRemoved(String deviceId) {
+                detachTelemetryListener(roomId, deviceId);
+                syncExecutor.execute(() -> {
+                    telemetryByDevice.remove(deviceId);
+                    shadows.forget(deviceId);
+                    HomeSnapshot current = snapshotRef.get();
+                    Room room = current.room(roomId);
+                    if (room == null) return;
+                    publishRoom(current, room.withoutDevice(deviceId));
+                    pendingWrites.forget(roomId, deviceId);
+                    sensorHistory.removeDevice(deviceId);
+                });
+            }
+
+            @Override
+            public void onInitialLoaded(Set<String> deviceIds) {
+                // Drops cached devices that were deleted while we were away
+                syncExecutor.execute(() -> {
+                    pruneDevices(roomId, deviceIds);
+                    mainHandler.post(() -> {
+                        if (devicesListeners.containsKey(roomId)) loadCoordinator.loaded(roomId);
+                    });
+                });
+            }
+
+            @Override
+            public void onCancelled(String reason) {
+                Log.e(TAG, "Devices listener cancelled for room " + roomId + ": " + reason);
+                detachDevicesListener(roomId);
+                Room room = snapshotRef.get().room(roomId);
+                loadCoordinator.failed(roomId, reason, room != null && !room.devices.isEmpty());
+            }
+        };
+        // Pinned before any event of the listener lands, so the room cannot be evicted while open
+        syncExecutor.execute(() -> roomCache.pin(roomId));
+        devicesListeners.put(roomId, backend.addChildListener(ROOMS_PATH + "/" + roomId + "/devices_map", listener));
+    }
+
+    /**
+     * Listen to the telemetry of one device, patching its sensor readings as they arrive.
+     * Only devices of subscribed rooms are listened to, so the rooms list never downloads readings.
+     *
+     * @param roomId   The ID of the room the device is in.
+     * @param deviceId The ID of the device.
+     */
+    private void attachTelemetryListener(String roomId, String deviceId) {
+        if (deviceId == null || telemetryListeners.containsKey(deviceId)) return;
+        HomeBackend.ChildListener listener = new HomeBackend.ChildListener() {
+            @Override
+            public void onChildPut(HomeBackend.Node child) {
+                if (DEVICE_ROOM_KEY.equals(child.key())) return;
+                liveEvents++;
+                syncExecutor.execute(() -> {
+                    HashMap<String, Object> sensors = telemetryByDevice.get(deviceId);
+                    if (sensors == null) {
+                        sensors = new HashMap<>();
+                        telemetryByDevice.put(deviceId, sensors);
+                    }
+                    sensors.put(child.key(), child.value());
+                    putTelemetry(roomId, deviceId);
+                });
+            }
+
+            @Override
+            public void onChildRemoved(String key) {
+                syncExecutor.execute(() -> {
+                    HashMap<String, Object> sensors = telemetryByDevice.get(deviceId);
+                    if (sensors != null && sensors.remove(key) != null) putTelemetry(roomId, deviceId);
+                });
+            }
+
+            @Override
+            public void onInitialLoaded(Set<String> keys) {
+                // Drops cached readings of sensors the device no longer reports
+                syncExecutor.execute(() -> {
+                    HashMap<String, Object> sensors = telemetryByDevice.get(deviceId);
+                    if (sensors == null) {
+                        sensors = new HashMap<>();
+                        telemetryByDevice.put(deviceId, sensors);
+                    }
+                    sensors.keySet().retainAll(keys);
+                    putTelemetry(roomId, deviceId);
+                });
+            }
+
+            @Override
+            public void onCancelled(String reason) {
+                // The configuration stays live; the last readings stay on screen
+                Log.e(TAG, "Telemetry listener cancelled for device " + deviceId + ": " + reason);
+                detachTelemetryListener(roomId, deviceId);
+            }
+        };
+        telemetryListeners.put(deviceId, backend.addChildListener(TELEMETRY_PATH + "/" + deviceId, listener));
+        Set<String> devices = telemetryDevices.get(roomId);
+        if (devices == null) {
+            devices = new HashSet<>();
+            telemetryDevices.put(roomId, devices);
+        }
+        devices.add(deviceId);
+    }
+
+    /**
+     * Stop listening to the telemetry of one device.
+     *
+     * @param roomId   The ID of the room the device is in.
+     * @param deviceId The ID of the device.
+     */
+    private void detachTelemetryListener(String roomId, String deviceId) {
+        HomeBackend.Registration registration = telemetryListeners.remove(deviceId);
+        if (registration != null) registration.remove();
+        Set<String> devices = telemetryDevices.get(roomId);
+        if (devices == null) return;
+        devices.remove(deviceId);
+        if (devices.isEmpty()) telemetryDevices.remove(roomId);
+    }
+
+    /**
+     * Stop listening to the devices_map of one room. Its last known devices stay in the snapshot
+     * until the room cache needs the room for others.
+     *
+     * @param roomId The ID of the room.
+     */
+    private void detachDevicesListener(String roomId) {
+        HomeBackend.Registration registration = devicesListeners.remove(roomId);
+        if (registration == null) return;
+        registration.remove();
+        loadCoordinator.abandon(roomId);
+        Set<String> devices = telemetryDevices.get(roomId);
+        List<String> deviceIds = devices == null ? Collections.emptyList() : new ArrayList<>(devices);
+        for (String deviceId : deviceIds) {
+            detachTelemetryListener(roomId, deviceId);
+        }
+        syncExecutor.execute(() -> {
+            // Readings are no longer kept current; the devices keep their last ones until re-attached
+            telemetryByDevice.keySet().removeAll(deviceIds);
+            roomCache.unpin(roomId);
+            trimRooms();
+        });
+    }
+
+    /**
+     * Get the load state of the room headers or of one room's devices. Must be called on the main thread.
+     *
+     * @param part "" for the room headers, or the ID of a room for its devices.
+     * @return The LoadState.
+     */
+    public LoadState getLoadState(String part) {
+        return loadCoordinator.get(part);
+    }
+
+    /**
+     * Observe the load state of the room headers or of one room's devices.
+     * The callback is called at once with the current state. Must be called on the main thread.
+     *
+     * @param part "" for the room headers, or the ID of a room for its devices.
+     * @param cb   The callback function.
+     * @return The subscription that unregisters the callback.
+     */
+    public Subscription observeLoadState(String part, OnLoadStateChanged cb) {
+        return once(loadCoordinator.observe(part, cb)::unsubscribe);
+    }
+
+    /**
+     * Run an action once the room headers and the devices of every room with a listener have
+     * loaded, or after a timeout, whichever comes first. Rooms never opened or evicted to their
+     * headers only hold their device count until their devices arrive, so e.g. the assistant
+     * waits for them after subscribeHome(). A failed load does not hold the action back.
+     * Must be called on the main thread.
+     *
+     * @param timeoutMs How long to wait at most.
+     * @param action    The action, run once on the main thread.
+     */
+    public void whenHomeLoaded(long timeoutMs, Runnable action) {
+        if (isHomeLoaded()) {
+            action.run();
+            return;
+        }
+        AtomicBoolean done = new AtomicBoolean(false);
+        Subscription[] loadSubscription = new Subscription[1];
+        Runnable[] timeout = new Runnable[1];
+        Runnable finish = () -> {
+            if (!done.compareAndSet(false, true)) return;
+            loadSubscription[0].unsubscribe();
+            mainHandler.removeCallbacks(timeout[0]);
+            action.run();
+        };
+        timeout[0] = () -> {
+            Log.w(TAG, "Home still loading after " + timeoutMs + " ms, going on with what is loaded");
+            finish.run();
+        };
+        loadSubscription[0] = loadCoordinator.observeAll(() -> {
+            if (isHomeLoaded()) finish.run();
+        });
+        mainHandler.postDelayed(timeout[0], timeoutMs);
+    }
+
+    /**
+     * Check whether no load of the room headers or of an attached room's devices is in flight.
+     * The headers load attaches the devices listener of every room it delivers, so once it is
+     * done every room is covered. Main thread only.
+     *
+     * @return True if nothing is loading.
+     */
+    private boolean isHomeLoaded() {
+        if (loadCoordinator.get("").status == LoadState.Status.LOADING) return false;
+        for (String roomId : devicesListeners.keySet()) {
+            if (loadCoordinator.get(roomId).status == LoadState.Status.LOADING) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Start the loads that failed again, for every part still subscribed.
+     * Failed loads are otherwise only retried when their part is subscribed again, so a rejected
+     * listener is not re-attached on every room change. Must be called on the main thread.
+     */
+    public void retryLoad() {
+        loadCoordinator.clearErrors();
+        updateListeners();
+    }
+
+    /**
+     * Restore the persisted snapshot, unless live data already arrived.
+     * Runs on syncExecutor.
+     */
+    private void restoreSnapshot() {
+        if (snapshotStore == null) return;
+        long start = SystemClock.elapsedRealtime();
+        HomeSnapshot restored = snapshotStore.load();
+        if (restored == null || restored.isEmpty() || !snapshotRef.get().isEmpty()) return;
+        Log.d(TAG, "Restored " + restored.rooms.size() + " rooms from disk in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        restoredFromCache = true;
+        for (Room room : restored.rooms) roomCache.update(room);
+        publish(restored);
+        trimRooms();
+    }
+
+    /**
+     * Drop rooms that are no longer in the database.
+     * Runs on syncExecutor.
+     *
+     * @param liveRoomIds The room IDs currently in the database.
+     */
+    private void pruneRooms(Set<String> liveRoomIds) {
+        HomeSnapshot next = snapshotRef.get();
+        for (Room room : next.rooms) {
+            if (liveRoomIds.contains(room.id)) continue;
+            logEvent(EventLog.ROOM_REMOVED, room.id, null, null);
+            roomCache.remove(room.id);
+            next = next.withoutRoom(room.id);
+        }
+        publish(next);
+    }
+
+    /**
+     * Drop devices of a room that are no longer in the database, and settle its device count
+     * now that the initial load is complete.
+     * Runs on syncExecutor.
+     *
+     * @param roomId        The ID of the room.
+     * @param liveDeviceIds The device IDs currently in the room's devices_map.
+     */
+    private void pruneDevices(String roomId, Set<String> liveDeviceIds) {
+        HomeSnapshot current = snapshotRef.get();
+        Room room = current.room(roomId);
+        if (room == null) return;
+        Room next = room;
+        for (Device device : room.devices) {
+            if (!liveDeviceIds.contains(device.id)) next = next.withoutDevice(device.id);
+        }
+        // The header's count was kept while the devices arrived; the loaded devices are the truth now
+        next = next.withHeader(next.name, next.devices.size());
+        if (next != room) publishRoom(current, next);
+    }
+
+    /**
+     * Parse a single device node and store it in its room.
+     * Runs on syncExecutor.
+     *
+     * @param roomId The ID of the room.
+     * @param node   The node of the device.
+     */
+    @SuppressWarnings("unchecked")
+    private void putDevice(String roomId, HomeBackend.Node node) {
+        HomeSnapshot current = snapshotRef.get();
+        Room room = current.room(roomId);
+        if (room == null) return;
+        // Device configuration, keyed by [device_name | controllable]; readings come from its telemetry
+        Object device = node.value();
+        if (!(device instanceof Map)) return;
+        Device server = Device.fromMap(node.key(), (Map<String, Object>) device);
+        Device before = room.device(server.id);
+        HashMap<String, Object> sensors = telemetryByDevice.get(server.id);
+        if (sensors != null) server = server.withSensors(sensors);
+        else if (before != null) server = server.withSensors(sensorsOf(before));
+        recordSensors(before, server);
+        // Writes the server has not confirmed yet stay visible on top of what it reports
+        publishRoom(current, room.withDevice(pendingWrites.onServerDevice(roomId, server)));
+    }
+
+    /**
+     * Lay the known telemetry of a device over the state the server last reported for it.
+     * A device whose configuration has not arrived yet picks the readings up in putDevice.
+     * Runs on syncExecutor.
+     *
+     * @param roomId   The ID of the room.
+     * @param deviceId The ID of the device.
+     */
+    private void putTelemetry(String roomId, String deviceId) {
+        HashMap<String, Object> sensors = telemetryByDevice.get(deviceId);
+        HomeSnapshot current = snapshotRef.get();
+        Room room = current.room(roomId);
+        if (sensors == null || room == null) return;
+        Device shown = room.device(deviceId);
+        Device confirmed = pendingWrites.confirmed(roomId, deviceId, shown);
+        if (shown == null || confirmed == null) return;
+        Device server = confirmed.withSensors(sensors);
+        if (server == confirmed) return;
+        recordSensors(shown, server);
+        publishRoom(current, room.withDevice(pendingWrites.onServerDevice(roomId, server)));
+    }
+
+    /**
+     * Get the sensor readings of a device as raw values keyed by sensor.
+     *
+     * @param device The device.
+     * @return The readings.
+     */
+    private static Map<String, Object> sensorsOf(Device device) {
+        HashMap<String, Object> sensors = new HashMap<>();
+        for (int i = 0; i < device.sensorCount(); i++) {
+            sensors.put(device.sensorKey(i), device.sensorRaw(i));
+        }
+        return sensors;
+    }
 
     /**
-     * Interface for handling data changes.
+     * Append the readings that changed to the sensor history and archive.
+     * The database only reports changes, so a steady reading is stored once per change.
+     * Runs on syncExecutor.
+     *
+     * @param before The previous version of the device, or null.
+     * @param after  The new version of the device.
      */
-    public interface OnDataChanged {
-        void apply();
+    private void recordSensors(Device before, Device after) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < after.sensorCount(); i++) {
+            double value = after.sensorValue(i);
+            if (Double.isNaN(value)) continue;
+            if (before != null && before.sensorValue(after.sensorKey(i)) == value) continue;
+            sensorHistory.record(after.id, after.sensorKey(i), now, (float) value);
+            if (sensorArchive != null) sensorArchive.record(after.id, after.sensorKey(i), now, (float) value);
+            EventLog log = eventLog;
+            if (log != null) log.record(EventLog.SENSOR, after.id, after.sensorKey(i), value);
+        }
     }
 
-    private OnDataChanged onDataChanged;
-    private final DatabaseReference dbRef;
-    private final Handler mainHandler;
+    /**
+     * Read the room name of a room node without parsing its devices.
+     *
+     * @param node The node of the room.
+     * @return The room name, or null if it is missing.
+     */
+    private static String roomNameOf(HomeBackend.Node node) {
+        Object name = node.child("room_name").value();
+        return name == null ? null : name.toString();
+    }
 
-    private final HashMap<String, HashMap<String, Object>> localDataCopy = new HashMap<>();
+    /**
+     * Build the path of a device relative to the rooms branch, as used by HomeChange paths and
+     * observe() patterns.
+     *
+     * @param roomId   The ID of the room.
+     * @param deviceId The ID of the device.
+     * @return The device path.
+     */
+    private static String devicePath(String roomId, String deviceId) {
+        return roomId + "/devices_map/" + deviceId;
+    }
 
-    private int roomsCount;
+    /**
+     * Build the database path of a node of the home configuration, as used for writes.
+     *
+     * @param path The path relative to the rooms branch, e.g. from devicePath().
+     * @return The path relative to the home root.
+     */
+    private static String configPath(String path) {
+        return ROOMS_PATH + "/" + path;
+    }
 
     /**
-     * Private constructor for the singleton pattern.
+     * Publish the next snapshot and queue a notification.
+     * Only syncExecutor writes snapshotRef, so a plain set after get cannot lose an update.
+     *
+     * @param next The snapshot to publish.
      */
-    private DataManager() {
-        this.dbRef = FirebaseDatabase.getInstance().getReference().child(config.DATABASE_PATH);
-        this.mainHandler = new Handler(Looper.getMainLooper());
-        // Fetch initial data
-        fetchData();
-        this.dbRef.addValueEventListener(new ValueEventListener() {
-            @Override
-            public void onDataChange(@NonNull DataSnapshot snapshot) {
-                syncLocalData(snapshot);
-            }
+    private void publish(HomeSnapshot next) {
+        if (next == snapshotRef.get()) return;
+        snapshotRef.set(next);
+        scheduleNotify();
+        scheduleSave();
+    }
 
-            @Override
-            public void onCancelled(@NonNull DatabaseError error) {}
-        });
+    /**
+     * Publish a snapshot with the devices of one room changed, keeping the room cache within budget.
+     * Runs on syncExecutor.
+     *
+     * @param current The current snapshot.
+     * @param room    The new version of the room.
+     */
+    private void publishRoom(HomeSnapshot current, Room room) {
+        Room before = current.room(room.id);
+        if (room == before) return;
+        logDeviceChanges(before, room);
+        roomCache.update(room);
+        publish(current.withRoom(room));
+        trimRooms();
     }
 
     /**
-     * Get the singleton instance of DataManager.
+     * Log the devices a new version of a room adds, removes, renames or sets controllable values
+     * of. Sensor readings are logged by recordSensors. A device whose controllable map is shared
+     * with its previous version (any telemetry update) is passed over without iterating anything.
+     * Runs on syncExecutor.
      *
-     * @return The DataManager instance.
+     * @param before The previous version of the room, or null.
+     * @param after  The new version of the room.
      */
-    public static DataManager getInstance() {
-        if (instance == null) {
-            instance = new DataManager();
+    private void logDeviceChanges(Room before, Room after) {
+        EventLog log = eventLog;
+        if (log == null) return;
+        for (int i = 0; i < after.devices.size(); i++) {
+            Device device = after.devices.get(i);
+            Device previous = before == null ? null : before.device(device.id);
+            if (previous == device) continue;
+            if (previous == null || !previous.name.equals(device.name)) {
+                log.record(EventLog.DEVICE_PUT, device.id, null, device.name);
+            }
+            Map<String, Object> old = previous == null ? Collections.emptyMap() : previous.controllable;
+            if (old == device.controllable) continue;
+            for (Map.Entry<String, Object> entry : device.controllable.entrySet()) {
+                if (!old.containsKey(entry.getKey()) || !sameValue(old.get(entry.getKey()), entry.getValue())) {
+                    log.record(EventLog.CONTROLLABLE, device.id, entry.getKey(), entry.getValue());
+                }
+            }
+            for (String key : old.keySet()) {
+                if (!device.controllable.containsKey(key)) log.record(EventLog.CONTROLLABLE, device.id, key, null);
+            }
+        }
+        if (before == null) return;
+        for (int i = 0; i < before.devices.size(); i++) {
+            String deviceId = before.devices.get(i).id;
+            if (after.device(deviceId) == null) log.record(EventLog.DEVICE_REMOVED, deviceId, null, null);
         }
-        return instance;
     }
 
     /**
-     * Synchronize local data with the Firebase Realtime Database.
+     * Record an event, if the event log is open. Safe to call from any thread.
      *
-     * @param snapshot The DataSnapshot from the database.
+     * @param kind    The event kind.
+     * @param subject The room or device ID, or the function name.
+     * @param key     The key, or null.
+     * @param value   The value, or null.
      */
-    private void syncLocalData(DataSnapshot snapshot) {
-        HashMap<String, HashMap<String, Object>> tmp = snapshot.getValue(
-                new GenericTypeIndicator<
-                        HashMap<
-                                String, // Room id
-                                HashMap< // Room props
-                                        String, // key: [room_name | devices_map]
-                                        Object
-                                        >
-                                >
-                        >() {
-                });
-        if (tmp == null) return;
-        Log.d(TAG, tmp.toString());
-        roomsCount = tmp.size();
-        mainHandler.post(() -> {
-            localDataCopy.clear();
-            localDataCopy.putAll(tmp);
-            onDataChanged.apply();
-        });
+    private void logEvent(byte kind, String subject, String key, Object value) {
+        EventLog log = eventLog;
+        if (log != null) log.record(kind, subject, key, value);
     }
 
     /**
-     * Set the callback for data changes.
+     * Record a function call of the assistant in the event log. Safe to call from any thread.
      *
-     * @param cb The callback function.
+     * @param name The function name.
+     * @param args The arguments as JSON.
      */
-    public void setOnDataChanged(OnDataChanged cb) {
-        this.onDataChanged = cb;
+    public void logFunctionCall(String name, String args) {
+        logEvent(EventLog.FUNCTION_CALL, name, null, args);
     }
 
     /**
-     * Get a list of rooms.
+     * Get the desired and reported state of the devices, with command latencies and the
+     * commands not confirmed yet. Safe to query from any thread.
+     *
+     * @return The DeviceShadows.
+     */
+    public DeviceShadows getDeviceShadows() {
+        return shadows;
+    }
+
+    /**
+     * Get the event log. Safe to query from any thread.
      *
-     * @return The list of Room objects.
+     * @return The EventLog, or null if init() was not called or it is still opening.
+     */
+    public EventLog getEventLog() {
+        return eventLog;
+    }
+
+    /**
+     * Cut the least recently used unwatched rooms back to their headers while the resident devices
+     * exceed the budget. Rooms with unacknowledged writes are kept so the writes stay visible.
+     * Runs on syncExecutor.
+     */
+    private void trimRooms() {
+        List<String> victims = roomCache.evict(roomId -> !pendingWrites.hasRoom(roomId));
+        if (victims.isEmpty()) return;
+        HomeSnapshot next = snapshotRef.get();
+        for (String roomId : victims) {
+            Room room = next.room(roomId);
+            if (room != null) next = next.withRoom(Room.header(room.id, room.name, room.deviceCount));
+        }
+        publish(next);
+        Log.d(TAG, "Evicted devices of " + victims.size() + " rooms, " + roomCache.residentBytes() / 1024
+                + " KiB resident (" + roomCache.evictions() + " evictions, " + roomCache.reloads() + " reloads)");
+    }
+
+    /**
+     * Persist the snapshot once the state has settled for a while.
      */
-    public ArrayList<Room> getRoomsList() {
-        // Create an ArrayList to store Room objects
-        ArrayList<Room> roomsList = new ArrayList<>();
+    private void scheduleSave() {
+        if (snapshotStore == null || !savePending.compareAndSet(false, true)) return;
+        mainHandler.postDelayed(() -> syncExecutor.execute(() -> {
+            savePending.set(false);
+            snapshotStore.save(snapshotRef.get());
+        }), SNAPSHOT_SAVE_DELAY_MS);
+    }
+
+    /**
+     * Queue a single data-changed dispatch on the main thread.
+     * Every child event of a burst (e.g. the initial load) lands before the UI refreshes once.
+     * The dispatch diffs the last dispatched snapshot against the current one, hands the typed
+     * changes to change observers, and runs each path listener the changes touch once.
+     */
+    private void scheduleNotify() {
+        if (!notifyPending.compareAndSet(false, true)) return;
+        mainHandler.post(() -> {
+            notifyPending.set(false);
+            long start = SystemClock.elapsedRealtimeNanos();
+            HomeSnapshot current = snapshotRef.get();
+            List<HomeChange> changes = SnapshotDiff.diff(dispatchedSnapshot, current);
+            dispatchedSnapshot = current;
+            if (changes.isEmpty()) return;
+            recordControlLatency(changes);
+            for (OnHomeChanges observer : new ArrayList<>(changeObservers)) {
+                observer.apply(changes);
+            }
+            Set<OnDataChanged> listeners = ChangeRegistry.newListenerSet();
+            for (HomeChange change : changes) {
+                changeRegistry.collect(change.path(), listeners);
+            }
+            for (OnDataChanged listener : listeners) {
+                listener.apply();
+            }
+            long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            syncCount.incrementAndGet();
+            mainThreadSyncMicros.addAndGet(micros);
+            Log.d(TAG, "Main thread sync: " + (micros / 1000.0) + " ms");
+            if (!firstPopulatedLogged && !snapshotRef.get().isEmpty()) {
+                firstPopulatedLogged = true;
+                Runtime runtime = Runtime.getRuntime();
+                Log.d(TAG, "First populated rooms after " + (SystemClock.elapsedRealtime() - createdAtMs)
+                        + " ms (" + (restoredFromCache && !liveDataReceived ? "disk cache" : "live")
+                        + ", " + backend.getClass().getSimpleName() + ", heap "
+                        + (runtime.totalMemory() - runtime.freeMemory()) / 1024 + " KiB)");
+            }
+        });
+    }
 
-        // If localDataCopy is empty, fetch the data and return an empty array
-        if (localDataCopy.isEmpty()) {
-            fetchData();
-            return roomsList;
+    /**
+     * Send a coalesced batch of commands, unless the server is unreachable; the journal keeps them
+     * for the replay on reconnect either way. Runs on the main thread.
+     *
+     * @param batch The journaled commands keyed by path.
+     */
+    private void flushWrites(Map<String, Object> batch) {
+        if (!connected) {
+            Log.d(TAG, "Offline, " + batch.size() + " writes wait in the journal");
+            return;
         }
+        ArrayList<CommandJournal.Command> commands = new ArrayList<>();
+        for (Object command : batch.values()) {
+            commands.add((CommandJournal.Command) command);
+        }
+        sendCommands(commands, false);
+    }
 
-        // Iterate over the entry set in localDataCopy
-        for (Map.Entry<String, HashMap<String, Object>> entry : localDataCopy.entrySet()) {
-            Room room = new Room();
-            HashMap<String, Object> val = entry.getValue();
-            room.id = entry.getKey();
-            try {
-                room.name = Objects.requireNonNull(val.get("room_name")).toString();
-            } catch (Exception err) {
-                room.name = "Unnamed room";
+    /**
+     * Send commands as one multi-path update, then confirm or roll back their optimistic values
+     * once the server answers. Runs on the main thread.
+     *
+     * @param commands The commands, at distinct paths none of which is below another.
+     * @param replay   Whether the commands are replayed from the journal after reconnecting.
+     */
+    private void sendCommands(List<CommandJournal.Command> commands, boolean replay) {
+        long now = SystemClock.elapsedRealtime();
+        HashMap<String, Object> values = new HashMap<>();
+        for (CommandJournal.Command command : commands) {
+            values.put(command.path, command.value);
+            flushedAtMs.put(command.path, now);
+        }
+        backend.update(values, (success, error) -> {
+            long ackedAt = SystemClock.elapsedRealtime();
+            for (String path : values.keySet()) {
+                Long flushedAt = flushedAtMs.remove(path);
+                if (!success || flushedAt == null) continue;
+                ackCount++;
+                ackTotalMs += ackedAt - flushedAt;
             }
-            try {
-                room.devices_count = Integer.valueOf(((HashMap) val.get("devices_map")).size()).toString();
-            } catch (Exception err) {
-                room.devices_count = "0";
+            if (!success && !connected) {
+                // Lost on the way rather than rejected: keep the values shown and journaled for the replay
+                Log.d(TAG, "Write of " + values.size() + " paths failed offline, keeping it journaled: " + error);
+                return;
             }
-            // Add the Room object to the ArrayList
-            roomsList.add(room);
+            if (!success) Log.e(TAG, "Write of " + values.size() + " paths rejected, rolling back: " + error);
+            if (success && replay) {
+                replayedWrites += values.size();
+                Log.d(TAG, "Replayed " + values.size() + " journaled writes in one update (" + replayedWrites + " in total)");
+            }
+            syncExecutor.execute(() -> settleCommands(commands, success));
+        });
+    }
+
+    /**
+     * Fold acknowledged writes into the confirmed state, or roll rejected ones back, and mark
+     * the commands done in the journal either way. Runs on syncExecutor.
+     *
+     * @param commands The commands of one update.
+     * @param success  Whether the server accepted the update.
+     */
+    private void settleCommands(List<CommandJournal.Command> commands, boolean success) {
+        for (CommandJournal.Command command : commands) {
+            journal.done(command);
+            if (command.write == null) continue;
+            if (!success) shadows.cancel(command.write.deviceId, command.write.key, command.write.value);
+            Device shown = success ? pendingWrites.ack(command.write) : pendingWrites.reject(command.write);
+            showDevice(command.write.roomId, shown);
         }
+        scheduleJournalSync();
+    }
 
-        // Return the ArrayList of Room objects
-        return roomsList;
+    /**
+     * Track the connection, and replay the journal each time the server becomes reachable.
+     * Runs on the main thread.
+     *
+     * @param reachable Whether the backend is connected.
+     */
+    private void onConnectionChanged(boolean reachable) {
+        boolean wasConnected = connected;
+        connected = reachable;
+        if (reachable && !wasConnected) syncExecutor.execute(this::replayJournal);
     }
 
     /**
-     * Get a list of devices for a specific room.
+     * Send every journaled command that is not waiting in the coalescer as one update.
+     * Commands already in flight when the connection dropped are sent again; the values are the
+     * latest per path, so sending them twice is harmless. Runs on syncExecutor.
+     */
+    private void replayJournal() {
+        ArrayList<CommandJournal.Command> commands = new ArrayList<>();
+        ArrayList<CommandJournal.Command> applied = new ArrayList<>();
+        for (CommandJournal.Command command : journal.pending()) {
+            if (writeCoalescer.isPending(command.path)) continue;
+            if (isApplied(command)) applied.add(command);
+            else commands.add(command);
+        }
+        // The server and the device both have these already, e.g. the acknowledgement was lost with the connection
+        if (!applied.isEmpty()) {
+            Log.d(TAG, "Skipping " + applied.size() + " journaled writes the devices already applied");
+            settleCommands(applied, true);
+        }
+        if (commands.isEmpty()) return;
+        mainHandler.post(() -> {
+            if (connected) sendCommands(commands, true);
+        });
+    }
+
+    /**
+     * Check whether a journaled controllable write is already stored on the server and reported
+     * by its device, so sending it again would change nothing. Runs on syncExecutor.
      *
-     * @param roomId The ID of the room.
-     * @return The list of Device objects.
+     * @param command The journaled command.
+     * @return True if both the desired and the reported state hold the command's value.
      */
-    public ArrayList<Device> getDevicesList(String roomId) {
-        // Create an ArrayList to store Device objects
-        ArrayList<Device> devicesList = new ArrayList<>();
+    private boolean isApplied(CommandJournal.Command command) {
+        // rooms/<roomId>/devices_map/<deviceId>/controllable/<key>
+        String[] parts = command.path.split("/");
+        if (parts.length != 6 || !parts[4].equals("controllable") || command.value == null) return false;
+        String roomId = parts[1];
+        String deviceId = parts[3];
+        String key = parts[5];
+        if (!shadows.hasApplied(deviceId, key, command.value)) return false;
+        Room room = snapshotRef.get().room(roomId);
+        Device confirmed = pendingWrites.confirmed(roomId, deviceId, room == null ? null : room.device(deviceId));
+        return confirmed != null && confirmed.controllable.containsKey(key) && sameValue(confirmed.controllable.get(key), command.value);
+    }
 
-        // If localDataCopy is null, fetch the data and return an empty array
-        if (localDataCopy.isEmpty()) {
-            fetchData();
-            return devicesList;
+    /**
+     * Take in the state a device reports, converging the commands it confirms. Runs on syncExecutor.
+     *
+     * @param deviceId The ID of the device.
+     * @param reported The reported values keyed by controllable key.
+     */
+    private void onReported(String deviceId, Map<String, Object> reported) {
+        int before = shadows.unconvergedCount();
+        for (DeviceShadows.Command command : shadows.report(deviceId, reported)) {
+            logEvent(EventLog.REPORTED, deviceId, command.key, command.value);
+            Log.d(TAG, "Command converged after " + command.ageMs() + " ms: " + command);
         }
-        try {
-            HashMap<String, HashMap<String, Object>> devicesMap = (HashMap<String, HashMap<String, Object>>) localDataCopy.get(roomId).get("devices_map");
-            if (devicesMap == null || devicesMap.isEmpty()) {
-                return devicesList;
-            }
-            // Iterate over the entry set in roomData
-            for (Map.Entry<String, HashMap<String, Object>> entry : devicesMap.entrySet()) {
-                HashMap<String, Object> val = entry.getValue();
-                Device device = new Device();
-                device.id = entry.getKey();
-                device.name = val.get("device_name").toString();
-                device.data = "sensors: " + val.get("sensors").toString() + "\n"
-                        + "controllable: " + val.get("controllable").toString();
+        // Nothing left to wait for, so the reported listener may go if nothing else is watched
+        if (before > 0 && shadows.unconvergedCount() == 0) mainHandler.post(this::updateListeners);
+    }
 
-                // Add the Device object to the ArrayList
-                devicesList.add(device);
+    /**
+     * Check for expired commands every COMMAND_TIMEOUT_MS while any are waiting, so each expires
+     * within twice the timeout.
+     */
+    private void scheduleCommandExpiry() {
+        if (!expiryPending.compareAndSet(false, true)) return;
+        mainHandler.postDelayed(() -> syncExecutor.execute(() -> {
+            expiryPending.set(false);
+            for (DeviceShadows.Command command : shadows.expire()) {
+                Log.w(TAG, "Command not confirmed by the device, giving up: " + command);
             }
-        } catch (Exception err) {
-            Log.e("DataManager", "weird data");
+            if (shadows.unconvergedCount() > 0) scheduleCommandExpiry();
+            // Nothing left to wait for, so the reported listener may go if nothing else is watched
+            else mainHandler.post(this::updateListeners);
+        }), DeviceShadows.COMMAND_TIMEOUT_MS);
+    }
+
+    /**
+     * Fsync the journal shortly after appends, so a burst of commands costs one fsync.
+     */
+    private void scheduleJournalSync() {
+        if (!journalSyncPending.compareAndSet(false, true)) return;
+        mainHandler.postDelayed(() -> syncExecutor.execute(() -> {
+            journalSyncPending.set(false);
+            journal.sync();
+        }), JOURNAL_SYNC_DELAY_MS);
+    }
+
+    /**
+     * Get the number of writes replayed from the journal after the connection came back.
+     *
+     * @return The count.
+     */
+    public long getReplayedWrites() {
+        return replayedWrites;
+    }
+
+    /**
+     * Put a locally derived version of a device into the snapshot.
+     * Runs on syncExecutor.
+     *
+     * @param roomId The ID of the room.
+     * @param device The device, or null to leave the snapshot alone.
+     */
+    private void showDevice(String roomId, Device device) {
+        if (device == null) return;
+        HomeSnapshot current = snapshotRef.get();
+        Room room = current.room(roomId);
+        if (room == null) return;
+        Room next = room.withDevice(device);
+        if (next != room) publishRoom(current, next);
+    }
+
+    /**
+     * Time requested controllable values from setDevice until the UI is told about them.
+     *
+     * @param changes The changes of this dispatch.
+     */
+    private void recordControlLatency(List<HomeChange> changes) {
+        if (requestedAtMs.isEmpty()) return;
+        for (HomeChange change : changes) {
+            if (!(change instanceof HomeChange.ControllableChanged)) continue;
+            Long requestedAt = requestedAtMs.remove(change.path());
+            if (requestedAt == null) continue;
+            controlCount++;
+            controlTotalMs += SystemClock.elapsedRealtime() - requestedAt;
         }
+    }
+
+    /**
+     * Get the average time from setDevice until the device list shows the new value.
+     * With optimistic writes this is about one frame, whatever the backend.
+     *
+     * @return The average in milliseconds, or 0 if no write was shown yet.
+     */
+    public double getControlLatencyMs() {
+        return controlCount == 0 ? 0 : (double) controlTotalMs / controlCount;
+    }
 
-        // Return the ArrayList of Device objects
-        return devicesList;
+    /**
+     * Get the average time from sending a write until the server acknowledges it.
+     * This is the sync latency used to compare backends.
+     *
+     * @return The average in milliseconds, or 0 if no write was acknowledged yet.
+     */
+    public double getWriteAckMs() {
+        return ackCount == 0 ? 0 : (double) ackTotalMs / ackCount;
     }
 
     /**
-     * Get data as a JSON object.
+     * Register a callback for changes under a path pattern. Must be called on the main thread.
+     * Patterns use database paths relative to the rooms branch, e.g. "roomId" or
+     * "roomId/devices_map/deviceId"; "*" matches any room or device ID.
      *
-     * @return The data as a JSON object.
+     * @param pattern            The path pattern; "" is the whole home.
+     * @param includeDescendants Whether changes below the pattern should trigger the callback too.
+     * @param cb                 The callback function.
+     * @return The subscription that unregisters the callback.
      */
-    public JSONObject getDataAsJson() {
-        return new JSONObject(localDataCopy);
+    public Subscription observe(String pattern, boolean includeDescendants, OnDataChanged cb) {
+        return once(changeRegistry.register(pattern, includeDescendants, cb)::unsubscribe);
     }
 
     /**
-     * Fetch data from Firebase Realtime Database.
+     * Register a callback receiving the typed changes of every dispatch. Must be called on the main thread.
+     *
+     * @param cb The callback function.
+     * @return The subscription that unregisters the callback.
      */
-    private void fetchData() {
-        this.dbRef.get().addOnCompleteListener(task -> {
-            if (task.isSuccessful()) {
-                DataSnapshot snapshot = task.getResult();
-                if (snapshot.exists()) {
-                    syncLocalData(snapshot);
-                }
+    public Subscription observeChanges(OnHomeChanges cb) {
+        changeObservers.add(cb);
+        return once(() -> changeObservers.remove(cb));
+    }
+
+    /**
+     * Tie a subscription to a lifecycle: it is unsubscribed when the owner is destroyed.
+     * For fragments, pass getViewLifecycleOwner() so it ends with the view.
+     *
+     * @param owner        The lifecycle owner.
+     * @param subscription The subscription.
+     * @return The same subscription, which may still be unsubscribed earlier.
+     */
+    public static Subscription bindTo(LifecycleOwner owner, Subscription subscription) {
+        owner.getLifecycle().addObserver(new LifecycleEventObserver() {
+            @Override
+            public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+                if (event != Lifecycle.Event.ON_DESTROY) return;
+                source.getLifecycle().removeObserver(this);
+                subscription.unsubscribe();
             }
         });
+        return subscription;
+    }
+
+    /**
+     * Get the average main-thread time spent per sync.
+     *
+     * @return The average in milliseconds, or 0 if no sync has run yet.
+     */
+    public double getMainThreadMsPerSync() {
+        long count = syncCount.get();
+        if (count == 0) return 0;
+        return mainThreadSyncMicros.get() / 1000.0 / count;
+    }
+
+    /**
+     * Get the sensor history. Safe to query from any thread.
+     *
+     * @return The SensorHistory.
+     */
+    public SensorHistory getSensorHistory() {
+        return sensorHistory;
+    }
+
+    /**
+     * Get the persistent sensor archive. Safe to query from any thread.
+     *
+     * @return The SensorArchive, or null if init() was not called or it is still opening.
+     */
+    public SensorArchive getSensorArchive() {
+        return sensorArchive;
+    }
+
+    /**
+     * Set the byte budget for the devices kept resident by rooms nobody is watching.
+     * Watched rooms always keep their devices, even beyond the budget.
+     *
+     * @param bytes The budget in bytes.
+     */
+    public void setRoomCacheBudgetBytes(long bytes) {
+        syncExecutor.execute(() -> {
+            roomCache.setBudgetBytes(bytes);
+            trimRooms();
+        });
+    }
+
+    /**
+     * Get the estimated heap held by the devices in the snapshot.
+     *
+     * @return The size in bytes.
+     */
+    public long getResidentDeviceBytes() {
+        return roomCache.residentBytes();
+    }
+
+    /**
+     * Get the number of times a room's devices were dropped to stay within the budget.
+     *
+     * @return The count.
+     */
+    public long getRoomEvictions() {
+        return roomCache.evictions();
+    }
+
+    /**
+     * Get the number of times an evicted room had to load its devices again.
+     *
+     * @return The count.
+     */
+    public long getRoomReloads() {
+        return roomCache.reloads();
+    }
+
+    /**
+     * Get the current home snapshot.
+     * Safe to call from any thread; the returned snapshot is immutable.
+     *
+     * @return The immutable HomeSnapshot.
+     */
+    public HomeSnapshot getSnapshot() {
+        return snapshotRef.get();
+    }
+
+    /**
+     * Get a list of rooms.
+     * The list is precomputed by the snapshot, so this call does not allocate.
+     *
+     * @return The unmodifiable list of Room objects.
+     */
+    public List<Room> getRoomsList() {
+        return snapshotRef.get().rooms;
+    }
+
+    /**
+     * Get a list of devices for a specific room.
+     * The list is precomputed by the snapshot, so this call does not allocate.
+     * Devices are only loaded while the room is subscribed, and may be evicted afterwards.
+     *
+     * @param roomId The ID of the room.
+     * @return The unmodifiable list of Device objects, empty if the room is unknown or not loaded.
+     */
+    public List<Device> getDevicesList(String roomId) {
+        Room room = snapshotRef.get().room(roomId);
+        if (room == null) return Collections.emptyList();
+        return room.devices;
+    }
+
+    /**
+     * Get data as a JSON object.
+     *
+     * @return The data as a JSON object.
+     */
+    public JSONObject getDataAsJson() {
+        try {
+            return snapshotRef.get().toJson();
+        } catch (JSONException e) {
+            Log.e(TAG, "JSON Exception: " + e.getMessage());
+            return new JSONObject();
+        }
     }
 
     /**
@@ -228,7 +1639,7 @@ public class DataManager {
     public void addRoom(String roomName) {
         HashMap<String, Object> updateMap = new HashMap<>();
         updateMap.put("room_name", roomName);
-        dbRef.push().setValue(updateMap);
+        backend.push(ROOMS_PATH, updateMap);
     }
 
     /**
@@ -237,24 +1648,69 @@ public class DataManager {
      * @param roomId The ID of the room to remove.
      */
     public void removeRoom(String roomId) {
-        if (roomsCount < 2) {
-            // If the current roomsCount is exactly 1, the next room deletion will cause the whole dbRef to disappear.
-            // Thus, it won't trigger the value event listener to refresh the UI (no more room).
-            // Handle this case by clearing the localDataCopy and then executing onDataChanged manually.
-            dbRef.child(roomId).removeValue().addOnCompleteListener(
-                    task -> {
-                        if (task.isSuccessful()) {
-                            this.localDataCopy.clear();
-                            onDataChanged.apply();
-                        }
-                    }
-            );
-        } else {
-            // Otherwise, just fire removeValue; the result will be handled by the value event listener.
-            dbRef.child(roomId).removeValue();
+        logEvent(EventLog.REMOVE_ROOM, roomId, null, null);
+        Room room = snapshotRef.get().room(roomId);
+        HashSet<String> deviceIds = new HashSet<>();
+        if (room != null) {
+            for (Device device : room.devices) deviceIds.add(device.id);
+            if (deviceIds.size() >= room.deviceCount) {
+                removeRoomNodes(roomId, deviceIds);
+                return;
+            }
+        }
+
+        // The room's devices are not all resident (e.g. evicted by the room cache): read their IDs
+        // from the backend first, so their telemetry and reported nodes are not orphaned
+        AtomicReference<HomeBackend.Registration> registration = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean(false);
+        HomeBackend.ChildListener listener = new HomeBackend.ChildListener() {
+            @Override
+            public void onChildPut(HomeBackend.Node child) {}
+
+            @Override
+            public void onChildRemoved(String key) {}
+
+            @Override
+            public void onInitialLoaded(Set<String> keys) {
+                if (done.getAndSet(true)) return;
+                HomeBackend.Registration current = registration.getAndSet(null);
+                if (current != null) current.remove();
+                deviceIds.addAll(keys);
+                removeRoomNodes(roomId, deviceIds);
+            }
+
+            @Override
+            public void onCancelled(String reason) {
+                if (done.getAndSet(true)) return;
+                Log.e(TAG, "Cannot read the devices of room " + roomId + ": " + reason);
+                registration.set(null);
+                removeRoomNodes(roomId, deviceIds);
+            }
+        };
+        registration.set(backend.addChildListener(configPath(roomId + "/devices_map"), listener));
+        // The listener may have finished before its registration was returned
+        if (done.get()) {
+            HomeBackend.Registration current = registration.getAndSet(null);
+            if (current != null) current.remove();
         }
     }
 
+    /**
+     * Queue the removal of a room's configuration and of the telemetry and reported state of
+     * its devices, which are keyed by device.
+     *
+     * @param roomId    The ID of the room.
+     * @param deviceIds The IDs of every device of the room.
+     */
+    private void removeRoomNodes(String roomId, Set<String> deviceIds) {
+        for (String deviceId : deviceIds) {
+            queueRemoval(TELEMETRY_PATH + "/" + deviceId);
+            queueRemoval(REPORTED_PATH + "/" + deviceId);
+        }
+        // The rooms listener reports the removal, including the last room, through onChildRemoved
+        queueRemoval(configPath(roomId));
+    }
+
     /**
      * Remove a device from a specific room in the database.
      *
@@ -262,20 +1718,118 @@ public class DataManager {
      * @param deviceId The ID of the device to remove.
      */
     public void removeDevice(String roomId, String deviceId) {
-        dbRef.child(roomId).child("devices_map").child(deviceId).removeValue();
+        logEvent(EventLog.REMOVE_DEVICE, deviceId, null, roomId);
+        queueRemoval(configPath(devicePath(roomId, deviceId)));
+        queueRemoval(TELEMETRY_PATH + "/" + deviceId);
+        queueRemoval(REPORTED_PATH + "/" + deviceId);
+    }
+
+    /**
+     * Journal a removal and send it with the next batch of writes, or on reconnect.
+     * Queued writes below the path are dropped.
+     *
+     * @param path The database path to remove.
+     */
+    private void queueRemoval(String path) {
+        syncExecutor.execute(() -> {
+            CommandJournal.Command command = journal.append(path, null, null);
+            if (command != null) writeCoalescer.put(path, command);
+            scheduleJournalSync();
+        });
+    }
+
+    /**
+     * Set the window in which repeated writes to the same device path are coalesced.
+     *
+     * @param windowMs The window in milliseconds; 0 sends on the next main-thread turn.
+     */
+    public void setWriteCoalesceWindowMs(long windowMs) {
+        writeCoalescer.setWindowMs(windowMs);
     }
 
     /**
      * Set device data in a specific room in the database.
+     * The new values are shown at once and confirmed or rolled back when the server answers.
+     * All keys go out in one multi-path update; repeated writes to the same key within the
+     * coalescing window keep only the last value, and values the server already has are not sent
+     * at all. Writes are journaled until the server accepts them; while offline they wait in the
+     * journal and are replayed together on reconnect. May be called from any thread.
      *
      * @param roomId         The ID of the room.
      * @param deviceId       The ID of the device.
      * @param dataToUpdate   The data to update.
      */
     public void setDevice(String roomId, String deviceId, Map<String, Object> dataToUpdate) {
-        DatabaseReference deviceRef = dbRef.child(roomId).child("devices_map").child(deviceId).child("controllable");
+        long now = SystemClock.elapsedRealtime();
+        String basePath = devicePath(roomId, deviceId) + "/controllable/";
         for (String key : dataToUpdate.keySet()) {
-            deviceRef.child(key).setValue(dataToUpdate.get(key));
+            requestedAtMs.put(basePath + key, now);
+        }
+        HashMap<String, Object> data = new HashMap<>(dataToUpdate);
+        syncExecutor.execute(() -> applyWrites(roomId, deviceId, data));
+    }
+
+    /**
+     * Queue writes and apply them to the snapshot optimistically.
+     * Runs on syncExecutor, so it is ordered with server events.
+     *
+     * @param roomId   The ID of the room.
+     * @param deviceId The ID of the device.
+     * @param data     The controllable values to write.
+     */
+    private void applyWrites(String roomId, String deviceId, Map<String, Object> data) {
+        Room room = snapshotRef.get().room(roomId);
+        Device shown = room == null ? null : room.device(deviceId);
+        Device confirmed = pendingWrites.confirmed(roomId, deviceId, shown);
+        String basePath = configPath(devicePath(roomId, deviceId)) + "/controllable/";
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            String key = entry.getKey();
+            String path = basePath + key;
+            boolean serverHasIt = confirmed != null
+                    && confirmed.controllable.containsKey(key)
+                    && sameValue(confirmed.controllable.get(key), entry.getValue());
+            boolean queued = writeCoalescer.isPending(path);
+            if (serverHasIt && (queued || !pendingWrites.has(roomId, deviceId, key))) {
+                // Restoring the confirmed value before anything was sent means sending nothing
+                if (queued) {
+                    writeCoalescer.cancel(path);
+                    journal.discard(path);
+                    // Never sent, so the device will not report it
+                    shadows.cancel(deviceId, key);
+                }
+                Device next = pendingWrites.drop(roomId, deviceId, key);
+                if (next != null) shown = next;
+                continue;
+            }
+            PendingWrites.Write write = new PendingWrites.Write(pendingWrites.nextSeq(), roomId, deviceId, key, entry.getValue());
+            CommandJournal.Command command = journal.append(path, entry.getValue(), write);
+            // Moot if the device or its room is already queued for removal
+            if (command == null) continue;
+            logEvent(EventLog.WRITE, deviceId, key, entry.getValue());
+            boolean firstUnconverged = shadows.unconvergedCount() == 0;
+            shadows.write(deviceId, key, entry.getValue());
+            // Keeps the reported listener attached until the device confirms, even if its room is closed
+            if (firstUnconverged) mainHandler.post(this::updateListeners);
+            scheduleCommandExpiry();
+            writeCoalescer.put(path, command);
+            Device next = pendingWrites.add(write, shown);
+            if (next != null) shown = next;
+        }
+        showDevice(roomId, shown);
+        scheduleJournalSync();
+    }
+
+    /**
+     * Compare two database values, treating numbers by value (Long 1 equals Double 1.0).
+     *
+     * @param a The first value.
+     * @param b The second value.
+     * @return True if both represent the same value.
+     */
+    static boolean sameValue(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
         }
+        return Objects.equals(a, b);
     }
 }
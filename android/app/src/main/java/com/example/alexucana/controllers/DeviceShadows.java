@@ -0,0 +1,369 @@
+/**
+ * DeviceShadows: Desired and reported state of every device, and how long commands take to land.
+ *
+ * The desired state is what the app wrote to a device's controllable values; the reported state
+ * is what the device says it applied, under reported/<deviceId>. Every write is a command with
+ * its own ID. A command converges when the device reports its value, and the time from the write
+ * to that report goes into the device's latency histogram. A newer command to the same key
+ * supersedes an older one that has not converged yet. A command the device has not confirmed
+ * within COMMAND_TIMEOUT_MS expires and is counted as timed out, e.g. a key the firmware never
+ * reports or a device that is offline.
+ *
+ * Histograms have 72 logarithmic buckets, four per doubling from 1 ms to about 4.4 minutes, past
+ * the command timeout, and one overflow bucket above that. A percentile is exact to within 19%,
+ * or reported as over the range, and a histogram costs 584 bytes per device whatever the number
+ * of commands.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.os.SystemClock;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The DeviceShadows class tracks commands per device and key. All methods are synchronized;
+ * commands and reports are fed on DataManager's sync thread.
+ */
+public class DeviceShadows {
+
+    // How long a command may wait for the device before it expires
+    public static final long COMMAND_TIMEOUT_MS = 2 * 60 * 1000;
+
+    // Buckets up to 2^18 ms, then one for anything slower
+    private static final int BUCKETS = 72;
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int OVERFLOW_BUCKET = BUCKETS;
+
+    /**
+     * One command written to a device.
+     */
+    public static final class Command {
+        public final long id;
+        public final String deviceId;
+        public final String key;
+        public final Object value;
+
+        // When the command was written, in elapsed realtime
+        public final long writtenAtMs;
+
+        Command(long id, String deviceId, String key, Object value, long writtenAtMs) {
+            this.id = id;
+            this.deviceId = deviceId;
+            this.key = key;
+            this.value = value;
+            this.writtenAtMs = writtenAtMs;
+        }
+
+        /**
+         * Get how long the command has been waiting for the device.
+         *
+         * @return The age in milliseconds.
+         */
+        public long ageMs() {
+            return SystemClock.elapsedRealtime() - writtenAtMs;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + id + " " + deviceId + "/" + key + "=" + value + " (" + ageMs() + " ms)";
+        }
+    }
+
+    /**
+     * Latency percentiles of the commands of one device.
+     */
+    public static final class Latency {
+        // A percentile slower than the histogram's range
+        public static final long OVER_RANGE_MS = Long.MAX_VALUE;
+
+        public final long count;
+        public final long p50Ms;
+        public final long p95Ms;
+        public final long p99Ms;
+
+        // Commands that expired before the device confirmed them; not part of the percentiles
+        public final long timedOut;
+
+        Latency(long count, long p50Ms, long p95Ms, long p99Ms, long timedOut) {
+            this.count = count;
+            this.p50Ms = p50Ms;
+            this.p95Ms = p95Ms;
+            this.p99Ms = p99Ms;
+            this.timedOut = timedOut;
+        }
+
+        @Override
+        public String toString() {
+            return count + " commands, p50 " + format(p50Ms) + ", p95 " + format(p95Ms) + ", p99 " + format(p99Ms)
+                    + ", " + timedOut + " timed out";
+        }
+
+        private static String format(long ms) {
+            return ms == OVER_RANGE_MS ? "> " + upperBoundOf(BUCKETS - 1) + " ms" : ms + " ms";
+        }
+    }
+
+    /**
+     * The shadow of one device.
+     */
+    private static final class Shadow {
+        final HashMap<String, Object> desired = new HashMap<>();
+        final HashMap<String, Object> reported = new HashMap<>();
+        final HashMap<String, Command> unconverged = new HashMap<>();
+        final long[] histogram = new long[BUCKETS + 1];
+        long converged = 0;
+        long timedOut = 0;
+        long lastWrittenAtMs = 0;
+    }
+
+    private final HashMap<String, Shadow> shadows = new HashMap<>();
+    private long lastId = 0;
+    private int unconvergedCount = 0;
+
+    /**
+     * Record a command written to a device.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The controllable key.
+     * @param value    The value written.
+     * @return The command.
+     */
+    public synchronized Command write(String deviceId, String key, Object value) {
+        Shadow shadow = shadow(deviceId);
+        Command command = new Command(++lastId, deviceId, key, value, SystemClock.elapsedRealtime());
+        shadow.desired.put(key, value);
+        shadow.lastWrittenAtMs = command.writtenAtMs;
+        // An older command to the key that has not converged is superseded and never converges
+        if (shadow.unconverged.put(key, command) == null) unconvergedCount++;
+        return command;
+    }
+
+    /**
+     * Record the state a device reports, converging the commands it confirms.
+     *
+     * @param deviceId The ID of the device.
+     * @param reported The reported values keyed by controllable key.
+     * @return The commands that converged.
+     */
+    public synchronized List<Command> report(String deviceId, Map<String, Object> reported) {
+        Shadow shadow = shadow(deviceId);
+        shadow.reported.clear();
+        shadow.reported.putAll(reported);
+        if (shadow.unconverged.isEmpty()) return Collections.emptyList();
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<Command> converged = new ArrayList<>();
+        Iterator<Command> it = shadow.unconverged.values().iterator();
+        while (it.hasNext()) {
+            Command command = it.next();
+            if (!reported.containsKey(command.key) || !DataManager.sameValue(reported.get(command.key), command.value)) continue;
+            it.remove();
+            unconvergedCount--;
+            shadow.histogram[bucketOf(now - command.writtenAtMs)]++;
+            shadow.converged++;
+            converged.add(command);
+        }
+        return converged;
+    }
+
+    /**
+     * Expire the commands that have waited longer than COMMAND_TIMEOUT_MS, so a command the device
+     * never confirms does not keep the reported listener attached forever.
+     *
+     * @return The commands that expired.
+     */
+    public synchronized List<Command> expire() {
+        if (unconvergedCount == 0) return Collections.emptyList();
+        long cutoff = SystemClock.elapsedRealtime() - COMMAND_TIMEOUT_MS;
+        ArrayList<Command> expired = new ArrayList<>();
+        for (Shadow shadow : shadows.values()) {
+            Iterator<Command> it = shadow.unconverged.values().iterator();
+            while (it.hasNext()) {
+                Command command = it.next();
+                if (command.writtenAtMs > cutoff) continue;
+                it.remove();
+                unconvergedCount--;
+                shadow.timedOut++;
+                expired.add(command);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Check whether a device already reports a value, e.g. before sending it again.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The controllable key.
+     * @param value    The value.
+     * @return True if the device reported applying exactly this value.
+     */
+    public synchronized boolean hasApplied(String deviceId, String key, Object value) {
+        Shadow shadow = shadows.get(deviceId);
+        return shadow != null && shadow.reported.containsKey(key) && DataManager.sameValue(shadow.reported.get(key), value);
+    }
+
+    /**
+     * Drop the unconfirmed command to a key if it carries a value the server rejected.
+     * A newer command to the key, with another value, stays.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The controllable key.
+     * @param value    The rejected value.
+     */
+    public synchronized void cancel(String deviceId, String key, Object value) {
+        Shadow shadow = shadows.get(deviceId);
+        Command command = shadow == null ? null : shadow.unconverged.get(key);
+        if (command == null || !DataManager.sameValue(command.value, value)) return;
+        shadow.unconverged.remove(key);
+        unconvergedCount--;
+    }
+
+    /**
+     * Drop the unconfirmed command to a key, e.g. because it was cancelled before being sent.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The controllable key.
+     */
+    public synchronized void cancel(String deviceId, String key) {
+        Shadow shadow = shadows.get(deviceId);
+        if (shadow == null || shadow.unconverged.remove(key) == null) return;
+        unconvergedCount--;
+    }
+
+    /**
+     * Forget a removed device, including its unconverged commands.
+     *
+     * @param deviceId The ID of the device.
+     */
+    public synchronized void forget(String deviceId) {
+        Shadow shadow = shadows.remove(deviceId);
+        if (shadow != null) unconvergedCount -= shadow.unconverged.size();
+    }
+
+    /**
+     * Get the commands the devices have not confirmed yet, oldest first.
+     *
+     * @return The commands.
+     */
+    public synchronized List<Command> unconverged() {
+        ArrayList<Command> commands = new ArrayList<>();
+        for (Shadow shadow : shadows.values()) {
+            commands.addAll(shadow.unconverged.values());
+        }
+        Collections.sort(commands, (a, b) -> Long.compare(a.id, b.id));
+        return commands;
+    }
+
+    /**
+     * Get the number of commands the devices have not confirmed yet.
+     *
+     * @return The count.
+     */
+    public synchronized int unconvergedCount() {
+        return unconvergedCount;
+    }
+
+    /**
+     * Get the desired state of a device: the last value written per key.
+     *
+     * @param deviceId The ID of the device.
+     * @return A copy of the values keyed by controllable key.
+     */
+    public synchronized Map<String, Object> desired(String deviceId) {
+        Shadow shadow = shadows.get(deviceId);
+        return shadow == null ? Collections.emptyMap() : new HashMap<>(shadow.desired);
+    }
+
+    /**
+     * Get the reported state of a device.
+     *
+     * @param deviceId The ID of the device.
+     * @return A copy of the values keyed by controllable key.
+     */
+    public synchronized Map<String, Object> reported(String deviceId) {
+        Shadow shadow = shadows.get(deviceId);
+        return shadow == null ? Collections.emptyMap() : new HashMap<>(shadow.reported);
+    }
+
+    /**
+     * Get when devices were last written to, e.g. to rank recently used devices first.
+     *
+     * @return The elapsed realtime of the last command, keyed by the IDs of devices written to.
+     */
+    public synchronized Map<String, Long> lastWrittenAtMs() {
+        HashMap<String, Long> times = new HashMap<>();
+        for (Map.Entry<String, Shadow> entry : shadows.entrySet()) {
+            if (entry.getValue().lastWrittenAtMs > 0) times.put(entry.getKey(), entry.getValue().lastWrittenAtMs);
+        }
+        return times;
+    }
+
+    /**
+     * Get the convergence latency of a device's commands.
+     *
+     * @param deviceId The ID of the device.
+     * @return The percentiles, OVER_RANGE_MS past the histogram; all 0 if no command converged yet.
+     */
+    public synchronized Latency latency(String deviceId) {
+        Shadow shadow = shadows.get(deviceId);
+        if (shadow == null) return new Latency(0, 0, 0, 0, 0);
+        if (shadow.converged == 0) return new Latency(0, 0, 0, 0, shadow.timedOut);
+        return new Latency(shadow.converged, percentile(shadow, 0.50), percentile(shadow, 0.95), percentile(shadow, 0.99),
+                shadow.timedOut);
+    }
+
+    /**
+     * Get the convergence latency of every device with converged commands, slowest p95 first,
+     * so slow nodes come out on top.
+     *
+     * @return The percentiles keyed by device ID.
+     */
+    public synchronized List<Map.Entry<String, Latency>> slowest() {
+        ArrayList<Map.Entry<String, Latency>> entries = new ArrayList<>();
+        for (String deviceId : shadows.keySet()) {
+            Latency latency = latency(deviceId);
+            if (latency.count > 0) entries.add(new AbstractMap.SimpleImmutableEntry<>(deviceId, latency));
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(b.getValue().p95Ms, a.getValue().p95Ms));
+        return entries;
+    }
+
+    private Shadow shadow(String deviceId) {
+        Shadow shadow = shadows.get(deviceId);
+        if (shadow == null) {
+            shadow = new Shadow();
+            shadows.put(deviceId, shadow);
+        }
+        return shadow;
+    }
+
+    /**
+     * Get the upper bound of the bucket holding a percentile, or OVER_RANGE_MS for the overflow bucket.
+     */
+    private static long percentile(Shadow shadow, double fraction) {
+        long rank = (long) Math.ceil(fraction * shadow.converged);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += shadow.histogram[i];
+            if (seen >= rank) return upperBoundOf(i);
+        }
+        return Latency.OVER_RANGE_MS;
+    }
+
+    private static int bucketOf(long ms) {
+        if (ms <= 1) return 0;
+        int bucket = (int) Math.ceil(Math.log(ms) / Math.log(2) * BUCKETS_PER_DOUBLING);
+        return Math.min(bucket, OVERFLOW_BUCKET);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        return Math.round(Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING));
+    }
+}
@@ -0,0 +1,439 @@
+/**
+ * EventLog: Append-only, memory-mapped log of everything that happened to a home.
+ *
+ * DataManager records every change applied to the local snapshot, every outgoing write and
+ * removal, and every function call of the assistant. Each record carries a timestamp that never
+ * goes backwards, so the log is sorted by time.
+ *
+ * Layout of events.log (big-endian), after a 16-byte header of magic, version, used bytes and the
+ * offset of the last index block:
+ *   record:      int length, long timeMs, byte kind, str subject, str key, byte type, value
+ *   index block: int length, long maxTimeMs, byte 0, long minTimeMs, int stretchStart,
+ *                int previousIndex, long[4] bloom
+ * where str is a short char count (-1 for null) followed by UTF-16 chars, and value follows
+ * SnapshotStore's types. An index block closes every INDEX_INTERVAL records and describes the
+ * stretch before it: its time range and a Bloom filter of its subjects. A query walks the index
+ * blocks backwards and only reads the stretches that can hold its subject and time range.
+ *
+ * Recording a reading writes its fields straight into the mapping and allocates nothing, so it
+ * can sit on the sync thread's hot path. The file rolls over to events.1.log at MAX_FILE_BYTES.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The EventLog class appends events to disk and answers per-subject range queries.
+ * All methods are synchronized; most records are appended on the sync thread.
+ */
+public class EventLog {
+
+    public static final String TAG = EventLog.class.getSimpleName();
+
+    // Event kinds. Snapshot changes: the subject is the room or device ID.
+    public static final byte ROOM_PUT = 1;
+    public static final byte ROOM_REMOVED = 2;
+    public static final byte DEVICE_PUT = 3;
+    public static final byte DEVICE_REMOVED = 4;
+    public static final byte CONTROLLABLE = 5;
+    public static final byte SENSOR = 6;
+    // Outgoing commands: the subject is the device or room ID
+    public static final byte WRITE = 7;
+    public static final byte REMOVE_DEVICE = 8;
+    public static final byte REMOVE_ROOM = 9;
+    // Assistant function calls: the subject is the function name and the value its arguments
+    public static final byte FUNCTION_CALL = 10;
+    // Device reports: the subject is the device ID and the value what it applied
+    public static final byte REPORTED = 11;
+
+    private static final byte KIND_INDEX = 0;
+
+    private static final int MAGIC = 0x4158454C; // "AXEL"
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int INITIAL_FILE_BYTES = 256 * 1024;
+    private static final int MAX_FILE_BYTES = 8 * 1024 * 1024;
+
+    // Records per indexed stretch
+    private static final int INDEX_INTERVAL = 256;
+    private static final int BLOOM_WORDS = 4;
+    private static final int INDEX_BYTES = 4 + 8 + 1 + 8 + 4 + 4 + BLOOM_WORDS * 8;
+
+    // Value types, as in SnapshotStore
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_STRING = 4;
+
+    /**
+     * One recorded event, as returned by queries.
+     */
+    public static final class Event {
+        public final long timeMs;
+        public final byte kind;
+        public final String subject;
+        public final String key;
+        public final Object value;
+
+        Event(long timeMs, byte kind, String subject, String key, Object value) {
+            this.timeMs = timeMs;
+            this.kind = kind;
+            this.subject = subject;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return timeMs + " " + kind + " " + subject + (key == null ? "" : "/" + key) + " = " + value;
+        }
+    }
+
+    private final File file;
+    private final File previousFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int used;
+    private int lastIndex;
+
+    // The stretch since the last index block
+    private int stretchStart;
+    private int stretchRecords = 0;
+    private long stretchMinMs = Long.MAX_VALUE;
+    private long stretchMaxMs = Long.MIN_VALUE;
+    private final long[] bloom = new long[BLOOM_WORDS];
+
+    private long lastTimeMs = 0;
+
+    /**
+     * Constructor for the EventLog class. Opens the log, or starts a new one.
+     *
+     * @param dir The directory of the log; created if missing.
+     */
+    public EventLog(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) Log.e(TAG, "Cannot create " + dir);
+        file = new File(dir, "events.log");
+        previousFile = new File(dir, "events.1.log");
+        try {
+            open();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + file + ": " + e.getMessage());
+            buffer = null;
+        }
+    }
+
+    /**
+     * Record an event with a numeric value without allocating.
+     *
+     * @param kind    The event kind.
+     * @param subject The room or device ID.
+     * @param key     The sensor or controllable key, or null.
+     * @param value   The value.
+     */
+    public synchronized void record(byte kind, String subject, String key, double value) {
+        if (!begin(kind, subject, key, 1 + 8)) return;
+        buffer.put(TYPE_DOUBLE).putDouble(value);
+        end(subject);
+    }
+
+    /**
+     * Record an event. Booleans, numbers and strings are written without allocating; any other
+     * value is written as its string form.
+     *
+     * @param kind    The event kind.
+     * @param subject The room or device ID, or the function name.
+     * @param key     The key, or null.
+     * @param value   The value, or null.
+     */
+    public synchronized void record(byte kind, String subject, String key, Object value) {
+        if (value != null && !(value instanceof Boolean || value instanceof Number || value instanceof String)) {
+            value = value.toString();
+        }
+        if (!begin(kind, subject, key, valueBytes(value))) return;
+        if (value == null) {
+            buffer.put(TYPE_NULL);
+        } else if (value instanceof Boolean) {
+            buffer.put(TYPE_BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof Long || value instanceof Integer) {
+            buffer.put(TYPE_LONG).putLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            buffer.put(TYPE_DOUBLE).putDouble(((Number) value).doubleValue());
+        } else {
+            buffer.put(TYPE_STRING);
+            putString((String) value);
+        }
+        end(subject);
+    }
+
+    /**
+     * Get the events of one subject in a time window, oldest first.
+     *
+     * @param subject The room or device ID, or the function name.
+     * @param fromMs  The start of the window, in epoch milliseconds.
+     * @param toMs    The end of the window, in epoch milliseconds.
+     * @return The events.
+     */
+    public synchronized List<Event> query(String subject, long fromMs, long toMs) {
+        ArrayList<Event> events = new ArrayList<>();
+        int[] read = new int[2];
+        if (previousFile.exists()) {
+            try (RandomAccessFile previous = new RandomAccessFile(previousFile, "r")) {
+                ByteBuffer in = previous.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, previous.length());
+                query(in, in.getInt(8), in.getInt(12), subject, fromMs, toMs, events, read);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read " + previousFile + ": " + e.getMessage());
+            }
+        }
+        if (buffer != null) query(buffer.duplicate(), used, lastIndex, subject, fromMs, toMs, events, read);
+        Log.d(TAG, "Query for " + subject + " read " + read[0] + " of " + read[1] + " indexed stretches");
+        return events;
+    }
+
+    /**
+     * Force the log to disk.
+     */
+    public synchronized void flush() {
+        if (buffer != null) buffer.force();
+    }
+
+    /**
+     * Flush the log and release its file. Nothing may be recorded afterwards.
+     */
+    public synchronized void close() {
+        if (buffer == null) return;
+        buffer.force();
+        buffer = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Close failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Map the log file and find where appending continues.
+     */
+    private void open() throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        long size = channel.size();
+        if (size < HEADER_BYTES) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_FILE_BYTES);
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(4, VERSION);
+            buffer.putInt(8, HEADER_BYTES);
+            buffer.putInt(12, 0);
+        } else {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION) {
+                throw new IOException("Unknown file format: " + file.getName());
+            }
+        }
+        used = buffer.getInt(8);
+        lastIndex = buffer.getInt(12);
+        stretchStart = lastIndex == 0 ? HEADER_BYTES : lastIndex + INDEX_BYTES;
+        stretchRecords = 0;
+        stretchMinMs = Long.MAX_VALUE;
+        stretchMaxMs = Long.MIN_VALUE;
+        for (int i = 0; i < BLOOM_WORDS; i++) bloom[i] = 0;
+        // Re-read the open stretch, so the next index block covers it
+        for (int pos = stretchStart; pos < used; pos += buffer.getInt(pos)) {
+            if (buffer.get(pos + 12) == KIND_INDEX) continue;
+            long timeMs = buffer.getLong(pos + 4);
+            lastTimeMs = Math.max(lastTimeMs, timeMs);
+            stretchMinMs = Math.min(stretchMinMs, timeMs);
+            stretchMaxMs = Math.max(stretchMaxMs, timeMs);
+            addToBloom(bloom, subjectHash(buffer, pos + 13));
+            stretchRecords++;
+        }
+        if (lastIndex != 0) lastTimeMs = Math.max(lastTimeMs, buffer.getLong(lastIndex + 4));
+    }
+
+    /**
+     * Start a record, making room for it; the buffer is left positioned at its value.
+     *
+     * @return False if the log is not open.
+     */
+    private boolean begin(byte kind, String subject, String key, int valueBytes) {
+        if (buffer == null) return false;
+        int length = 4 + 8 + 1 + stringBytes(subject) + stringBytes(key) + valueBytes;
+        try {
+            reserve(length + INDEX_BYTES);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot grow " + file + ": " + e.getMessage());
+            return false;
+        }
+        long timeMs = Math.max(System.currentTimeMillis(), lastTimeMs);
+        lastTimeMs = timeMs;
+        if (stretchMinMs == Long.MAX_VALUE) stretchMinMs = timeMs;
+        stretchMaxMs = timeMs;
+        buffer.position(used);
+        buffer.putInt(length).putLong(timeMs).put(kind);
+        putString(subject);
+        putString(key);
+        return true;
+    }
+
+    /**
+     * Publish the record just written, and close the stretch with an index block when it is full.
+     */
+    private void end(String subject) {
+        used = buffer.position();
+        addToBloom(bloom, subject == null ? 0 : subject.hashCode());
+        if (++stretchRecords >= INDEX_INTERVAL) writeIndex();
+        // Used bytes first: a crash in between leaves an index block that readers skip as a record
+        buffer.putInt(8, used);
+        buffer.putInt(12, lastIndex);
+    }
+
+    private void writeIndex() {
+        buffer.position(used);
+        buffer.putInt(INDEX_BYTES).putLong(stretchMaxMs).put(KIND_INDEX)
+                .putLong(stretchMinMs).putInt(stretchStart).putInt(lastIndex);
+        for (int i = 0; i < BLOOM_WORDS; i++) {
+            buffer.putLong(bloom[i]);
+            bloom[i] = 0;
+        }
+        lastIndex = used;
+        used = buffer.position();
+        stretchStart = used;
+        stretchRecords = 0;
+        stretchMinMs = Long.MAX_VALUE;
+        stretchMaxMs = Long.MIN_VALUE;
+    }
+
+    /**
+     * Make room for n more bytes: grow the mapping, or roll over to a new file at the size limit.
+     */
+    private void reserve(int n) throws IOException {
+        if (used + n <= buffer.capacity()) return;
+        if (used + n > MAX_FILE_BYTES) {
+            close();
+            if (previousFile.exists() && !previousFile.delete()) Log.e(TAG, "Cannot delete " + previousFile);
+            if (!file.renameTo(previousFile)) Log.e(TAG, "Cannot roll over " + file);
+            open();
+            return;
+        }
+        long size = Math.max((long) buffer.capacity() * 2, used + n);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(size, MAX_FILE_BYTES));
+    }
+
+    /**
+     * Collect the matching events of one file, reading only the stretches its index allows.
+     *
+     * @param in        The file contents.
+     * @param end       The used bytes.
+     * @param lastIndex The offset of the last index block, or 0.
+     * @param read      Counts the stretches read and the stretches in total.
+     */
+    private static void query(ByteBuffer in, int end, int lastIndex, String subject, long fromMs, long toMs,
+                              List<Event> out, int[] read) {
+        int hash = subject.hashCode();
+        // Stretches to read, newest first: the open one after the last index block, then indexed ones
+        ArrayList<int[]> stretches = new ArrayList<>();
+        int tailStart = lastIndex == 0 ? HEADER_BYTES : lastIndex + INDEX_BYTES;
+        if (tailStart < end) stretches.add(new int[]{tailStart, end});
+        for (int index = lastIndex; index != 0; index = in.getInt(index + 25)) {
+            read[1]++;
+            long maxMs = in.getLong(index + 4);
+            long minMs = in.getLong(index + 13);
+            // Records are in time order, so every earlier stretch ends before this one starts
+            if (maxMs < fromMs) break;
+            if (minMs > toMs || !bloomMayContain(in, index + 29, hash)) continue;
+            stretches.add(new int[]{in.getInt(index + 21), index});
+        }
+        Collections.reverse(stretches);
+        for (int[] stretch : stretches) {
+            if (stretch[1] != end) read[0]++;
+            for (int pos = stretch[0]; pos < stretch[1]; pos += in.getInt(pos)) {
+                long timeMs = in.getLong(pos + 4);
+                if (in.get(pos + 12) == KIND_INDEX || timeMs < fromMs || timeMs > toMs) continue;
+                in.position(pos + 13);
+                String recordSubject = getString(in);
+                if (!subject.equals(recordSubject)) continue;
+                byte kind = in.get(pos + 12);
+                String key = getString(in);
+                out.add(new Event(timeMs, kind, recordSubject, key, getValue(in)));
+            }
+        }
+    }
+
+    private void putString(String s) {
+        if (s == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        int n = Math.min(s.length(), Short.MAX_VALUE);
+        buffer.putShort((short) n);
+        for (int i = 0; i < n; i++) buffer.putChar(s.charAt(i));
+    }
+
+    private static String getString(ByteBuffer in) {
+        int n = in.getShort();
+        if (n < 0) return null;
+        char[] chars = new char[n];
+        for (int i = 0; i < n; i++) chars[i] = in.getChar();
+        return new String(chars);
+    }
+
+    private static Object getValue(ByteBuffer in) {
+        switch (in.get()) {
+            case TYPE_BOOLEAN:
+                return in.get() != 0;
+            case TYPE_LONG:
+                return in.getLong();
+            case TYPE_DOUBLE:
+                return in.getDouble();
+            case TYPE_STRING:
+                return getString(in);
+            default:
+                return null;
+        }
+    }
+
+    private static int stringBytes(String s) {
+        return 2 + (s == null ? 0 : Math.min(s.length(), Short.MAX_VALUE) * 2);
+    }
+
+    private static int valueBytes(Object value) {
+        if (value == null) return 1;
+        if (value instanceof Boolean) return 2;
+        if (value instanceof Number) return 9;
+        return 1 + stringBytes((String) value);
+    }
+
+    /**
+     * Hash the subject of a stored record the way String.hashCode() hashes it.
+     */
+    private static int subjectHash(ByteBuffer in, int pos) {
+        int n = in.getShort(pos);
+        int h = 0;
+        for (int i = 0; i < n; i++) h = 31 * h + in.getChar(pos + 2 + i * 2);
+        return h;
+    }
+
+    private static void addToBloom(long[] bits, int hash) {
+        int a = hash & 0xFF;
+        int b = (hash >>> 8 ^ hash >>> 24) & 0xFF;
+        bits[a >>> 6] |= 1L << (a & 63);
+        bits[b >>> 6] |= 1L << (b & 63);
+    }
+
+    private static boolean bloomMayContain(ByteBuffer in, int pos, int hash) {
+        int a = hash & 0xFF;
+        int b = (hash >>> 8 ^ hash >>> 24) & 0xFF;
+        return (in.getLong(pos + (a >>> 6) * 8) & 1L << (a & 63)) != 0
+                && (in.getLong(pos + (b >>> 6) * 8) & 1L << (b & 63)) != 0;
+    }
+}
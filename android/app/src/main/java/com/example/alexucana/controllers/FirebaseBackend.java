@@ -0,0 +1,212 @@
+/**
+ * FirebaseBackend: HomeBackend on the Firebase Realtime Database SDK.
+ *
+ * This is the default backend. Child listeners map directly onto ChildEventListener, and the
+ * initial-load signal comes from a one-shot value listener, which Firebase fires after the
+ * initial child events and serves from its local cache.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * The FirebaseBackend class implements HomeBackend with the Firebase SDK.
+ */
+public class FirebaseBackend implements HomeBackend {
+
+    public static final String TAG = FirebaseBackend.class.getSimpleName();
+
+    private final DatabaseReference rootRef;
+
+    /**
+     * Constructor for the FirebaseBackend class.
+     *
+     * @param rootPath The path of the home root in the database.
+     */
+    public FirebaseBackend(String rootPath) {
+        this(persistentDatabase().getReference().child(rootPath));
+    }
+
+    /**
+     * Constructor for a FirebaseBackend at the database root, shared by the homes of a
+     * HomeSwitcher through ScopedBackend.
+     */
+    public FirebaseBackend() {
+        this(persistentDatabase().getReference());
+    }
+
+    // Whether disk persistence was requested for the default database (it can only be set once)
+    private static boolean persistenceRequested = false;
+
+    /**
+     * Get the default database with disk persistence on. The SDK then keeps its cache after a
+     * listener is removed and re-listens with the hash of the cached data, so a listener attached
+     * again after the app was in the background only downloads what changed.
+     *
+     * @return The FirebaseDatabase.
+     */
+    private static synchronized FirebaseDatabase persistentDatabase() {
+        FirebaseDatabase database = FirebaseDatabase.getInstance();
+        if (!persistenceRequested) {
+            persistenceRequested = true;
+            try {
+                database.setPersistenceEnabled(true);
+            } catch (RuntimeException e) {
+                // Thrown if the database was used before; it then keeps running without a disk cache
+                Log.e(TAG, "Cannot enable persistence: " + e.getMessage());
+            }
+        }
+        return database;
+    }
+
+    /**
+     * Constructor for the FirebaseBackend class.
+     *
+     * @param rootRef The reference of the home root.
+     */
+    public FirebaseBackend(DatabaseReference rootRef) {
+        this.rootRef = rootRef;
+    }
+
+    /**
+     * Wraps a DataSnapshot; values are only parsed when value() is called.
+     */
+    private static final class SnapshotNode implements Node {
+        private final DataSnapshot snapshot;
+
+        SnapshotNode(DataSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public String key() {
+            return snapshot.getKey();
+        }
+
+        @Override
+        public Object value() {
+            return snapshot.getValue();
+        }
+
+        @Override
+        public Node child(String key) {
+            return new SnapshotNode(snapshot.child(key));
+        }
+
+        @Override
+        public long childrenCount() {
+            return snapshot.getChildrenCount();
+        }
+    }
+
+    @Override
+    public Registration addChildListener(String path, ChildListener listener) {
+        DatabaseReference ref = refOf(path);
+        ChildEventListener childEventListener = new ChildEventListener() {
+            @Override
+            public void onChildAdded(@NonNull DataSnapshot snapshot, String previousChildName) {
+                listener.onChildPut(new SnapshotNode(snapshot));
+            }
+
+            @Override
+            public void onChildChanged(@NonNull DataSnapshot snapshot, String previousChildName) {
+                listener.onChildPut(new SnapshotNode(snapshot));
+            }
+
+            @Override
+            public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+                listener.onChildRemoved(snapshot.getKey());
+            }
+
+            @Override
+            public void onChildMoved(@NonNull DataSnapshot snapshot, String previousChildName) {}
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                listener.onCancelled(error.getMessage());
+            }
+        };
+        ref.addChildEventListener(childEventListener);
+        // Fires after the initial child events; only the child keys are read
+        ref.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                HashSet<String> keys = new HashSet<>();
+                for (DataSnapshot child : snapshot.getChildren()) {
+                    keys.add(child.getKey());
+                }
+                listener.onInitialLoaded(keys);
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Log.e(TAG, "Initial load cancelled for " + path + ": " + error.getMessage());
+            }
+        });
+        return () -> ref.removeEventListener(childEventListener);
+    }
+
+    @Override
+    public Registration addConnectionListener(ConnectionListener listener) {
+        // Local to the SDK: reflects its socket to the server and costs no traffic
+        DatabaseReference ref = rootRef.getDatabase().getReference(".info/connected");
+        ValueEventListener valueEventListener = ref.addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                listener.onConnectionChanged(Boolean.TRUE.equals(snapshot.getValue(Boolean.class)));
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Log.e(TAG, "Connection listener cancelled: " + error.getMessage());
+            }
+        });
+        return () -> ref.removeEventListener(valueEventListener);
+    }
+
+    @Override
+    public void update(Map<String, Object> pathValues, Completion completion) {
+        rootRef.updateChildren(pathValues).addOnCompleteListener(task -> {
+            if (completion == null) return;
+            completion.apply(task.isSuccessful(), task.getException() == null ? null : task.getException().getMessage());
+        });
+    }
+
+    @Override
+    public String push(String path, Object value) {
+        DatabaseReference ref = refOf(path).push();
+        ref.setValue(value);
+        return ref.getKey();
+    }
+
+    @Override
+    public void remove(String path, Completion completion) {
+        refOf(path).removeValue().addOnCompleteListener(task -> {
+            if (completion == null) return;
+            completion.apply(task.isSuccessful(), task.getException() == null ? null : task.getException().getMessage());
+        });
+    }
+
+    /**
+     * Resolve a path relative to the home root.
+     *
+     * @param path The path; "" is the home root.
+     * @return The database reference.
+     */
+    private DatabaseReference refOf(String path) {
+        return path.isEmpty() ? rootRef : rootRef.child(path);
+    }
+}
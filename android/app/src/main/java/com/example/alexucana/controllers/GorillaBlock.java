@@ -0,0 +1,226 @@
+/**
+ * GorillaBlock: Compressed block of one sensor's samples, after Facebook's Gorilla TSDB.
+ *
+ * Timestamps are whole seconds encoded as delta-of-delta with variable-length buckets, so samples
+ * at a steady cadence cost one bit each. Readings are floats encoded as the XOR with the previous
+ * reading: an unchanged reading costs one bit, and a small change only stores its meaningful bits.
+ * The block writes into a fixed byte array and never allocates while encoding.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import java.util.Arrays;
+
+/**
+ * The GorillaBlock class encodes samples into a bit stream and decodes them back.
+ */
+final class GorillaBlock {
+
+    // A block is closed once it holds this many bytes or samples
+    static final int MAX_BYTES = 512;
+    static final int MAX_SAMPLES = 1000;
+
+    private final byte[] bytes = new byte[MAX_BYTES + 16];
+    private int bitCount = 0;
+    private int count = 0;
+
+    private long firstSec;
+    private long prevSec;
+    private long prevDelta;
+    private int prevValueBits;
+    private int prevLeading = -1;
+    private int prevTrailing = 0;
+
+    /**
+     * Append a sample.
+     *
+     * @param sec   The timestamp in epoch seconds, not earlier than the previous one.
+     * @param value The reading.
+     */
+    void append(long sec, float value) {
+        int valueBits = Float.floatToRawIntBits(value);
+        if (count == 0) {
+            firstSec = sec;
+            prevSec = sec;
+            prevDelta = 0;
+            writeBits(valueBits, 32);
+            prevValueBits = valueBits;
+            count = 1;
+            return;
+        }
+
+        long delta = sec - prevSec;
+        long dod = delta - prevDelta;
+        if (dod == 0) {
+            writeBits(0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            writeBits(0b10, 2);
+            writeBits(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            writeBits(0b110, 3);
+            writeBits(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            writeBits(0b1110, 4);
+            writeBits(dod, 12);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(dod, 32);
+        }
+        prevDelta = delta;
+        prevSec = sec;
+
+        int xor = valueBits ^ prevValueBits;
+        if (xor == 0) {
+            writeBits(0, 1);
+        } else {
+            int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                // Fits in the previous meaningful window
+                writeBits(0b10, 2);
+                writeBits(xor >>> prevTrailing, 32 - prevLeading - prevTrailing);
+            } else {
+                int length = 32 - leading - trailing;
+                writeBits(0b11, 2);
+                writeBits(leading, 5);
+                writeBits(length - 1, 5);
+                writeBits(xor >>> trailing, length);
+                prevLeading = leading;
+                prevTrailing = trailing;
+            }
+        }
+        prevValueBits = valueBits;
+        count++;
+    }
+
+    /**
+     * Check whether the block should be written out and reset.
+     *
+     * @return True if the block reached its size or sample limit.
+     */
+    boolean isFull() {
+        return bitCount >= MAX_BYTES * 8 || count >= MAX_SAMPLES;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long firstSec() {
+        return firstSec;
+    }
+
+    long lastSec() {
+        return prevSec;
+    }
+
+    int byteLength() {
+        return (bitCount + 7) / 8;
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Start a new, empty block, reusing the buffer.
+     */
+    void reset() {
+        Arrays.fill(bytes, 0, byteLength(), (byte) 0);
+        bitCount = 0;
+        count = 0;
+        prevLeading = -1;
+        prevTrailing = 0;
+    }
+
+    private void writeBits(long value, int n) {
+        for (int i = n - 1; i >= 0; i--) {
+            if (((value >>> i) & 1) != 0) {
+                bytes[bitCount >>> 3] |= (byte) (0x80 >>> (bitCount & 7));
+            }
+            bitCount++;
+        }
+    }
+
+    /**
+     * Decode a block.
+     *
+     * @param data      The encoded bytes.
+     * @param offset    The offset of the first byte.
+     * @param count     The number of samples in the block.
+     * @param firstSec  The timestamp of the first sample.
+     * @param outTimes  Receives the timestamps in epoch milliseconds.
+     * @param outValues Receives the readings.
+     * @param outOffset The index at which to start writing the outputs.
+     * @return The number of samples decoded, limited by the room left in the outputs.
+     */
+    static int decode(byte[] data, int offset, int count, long firstSec,
+                      long[] outTimes, float[] outValues, int outOffset) {
+        Reader in = new Reader(data, offset);
+        int limit = Math.min(count, Math.min(outTimes.length, outValues.length) - outOffset);
+        long sec = firstSec;
+        long delta = 0;
+        int valueBits = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 0; i < limit; i++) {
+            if (i == 0) {
+                valueBits = (int) in.read(32);
+            } else {
+                long dod;
+                if (in.read(1) == 0) dod = 0;
+                else if (in.read(1) == 0) dod = in.readSigned(7);
+                else if (in.read(1) == 0) dod = in.readSigned(9);
+                else if (in.read(1) == 0) dod = in.readSigned(12);
+                else dod = in.readSigned(32);
+                delta += dod;
+                sec += delta;
+                if (in.read(1) != 0) {
+                    if (in.read(1) != 0) {
+                        leading = (int) in.read(5);
+                        int length = (int) in.read(5) + 1;
+                        trailing = 32 - leading - length;
+                    }
+                    valueBits ^= (int) (in.read(32 - leading - trailing) << trailing);
+                }
+            }
+            outTimes[outOffset + i] = sec * 1000;
+            outValues[outOffset + i] = Float.intBitsToFloat(valueBits);
+        }
+        return Math.max(limit, 0);
+    }
+
+    /**
+     * Sequential bit reader.
+     */
+    private static final class Reader {
+        private final byte[] data;
+        private int bit;
+
+        Reader(byte[] data, int offset) {
+            this.data = data;
+            this.bit = offset * 8;
+        }
+
+        long read(int n) {
+            long value = 0;
+            for (int i = 0; i < n; i++) {
+                value = (value << 1) | ((data[bit >>> 3] >>> (7 - (bit & 7))) & 1);
+                bit++;
+            }
+            return value;
+        }
+
+        long readSigned(int n) {
+            long value = read(n);
+            // Two's complement within n bits
+            long signBit = 1L << (n - 1);
+            if ((value & signBit) != 0) value -= 1L << n;
+            return value;
+        }
+    }
+}
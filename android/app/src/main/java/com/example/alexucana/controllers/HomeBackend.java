@@ -0,0 +1,112 @@
+/**
+ * HomeBackend: The storage and sync service behind DataManager.
+ *
+ * All paths are '/'-separated and relative to the home root (e.g. "rooms/roomId/devices_map"); ""
+ * is the home root itself. Values are plain Java trees as produced by the Firebase SDK: Map for
+ * objects, and Long, Double, Boolean or String for leaves. Listener callbacks are delivered on
+ * the main thread.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The HomeBackend interface abstracts the database so DataManager can run on Firebase, on the
+ * RTDB REST streaming protocol, or fully in memory.
+ */
+public interface HomeBackend {
+
+    /**
+     * One node of the database tree. Reading a node's value may parse it, so DataManager only
+     * calls value() off the main thread and only on the nodes it needs.
+     */
+    interface Node {
+        String key();
+
+        Object value();
+
+        Node child(String key);
+
+        long childrenCount();
+    }
+
+    /**
+     * Listener for the direct children of a path.
+     */
+    interface ChildListener {
+        // A child was added or anything inside it changed
+        void onChildPut(Node child);
+
+        void onChildRemoved(String key);
+
+        // Called once after the children present at attach time were delivered, with their keys
+        void onInitialLoaded(Set<String> keys);
+
+        void onCancelled(String reason);
+    }
+
+    /**
+     * Callback for a finished write.
+     */
+    interface Completion {
+        void apply(boolean success, String error);
+    }
+
+    /**
+     * Listener for the connection to the server.
+     */
+    interface ConnectionListener {
+        void onConnectionChanged(boolean connected);
+    }
+
+    /**
+     * Handle for an attached listener.
+     */
+    interface Registration {
+        void remove();
+    }
+
+    /**
+     * Listen to the direct children of a path.
+     *
+     * @param path     The path of the parent node.
+     * @param listener The listener.
+     * @return The registration that detaches the listener.
+     */
+    Registration addChildListener(String path, ChildListener listener);
+
+    /**
+     * Listen to the connection state. The current state is reported right after attaching.
+     *
+     * @param listener The listener.
+     * @return The registration that detaches the listener.
+     */
+    Registration addConnectionListener(ConnectionListener listener);
+
+    /**
+     * Apply a multi-path update atomically; a null value deletes its path.
+     *
+     * @param pathValues The values keyed by path.
+     * @param completion Called when the server accepted or rejected the update; may be null.
+     */
+    void update(Map<String, Object> pathValues, Completion completion);
+
+    /**
+     * Add a child with a generated, chronologically sortable key.
+     *
+     * @param path  The path of the parent node.
+     * @param value The value of the new child.
+     * @return The generated key.
+     */
+    String push(String path, Object value);
+
+    /**
+     * Delete a path.
+     *
+     * @param path       The path to delete.
+     * @param completion Called when the server accepted or rejected the deletion; may be null.
+     */
+    void remove(String path, Completion completion);
+}
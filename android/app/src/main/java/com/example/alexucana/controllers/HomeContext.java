@@ -0,0 +1,382 @@
+/**
+ * HomeContext: Builds the part of the home state the assistant gets with a question.
+ *
+ * Sending the whole home with every question costs thousands of prompt tokens in a large home and
+ * delays the first token of the answer. Instead, every device is scored against the question:
+ *   - a word of the question in the device name, or the device ID itself;
+ *   - a word of the question in the name of its room;
+ *   - the kind of device the question asks about, e.g. "light" for a device with an LED color;
+ *   - how recently the device was written to, so "turn it off" finds what was just turned on.
+ * The best devices are sent until the token budget is spent. Every room row is kept when it fits,
+ * with the number of devices left out, so the assistant knows the rest of the home exists.
+ *
+ * Words are compared without case and diacritics, so "den phong khach" finds "Đèn phòng khách".
+ * Tokens are estimated as one per four bytes of the rows PromptEncoding renders. If the
+ * full state fits the budget, or nothing in the question points at any device, the full state is
+ * sent.
+ *
+ * The words, kinds and row size of every room and device are derived once and cached by identity.
+ * Unchanged nodes are shared between snapshots, so a question only analyses what changed since the
+ * last one; scoring is then a few set lookups per device.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.alexucana.models.Device;
+import com.example.alexucana.models.HomeSnapshot;
+import com.example.alexucana.models.Room;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The HomeContext class selects relevant rooms and devices for the assistant within a token budget.
+ * Safe to call from any thread; it only reads the immutable snapshot.
+ */
+public class HomeContext {
+
+    public static final String TAG = HomeContext.class.getSimpleName();
+
+    // Tokens of home state sent with a question
+    public static final int DEFAULT_TOKEN_BUDGET = 1200;
+
+    private static final double NAME_SCORE = 10;
+    private static final double ROOM_SCORE = 6;
+    private static final double KIND_SCORE = 4;
+    private static final double RECENT_SCORE = 3;
+
+    // Recency halves every RECENT_HALF_LIFE_MS
+    private static final long RECENT_HALF_LIFE_MS = 10 * 60 * 1000;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}");
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // Words that say nothing about which device is meant
+    private static final Set<String> STOP_WORDS = new HashSet<>(Arrays.asList(
+            "a", "an", "the", "in", "on", "off", "of", "to", "at", "is", "are", "it", "my", "and", "or",
+            "what", "how", "please", "turn", "set", "make", "all", "room",
+            "bat", "tat", "cua", "la", "va", "cho", "toi", "hay", "phong"));
+
+    /**
+     * A kind of device: the words a question uses for it, and the key fragments that identify it.
+     */
+    private static final class Kind {
+        final Set<String> words;
+        final String[] keyFragments;
+
+        Kind(String[] words, String[] keyFragments) {
+            this.words = new HashSet<>(Arrays.asList(words));
+            this.keyFragments = keyFragments;
+        }
+    }
+
+    private static final Kind[] KINDS = {
+            new Kind(new String[]{"light", "lights", "lamp", "led", "color", "colour", "bright", "dark", "den", "mau", "sang"},
+                    new String[]{"led", "color", "light", "bright"}),
+            new Kind(new String[]{"temperature", "temp", "hot", "cold", "warm", "nhiet", "nong", "lanh"},
+                    new String[]{"temp"}),
+            new Kind(new String[]{"humidity", "humid", "dry", "wet"},
+                    new String[]{"humid"}),
+            new Kind(new String[]{"fan", "quat"},
+                    new String[]{"fan"}),
+    };
+
+    /**
+     * A device and its score.
+     */
+    private static final class Candidate {
+        final double score;
+        final Room room;
+        final Device device;
+        final int tokens;
+
+        Candidate(double score, Room room, Device device, int tokens) {
+            this.score = score;
+            this.room = room;
+            this.device = device;
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * What scoring needs from a room or device, derived once per immutable object.
+     */
+    private static final class Terms {
+        final Set<String> words;
+        final String lowerId;
+        // Bit i is set if the device is of KINDS[i]
+        final int kinds;
+        // Estimated tokens of the row, with its alias
+        final int tokens;
+
+        Terms(Set<String> words, String lowerId, int kinds, int tokens) {
+            this.words = words;
+            this.lowerId = lowerId;
+            this.kinds = kinds;
+            this.tokens = tokens;
+        }
+    }
+
+    // Terms of every room and device seen, keyed by content: Room and Device compare by content,
+    // so an unchanged node, or an equal copy of it (e.g. re-delivered after a resume), reuses its
+    // terms across snapshots, and a changed one is analysed again. Terms only depend on content,
+    // so sharing them between equal nodes is safe
+    private static final WeakHashMap<Object, Terms> TERMS = new WeakHashMap<>();
+
+    private final DataManager home;
+    private volatile int tokenBudget = DEFAULT_TOKEN_BUDGET;
+
+    /**
+     * Constructor for the HomeContext class.
+     *
+     * @param home The home to describe.
+     */
+    public HomeContext(DataManager home) {
+        this.home = home;
+    }
+
+    /**
+     * Set how many tokens of home state are sent with a question.
+     *
+     * @param tokens The budget; 0 or less always sends the full state.
+     */
+    public void setTokenBudget(int tokens) {
+        tokenBudget = tokens;
+    }
+
+    /**
+     * Select the home state to send with a question.
+     *
+     * @param question The user's question.
+     * @return The selection: a snapshot whose rooms hold the selected devices and keep their full
+     * deviceCount, so PromptEncoding can say how many are not shown.
+     */
+    public HomeSnapshot build(String question) {
+        return build(home.getSnapshot(), question, true);
+    }
+
+    /**
+     * Select the state to send with a question from a given snapshot of the home.
+     *
+     * @param snapshot          The snapshot, e.g. the one a delta is computed against.
+     * @param question          The user's question.
+     * @param fullWhenUnmatched Whether a question that points at no device gets the full state,
+     *                          or no device at all, e.g. in a follow-up turn.
+     * @return The selection.
+     */
+    public HomeSnapshot build(HomeSnapshot snapshot, String question, boolean fullWhenUnmatched) {
+        return build(snapshot, home.getDeviceShadows(), question, tokenBudget, fullWhenUnmatched);
+    }
+
+    /**
+     * Select the home state to send with a question from a snapshot.
+     *
+     * @param snapshot The home snapshot.
+     * @param shadows  The device shadows, for recency.
+     * @param question The user's question.
+     * @param budget   The token budget; 0 or less sends the full state.
+     * @param fullWhenUnmatched Whether a question that points at no device gets the full state.
+     * @return The selection, or the snapshot itself for the full state.
+     */
+    static HomeSnapshot build(HomeSnapshot snapshot, DeviceShadows shadows, String question, int budget,
+                              boolean fullWhenUnmatched) {
+        if (budget <= 0) return snapshot;
+        String[] words = wordsOf(question).toArray(new String[0]);
+        String lowerQuestion = question.toLowerCase(Locale.ROOT);
+        int kindsAsked = 0;
+        for (int i = 0; i < KINDS.length; i++) {
+            if (matches(words, KINDS[i].words) > 0) kindsAsked |= 1 << i;
+        }
+        Map<String, Long> writtenAtMs = shadows == null ? Collections.emptyMap() : shadows.lastWrittenAtMs();
+        long now = SystemClock.elapsedRealtime();
+
+        // Score every device, and add up what the rows of the full state cost
+        ArrayList<Candidate> scored = new ArrayList<>();
+        int headerTokens = 0;
+        int fullTokens = 0;
+        int total = 0;
+        synchronized (TERMS) {
+            for (Room room : snapshot.rooms) {
+                Terms roomTerms = termsOf(room);
+                headerTokens += roomTerms.tokens;
+                double roomScore = matches(words, roomTerms.words) * ROOM_SCORE;
+                if (lowerQuestion.contains(roomTerms.lowerId)) roomScore += NAME_SCORE;
+                for (Device device : room.devices) {
+                    Terms terms = termsOf(device);
+                    fullTokens += terms.tokens;
+                    total++;
+                    double score = roomScore + scoreOf(device, terms, words, lowerQuestion, kindsAsked, writtenAtMs, now);
+                    if (score > 0) scored.add(new Candidate(score, room, device, terms.tokens));
+                }
+            }
+        }
+        fullTokens += headerTokens;
+        if (fullTokens <= budget) return snapshot;
+        if (scored.isEmpty() && fullWhenUnmatched) {
+            Log.d(TAG, "Nothing in the question points at a device, sending the full state");
+            return snapshot;
+        }
+        Collections.sort(scored, (a, b) -> Double.compare(b.score, a.score));
+
+        // Room rows first when they fit in a third of the budget, then the best devices
+        boolean allHeaders = headerTokens <= budget / 3;
+        int used = allHeaders ? headerTokens : 0;
+        HashMap<String, ArrayList<Device>> selectedByRoom = new HashMap<>();
+        int selected = 0;
+        for (Candidate candidate : scored) {
+            ArrayList<Device> devices = selectedByRoom.get(candidate.room.id);
+            int cost = candidate.tokens;
+            if (devices == null && !allHeaders) cost += roomTokens(candidate.room);
+            if (used + cost > budget) continue;
+            used += cost;
+            if (devices == null) {
+                devices = new ArrayList<>();
+                selectedByRoom.put(candidate.room.id, devices);
+            }
+            devices.add(candidate.device);
+            selected++;
+        }
+
+        ArrayList<Room> rooms = new ArrayList<>();
+        for (Room room : snapshot.rooms) {
+            ArrayList<Device> devices = selectedByRoom.get(room.id);
+            if (devices == null && !allHeaders) continue;
+            if (devices == null) devices = new ArrayList<>();
+            rooms.add(Room.of(room.id, room.name, devices).withHeader(room.name, room.deviceCount));
+        }
+        Log.d(TAG, "Sending " + selected + " of " + total + " devices, about " + used + " of " + fullTokens + " tokens");
+        return HomeSnapshot.of(rooms);
+    }
+
+    /**
+     * Score a device against the question, without its room.
+     */
+    private static double scoreOf(Device device, Terms terms, String[] words, String lowerQuestion, int kindsAsked,
+                                  Map<String, Long> writtenAtMs, long now) {
+        double score = matches(words, terms.words) * NAME_SCORE;
+        if (lowerQuestion.contains(terms.lowerId)) score += NAME_SCORE;
+        score += Integer.bitCount(kindsAsked & terms.kinds) * KIND_SCORE;
+        Long lastMs = writtenAtMs.get(device.id);
+        if (lastMs != null) {
+            score += RECENT_SCORE * Math.pow(0.5, (double) (now - lastMs) / RECENT_HALF_LIFE_MS);
+        }
+        return score;
+    }
+
+    /**
+     * Get the terms of a room, analysing it on first use. Must hold the TERMS lock.
+     */
+    private static Terms termsOf(Room room) {
+        Terms terms = TERMS.get(room);
+        if (terms == null) {
+            terms = new Terms(wordsOf(room.name), room.id.toLowerCase(Locale.ROOT), 0, roomTokens(room));
+            TERMS.put(room, terms);
+        }
+        return terms;
+    }
+
+    /**
+     * Get the terms of a device, analysing it on first use. Must hold the TERMS lock.
+     */
+    private static Terms termsOf(Device device) {
+        Terms terms = TERMS.get(device);
+        if (terms == null) {
+            Set<String> nameWords = wordsOf(device.name);
+            int kinds = 0;
+            for (int i = 0; i < KINDS.length; i++) {
+                if (isKind(device, nameWords, KINDS[i])) kinds |= 1 << i;
+            }
+            terms = new Terms(nameWords, device.id.toLowerCase(Locale.ROOT), kinds,
+                    estimateTokens(device.promptRow().length) + 2);
+            TERMS.put(device, terms);
+        }
+        return terms;
+    }
+
+    /**
+     * Estimate the tokens of a room row, with its alias and the count of devices not shown.
+     */
+    private static int roomTokens(Room room) {
+        return estimateTokens(room.promptName().length) + 6;
+    }
+
+    /**
+     * Check whether a device is of a kind, by its name, its sensor keys or its controllable keys.
+     */
+    private static boolean isKind(Device device, Set<String> nameWords, Kind kind) {
+        for (String word : nameWords) {
+            if (kind.words.contains(word)) return true;
+        }
+        for (String fragment : kind.keyFragments) {
+            for (int i = 0; i < device.sensorCount(); i++) {
+                if (device.sensorKey(i).contains(fragment)) return true;
+            }
+            for (String key : device.controllable.keySet()) {
+                if (key.contains(fragment)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count the words of a that are also in b.
+     */
+    private static int matches(String[] a, Set<String> b) {
+        int n = 0;
+        for (String word : a) {
+            if (b.contains(word)) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Split text into lowercase words without diacritics, dropping stop words and plural endings.
+     *
+     * @param text The text.
+     * @return The words.
+     */
+    static Set<String> wordsOf(String text) {
+        HashSet<String> words = new HashSet<>();
+        if (text == null) return words;
+        String decomposed = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        String plain = MARKS.matcher(decomposed).replaceAll("").replace('đ', 'd');
+        for (String word : NON_WORD.split(plain)) {
+            if (word.isEmpty() || STOP_WORDS.contains(word)) continue;
+            if (word.length() > 3 && word.endsWith("s") && !word.endsWith("ss")) word = word.substring(0, word.length() - 1);
+            words.add(word);
+        }
+        return words;
+    }
+
+    /**
+     * Estimate the tokens of prompt text.
+     *
+     * @param text The text.
+     * @return The estimated tokens.
+     */
+    public static int estimateTokens(String text) {
+        return estimateTokens(text.length());
+    }
+
+    /**
+     * Estimate the tokens of prompt text from its length.
+     *
+     * @param length The length in characters or UTF-8 bytes.
+     * @return The estimated tokens.
+     */
+    public static int estimateTokens(int length) {
+        return (length + 3) / 4;
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * HomeSwitcher: Keeps one DataManager per home, with a bounded set of warm homes.
+ *
+ * All homes share one backend rooted at the database root; each home is a ScopedBackend over it.
+ * The active home streams as its screens subscribe. The most recently used inactive homes stay
+ * warm: their snapshot stays in memory with no listener attached, so switching back renders at
+ * once and only revalidates. Homes beyond the warm limit are closed, which detaches everything and
+ * stops their sync thread; they cold start from their persisted snapshot when used again.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.example.alexucana.config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The HomeSwitcher class is the singleton owning the DataManager of every warm home.
+ * Switching and the warm limit are main thread only; getActive() may be called from any thread.
+ */
+public class HomeSwitcher {
+
+    public static final String TAG = HomeSwitcher.class.getSimpleName();
+    private static HomeSwitcher instance;
+
+    // Number of homes kept in memory, the active one included
+    public static final int DEFAULT_WARM_HOMES = 3;
+
+    // Directory holding one subdirectory of files per home
+    private static final String HOMES_DIR = "homes";
+
+    /**
+     * Interface for handling a switch of the active home. Called on the main thread.
+     */
+    public interface OnHomeSwitched {
+        void apply(DataManager home);
+    }
+
+    private final HomeBackend sharedBackend;
+
+    // Warm homes in access order, the active one last
+    private final LinkedHashMap<String, DataManager> warm = new LinkedHashMap<>(8, 0.75f, true);
+    private volatile DataManager active;
+    private int warmLimit = DEFAULT_WARM_HOMES;
+
+    // Sync threads of closed homes that may still be writing their files, so a reopened home waits for them
+    private final HashMap<String, ExecutorService> closing = new HashMap<>();
+
+    private final ArrayList<OnHomeSwitched> switchObservers = new ArrayList<>();
+
+    // Whether the app is in the foreground, so a newly active home knows whether to stream
+    private boolean started = true;
+
+    /**
+     * Private constructor for the singleton pattern. Opens config.DATABASE_PATH as the active home.
+     */
+    private HomeSwitcher() {
+        sharedBackend = DataManager.initBackend != null ? DataManager.initBackend : new FirebaseBackend();
+        active = open(config.DATABASE_PATH);
+        warm.put(active.homeId, active);
+    }
+
+    /**
+     * Get the singleton instance of HomeSwitcher. Call DataManager.init() first.
+     *
+     * @return The HomeSwitcher instance.
+     */
+    public static synchronized HomeSwitcher getInstance() {
+        if (instance == null) instance = new HomeSwitcher();
+        return instance;
+    }
+
+    /**
+     * Get the DataManager of the active home.
+     *
+     * @return The DataManager.
+     */
+    public DataManager getActive() {
+        return active;
+    }
+
+    /**
+     * Make a home the active one. A warm home is shown from memory at once; any other home is
+     * opened from its persisted snapshot. The previous home is parked, and the least recently used
+     * homes beyond the warm limit are closed. Must be called on the main thread.
+     *
+     * @param homeId The home root in the database, e.g. "alexucana_v3".
+     * @return The DataManager of the home.
+     */
+    public DataManager switchTo(String homeId) {
+        DataManager previous = active;
+        if (homeId.equals(previous.homeId)) return previous;
+        DataManager next = warm.get(homeId);
+        boolean wasWarm = next != null;
+        if (next == null) {
+            next = open(homeId);
+            warm.put(homeId, next);
+        }
+        previous.setActive(false);
+        next.setActive(true);
+        if (!started) next.onStopped();
+        active = next;
+        trim();
+        Log.d(TAG, "Switched to " + homeId + (wasWarm ? " (warm)" : " (cold)") + ", " + warm.size() + " homes warm");
+        for (OnHomeSwitched observer : new ArrayList<>(switchObservers)) {
+            observer.apply(next);
+        }
+        return next;
+    }
+
+    /**
+     * Set how many homes stay in memory, the active one included. Must be called on the main thread.
+     *
+     * @param limit The limit; at least 1.
+     */
+    public void setWarmLimit(int limit) {
+        warmLimit = Math.max(1, limit);
+        trim();
+    }
+
+    /**
+     * Get the IDs of the homes kept in memory, least recently used first.
+     * Must be called on the main thread.
+     *
+     * @return The home IDs.
+     */
+    public List<String> getWarmHomeIds() {
+        return new ArrayList<>(warm.keySet());
+    }
+
+    /**
+     * Register a callback for switches of the active home, e.g. to rebind screens that hold the
+     * previous DataManager. Must be called on the main thread.
+     *
+     * @param cb The callback function.
+     * @return The subscription that unregisters the callback.
+     */
+    public DataManager.Subscription observeSwitches(OnHomeSwitched cb) {
+        switchObservers.add(cb);
+        return () -> switchObservers.remove(cb);
+    }
+
+    /**
+     * Suspend live sync of the active home while the owner (the activity) is stopped, and resume
+     * it when it starts. Must be called on the main thread.
+     *
+     * @param owner The lifecycle owner, typically the main activity.
+     */
+    public void suspendWhileStopped(LifecycleOwner owner) {
+        owner.getLifecycle().addObserver(new LifecycleEventObserver() {
+            @Override
+            public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+                if (event == Lifecycle.Event.ON_START) {
+                    started = true;
+                    active.onStarted();
+                } else if (event == Lifecycle.Event.ON_STOP) {
+                    started = false;
+                    active.onStopped();
+                } else if (event == Lifecycle.Event.ON_DESTROY) {
+                    source.getLifecycle().removeObserver(this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Create the DataManager of a home, after the files of an earlier one are written.
+     *
+     * @param homeId The home root in the database.
+     * @return The DataManager.
+     */
+    private DataManager open(String homeId) {
+        File homeDir = DataManager.filesDir == null ? null : new File(new File(DataManager.filesDir, HOMES_DIR), homeId);
+        ExecutorService predecessor = closing.remove(homeId);
+        if (predecessor != null && predecessor.isTerminated()) predecessor = null;
+        return new DataManager(homeId, new ScopedBackend(sharedBackend, homeId), homeDir, predecessor);
+    }
+
+    /**
+     * Close the least recently used inactive homes beyond the warm limit.
+     */
+    private void trim() {
+        closing.values().removeIf(ExecutorService::isTerminated);
+        Iterator<Map.Entry<String, DataManager>> it = warm.entrySet().iterator();
+        while (warm.size() > warmLimit && it.hasNext()) {
+            Map.Entry<String, DataManager> entry = it.next();
+            if (entry.getValue() == active) continue;
+            it.remove();
+            closing.put(entry.getKey(), entry.getValue().close());
+            Log.d(TAG, "Closed cold home " + entry.getKey());
+        }
+    }
+}
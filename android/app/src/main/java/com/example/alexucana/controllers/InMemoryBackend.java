@@ -0,0 +1,170 @@
+/**
+ * InMemoryBackend: HomeBackend holding the whole database in one JsonTree.
+ *
+ * Meant for tests and as the zero-network baseline when comparing backends: writes apply
+ * immediately and listeners see them on the callback executor, so any remaining sync latency is
+ * DataManager's own. Pass Runnable::run as the executor to get callbacks synchronously.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The InMemoryBackend class implements HomeBackend without any server.
+ */
+public class InMemoryBackend implements HomeBackend {
+
+    private final JsonTree tree = new JsonTree();
+    private final Executor callbackExecutor;
+
+    // Attached listeners and the children each one has seen (guarded by this)
+    private final ArrayList<Watch> watches = new ArrayList<>();
+
+    // Simulated connection state and its listeners (guarded by this)
+    private boolean connected = true;
+    private final ArrayList<ConnectionListener> connectionListeners = new ArrayList<>();
+
+    /**
+     * One attached listener and a copy of the value it was last told about.
+     */
+    private static final class Watch {
+        final String[] segments;
+        final ChildListener out;
+        Object seen;
+
+        Watch(String[] segments, ChildListener out, Object seen) {
+            this.segments = segments;
+            this.out = out;
+            this.seen = seen;
+        }
+    }
+
+    /**
+     * Constructor for the InMemoryBackend class.
+     *
+     * @param callbackExecutor The executor listener and completion callbacks run on.
+     */
+    public InMemoryBackend(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Get a copy of the value at a path, for assertions in tests.
+     *
+     * @param path The path relative to the home root; "" is the home root.
+     * @return The value, or null if the path does not exist.
+     */
+    public synchronized Object get(String path) {
+        return JsonTree.copy(tree.get(JsonTree.split(path)));
+    }
+
+    @Override
+    public synchronized Registration addChildListener(String path, ChildListener listener) {
+        AtomicBoolean active = new AtomicBoolean(true);
+        String[] segments = JsonTree.split(path);
+        Object current = JsonTree.copy(tree.get(segments));
+        Watch watch = new Watch(segments, JsonTree.postingTo(callbackExecutor, listener, active), current);
+        watches.add(watch);
+        JsonTree.emitChildren(watch.out, null, current);
+        watch.out.onInitialLoaded(JsonTree.keysOf(current));
+        return () -> {
+            active.set(false);
+            synchronized (InMemoryBackend.this) {
+                watches.remove(watch);
+            }
+        };
+    }
+
+    /**
+     * Simulate losing or regaining the connection, e.g. to test offline writes.
+     * Writes keep applying; only the reported state changes.
+     *
+     * @param reachable The new connection state.
+     */
+    public synchronized void setConnected(boolean reachable) {
+        if (connected == reachable) return;
+        connected = reachable;
+        for (ConnectionListener listener : connectionListeners) {
+            callbackExecutor.execute(() -> listener.onConnectionChanged(reachable));
+        }
+    }
+
+    @Override
+    public synchronized Registration addConnectionListener(ConnectionListener listener) {
+        connectionListeners.add(listener);
+        boolean current = connected;
+        callbackExecutor.execute(() -> listener.onConnectionChanged(current));
+        return () -> {
+            synchronized (InMemoryBackend.this) {
+                connectionListeners.remove(listener);
+            }
+        };
+    }
+
+    @Override
+    public void update(Map<String, Object> pathValues, Completion completion) {
+        synchronized (this) {
+            ArrayList<String[]> written = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : pathValues.entrySet()) {
+                String[] segments = JsonTree.split(entry.getKey());
+                tree.set(segments, JsonTree.copy(entry.getValue()));
+                written.add(segments);
+            }
+            notifyWatches(written);
+        }
+        if (completion != null) callbackExecutor.execute(() -> completion.apply(true, null));
+    }
+
+    @Override
+    public String push(String path, Object value) {
+        String key = JsonTree.generatePushId();
+        update(Collections.singletonMap(path.isEmpty() ? key : path + "/" + key, value), null);
+        return key;
+    }
+
+    @Override
+    public void remove(String path, Completion completion) {
+        update(Collections.singletonMap(path, null), completion);
+    }
+
+    /**
+     * Tell every listener whose subtree overlaps a written path what changed under it.
+     *
+     * @param written The written paths, as segments.
+     */
+    private void notifyWatches(ArrayList<String[]> written) {
+        for (Watch watch : watches) {
+            boolean overlaps = false;
+            for (String[] segments : written) {
+                if (isPrefix(watch.segments, segments) || isPrefix(segments, watch.segments)) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            if (!overlaps) continue;
+            Object current = JsonTree.copy(tree.get(watch.segments));
+            JsonTree.emitChildren(watch.out, watch.seen, current);
+            watch.seen = current;
+        }
+    }
+
+    /**
+     * Check whether one path is an ancestor of, or equal to, another.
+     *
+     * @param prefix The possible ancestor.
+     * @param path   The path.
+     * @return True if prefix is an ancestor of path or equal to it.
+     */
+    private static boolean isPrefix(String[] prefix, String[] path) {
+        if (prefix.length > path.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (!prefix[i].equals(path[i])) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * JsonTree: A mutable plain-Java mirror of a database subtree.
+ *
+ * Used by the REST and in-memory backends. Objects are Maps and leaves are Long, Double,
+ * Boolean or String, exactly like values returned by the Firebase SDK. Writing null deletes a
+ * path, and objects left empty are pruned, as the database does.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The JsonTree class holds a subtree and applies put and patch operations to it.
+ */
+class JsonTree {
+
+    private static final String PUSH_CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static long lastPushTime = 0;
+    private static final int[] lastRandChars = new int[12];
+
+    private Object root;
+
+    /**
+     * Get the value at a path.
+     *
+     * @param segments The path segments; empty for the root.
+     * @return The value, or null if the path does not exist.
+     */
+    Object get(String[] segments) {
+        Object node = root;
+        for (String segment : segments) {
+            if (!(node instanceof Map)) return null;
+            node = ((Map<?, ?>) node).get(segment);
+        }
+        return node;
+    }
+
+    /**
+     * Replace the value at a path; null deletes it.
+     *
+     * @param segments The path segments; empty for the root.
+     * @param value    The new value, as a plain Java tree.
+     */
+    @SuppressWarnings("unchecked")
+    void set(String[] segments, Object value) {
+        if (segments.length == 0) {
+            root = value;
+            return;
+        }
+        if (!(root instanceof Map)) {
+            if (value == null) return;
+            root = new HashMap<String, Object>();
+        }
+        Map<String, Object> node = (Map<String, Object>) root;
+        ArrayList<Map<String, Object>> parents = new ArrayList<>();
+        for (int i = 0; i < segments.length - 1; i++) {
+            parents.add(node);
+            Object child = node.get(segments[i]);
+            if (!(child instanceof Map)) {
+                if (value == null) return;
+                child = new HashMap<String, Object>();
+                node.put(segments[i], child);
+            }
+            node = (Map<String, Object>) child;
+        }
+        if (value == null) {
+            node.remove(segments[segments.length - 1]);
+            // Prune objects left empty, bottom-up
+            for (int i = parents.size() - 1; i >= 0 && node.isEmpty(); i--) {
+                parents.get(i).remove(segments[i]);
+                node = parents.get(i);
+            }
+            if (node.isEmpty() && parents.isEmpty()) root = null;
+        } else {
+            node.put(segments[segments.length - 1], value);
+        }
+    }
+
+    /**
+     * Split a '/'-separated path into segments, ignoring empty segments.
+     *
+     * @param path The path, e.g. "/a/b" or "a/b"; "" and "/" are the root.
+     * @return The segments.
+     */
+    static String[] split(String path) {
+        ArrayList<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) segments.add(segment);
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    /**
+     * Convert parsed org.json values into plain Java trees.
+     *
+     * @param value A JSONObject, JSONArray, JSONObject.NULL or leaf.
+     * @return The plain Java value; integers become Long.
+     */
+    static Object fromJson(Object value) {
+        if (value == null || value == JSONObject.NULL) return null;
+        if (value instanceof JSONObject) {
+            JSONObject json = (JSONObject) value;
+            HashMap<String, Object> map = new HashMap<>();
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                Object child = fromJson(json.opt(key));
+                if (child != null) map.put(key, child);
+            }
+            return map.isEmpty() ? null : map;
+        }
+        if (value instanceof JSONArray) {
+            // The database stores arrays as objects keyed by index
+            JSONArray array = (JSONArray) value;
+            HashMap<String, Object> map = new HashMap<>();
+            for (int i = 0; i < array.length(); i++) {
+                Object child = fromJson(array.opt(i));
+                if (child != null) map.put(String.valueOf(i), child);
+            }
+            return map.isEmpty() ? null : map;
+        }
+        if (value instanceof Integer) return ((Integer) value).longValue();
+        return value;
+    }
+
+    /**
+     * Convert a plain Java tree into org.json values for a request body.
+     *
+     * @param value The plain Java value; null becomes JSONObject.NULL, which deletes on the server.
+     * @return The JSON value.
+     */
+    static Object toJson(Object value) {
+        if (value == null) return JSONObject.NULL;
+        if (!(value instanceof Map)) return value;
+        JSONObject json = new JSONObject();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            try {
+                json.put(entry.getKey().toString(), toJson(entry.getValue()));
+            } catch (JSONException e) {
+                // Only thrown for non-finite doubles, which the database cannot store either
+                json.remove(entry.getKey().toString());
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Deliver the differences between two versions of a parent's children to a child listener.
+     * Delivered nodes are copies, so the mirror may keep changing while they are read.
+     *
+     * @param listener The listener.
+     * @param before   The old parent value.
+     * @param after    The new parent value.
+     */
+    static void emitChildren(HomeBackend.ChildListener listener, Object before, Object after) {
+        Map<?, ?> oldChildren = before instanceof Map ? (Map<?, ?>) before : new HashMap<>();
+        Map<?, ?> newChildren = after instanceof Map ? (Map<?, ?>) after : new HashMap<>();
+        for (Object key : oldChildren.keySet()) {
+            if (!newChildren.containsKey(key)) listener.onChildRemoved(key.toString());
+        }
+        for (Map.Entry<?, ?> entry : newChildren.entrySet()) {
+            if (!Objects.equals(oldChildren.get(entry.getKey()), entry.getValue())) {
+                listener.onChildPut(new MapNode(entry.getKey().toString(), copy(entry.getValue())));
+            }
+        }
+    }
+
+    /**
+     * Deliver the current state of one child to a child listener.
+     *
+     * @param listener The listener.
+     * @param parent   The parent value.
+     * @param key      The key of the child.
+     */
+    static void emitChild(HomeBackend.ChildListener listener, Object parent, String key) {
+        Object value = parent instanceof Map ? ((Map<?, ?>) parent).get(key) : null;
+        if (value == null) listener.onChildRemoved(key);
+        else listener.onChildPut(new MapNode(key, copy(value)));
+    }
+
+    /**
+     * Deep-copy a plain Java tree so later mutations of the mirror cannot leak into delivered nodes.
+     *
+     * @param value The value.
+     * @return The copy.
+     */
+    static Object copy(Object value) {
+        if (!(value instanceof Map)) return value;
+        HashMap<String, Object> map = new HashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            map.put(entry.getKey().toString(), copy(entry.getValue()));
+        }
+        return map;
+    }
+
+    /**
+     * Generate a Firebase-style push ID: 8 timestamp characters then 12 random characters,
+     * so IDs sort chronologically.
+     *
+     * @return The push ID.
+     */
+    static synchronized String generatePushId() {
+        long now = System.currentTimeMillis();
+        boolean duplicateTime = now == lastPushTime;
+        lastPushTime = now;
+        char[] timeChars = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            timeChars[i] = PUSH_CHARS.charAt((int) (now % 64));
+            now /= 64;
+        }
+        StringBuilder id = new StringBuilder(20).append(timeChars);
+        if (!duplicateTime) {
+            for (int i = 0; i < 12; i++) lastRandChars[i] = RANDOM.nextInt(64);
+        } else {
+            // Same millisecond: increment the random part so IDs stay unique and ordered
+            int i = 11;
+            for (; i >= 0 && lastRandChars[i] == 63; i--) lastRandChars[i] = 0;
+            if (i >= 0) lastRandChars[i]++;
+        }
+        for (int i = 0; i < 12; i++) id.append(PUSH_CHARS.charAt(lastRandChars[i]));
+        return id.toString();
+    }
+
+    /**
+     * Wrap a listener so every callback runs on an executor, and none runs once the listener was removed.
+     *
+     * @param executor The executor, usually the main thread.
+     * @param listener The listener.
+     * @param active   Cleared when the listener is removed.
+     * @return The wrapping listener.
+     */
+    static HomeBackend.ChildListener postingTo(Executor executor, HomeBackend.ChildListener listener, AtomicBoolean active) {
+        return new HomeBackend.ChildListener() {
+            @Override
+            public void onChildPut(HomeBackend.Node child) {
+                executor.execute(() -> {
+                    if (active.get()) listener.onChildPut(child);
+                });
+            }
+
+            @Override
+            public void onChildRemoved(String key) {
+                executor.execute(() -> {
+                    if (active.get()) listener.onChildRemoved(key);
+                });
+            }
+
+            @Override
+            public void onInitialLoaded(Set<String> keys) {
+                executor.execute(() -> {
+                    if (active.get()) listener.onInitialLoaded(keys);
+                });
+            }
+
+            @Override
+            public void onCancelled(String reason) {
+                executor.execute(() -> {
+                    if (active.get()) listener.onCancelled(reason);
+                });
+            }
+        };
+    }
+
+    /**
+     * Collect the child keys of a plain Java value.
+     *
+     * @param value The value.
+     * @return The keys; empty for leaves and null.
+     */
+    static Set<String> keysOf(Object value) {
+        HashSet<String> keys = new HashSet<>();
+        if (value instanceof Map) {
+            for (Object key : ((Map<?, ?>) value).keySet()) keys.add(key.toString());
+        }
+        return keys;
+    }
+
+    /**
+     * Node over a plain Java value.
+     */
+    static final class MapNode implements HomeBackend.Node {
+        private final String key;
+        private final Object value;
+
+        MapNode(String key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public Object value() {
+            return value;
+        }
+
+        @Override
+        public HomeBackend.Node child(String childKey) {
+            return new MapNode(childKey, value instanceof Map ? ((Map<?, ?>) value).get(childKey) : null);
+        }
+
+        @Override
+        public long childrenCount() {
+            return value instanceof Map ? ((Map<?, ?>) value).size() : 0;
+        }
+    }
+}
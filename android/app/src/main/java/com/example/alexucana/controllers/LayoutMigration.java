@@ -0,0 +1,134 @@
+/**
+ * LayoutMigration: Copies a home from the v2 database layout to the v3 layout.
+ *
+ * v2 keeps everything of a device in one node: <room>/devices_map/<device>/{device_name, sensors,
+ * controllable}. The devices rewrite their sensors every few seconds, so every listener on a room
+ * downloaded readings along with the configuration. v3 splits the two:
+ *
+ *   rooms/<room>/room_name
+ *   rooms/<room>/devices_map/<device>/{device_name, controllable}
+ *   telemetry/<device>/{room_id, <sensor>: reading}
+ *   reported/<device>/room_id
+ *
+ * The copy is one multi-path update that only sets leaves and device branches, so running it
+ * again is harmless and the v2 home is left as it was until it is deleted by hand.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The LayoutMigration class reads a v2 home once and writes it into a v3 home.
+ */
+public final class LayoutMigration {
+
+    public static final String TAG = LayoutMigration.class.getSimpleName();
+
+    private LayoutMigration() {
+    }
+
+    /**
+     * Migrate a home. Callbacks run on the backends' callback thread (the main thread for the
+     * bundled backends); the home is read once, so this is meant to run once per home, e.g. from
+     * a debug menu or a one-off build.
+     *
+     * @param v2         The backend rooted at the v2 home, e.g. new FirebaseBackend("alexucana_v2").
+     * @param v3         The backend rooted at the v3 home, e.g. new FirebaseBackend("alexucana_v3").
+     * @param completion Called when the v3 home accepted or rejected the copy; may be null.
+     */
+    public static void migrate(HomeBackend v2, HomeBackend v3, HomeBackend.Completion completion) {
+        LinkedHashMap<String, Object> rooms = new LinkedHashMap<>();
+        AtomicBoolean loaded = new AtomicBoolean(false);
+        // Later changes are not copied: the listener is detached after the initial read, which
+        // some backends deliver before addChildListener even returns
+        AtomicReference<HomeBackend.Registration> registration = new AtomicReference<>();
+        HomeBackend.Registration attached = v2.addChildListener("", new HomeBackend.ChildListener() {
+            @Override
+            public void onChildPut(HomeBackend.Node child) {
+                if (!loaded.get()) rooms.put(child.key(), child.value());
+            }
+
+            @Override
+            public void onChildRemoved(String key) {
+                if (!loaded.get()) rooms.remove(key);
+            }
+
+            @Override
+            public void onInitialLoaded(Set<String> keys) {
+                if (!loaded.compareAndSet(false, true)) return;
+                detach(registration);
+                Map<String, Object> update = toV3(rooms);
+                Log.d(TAG, "Copying " + rooms.size() + " rooms as " + update.size() + " paths");
+                if (update.isEmpty()) {
+                    if (completion != null) completion.apply(true, null);
+                    return;
+                }
+                v3.update(update, completion);
+            }
+
+            @Override
+            public void onCancelled(String reason) {
+                if (!loaded.compareAndSet(false, true)) return;
+                detach(registration);
+                Log.e(TAG, "Could not read the v2 home: " + reason);
+                if (completion != null) completion.apply(false, reason);
+            }
+        });
+        if (!registration.compareAndSet(null, attached)) attached.remove();
+    }
+
+    /**
+     * Detach the migration's listener, or mark it to be detached as soon as it is known.
+     *
+     * @param registration Holds the registration once addChildListener returned.
+     */
+    private static void detach(AtomicReference<HomeBackend.Registration> registration) {
+        HomeBackend.Registration attached = registration.getAndSet(() -> {
+        });
+        if (attached != null) attached.remove();
+    }
+
+    /**
+     * Build the v3 update for a set of v2 rooms.
+     *
+     * @param rooms The v2 room values keyed by room ID.
+     * @return The values keyed by v3 path.
+     */
+    static Map<String, Object> toV3(Map<String, Object> rooms) {
+        HashMap<String, Object> update = new HashMap<>();
+        for (Map.Entry<String, Object> room : rooms.entrySet()) {
+            if (!(room.getValue() instanceof Map)) continue;
+            Map<?, ?> props = (Map<?, ?>) room.getValue();
+            String roomPath = DataManager.ROOMS_PATH + "/" + room.getKey();
+            update.put(roomPath + "/room_name", props.get("room_name"));
+            Object devicesMap = props.get("devices_map");
+            if (!(devicesMap instanceof Map)) continue;
+            for (Map.Entry<?, ?> device : ((Map<?, ?>) devicesMap).entrySet()) {
+                if (!(device.getValue() instanceof Map)) continue;
+                Map<?, ?> deviceProps = (Map<?, ?>) device.getValue();
+                String deviceId = String.valueOf(device.getKey());
+                String devicePath = roomPath + "/devices_map/" + deviceId;
+                update.put(devicePath + "/device_name", deviceProps.get("device_name"));
+                // Whole branches, so keys the v3 home had and v2 does not are dropped too
+                update.put(devicePath + "/controllable", deviceProps.get("controllable"));
+                // The devices' writes need both nodes to exist, as if the devices had registered in v3
+                HashMap<Object, Object> telemetry = new HashMap<>();
+                if (deviceProps.get("sensors") instanceof Map) telemetry.putAll((Map<?, ?>) deviceProps.get("sensors"));
+                telemetry.put(DataManager.DEVICE_ROOM_KEY, room.getKey());
+                update.put(DataManager.TELEMETRY_PATH + "/" + deviceId, telemetry);
+                update.put(DataManager.REPORTED_PATH + "/" + deviceId + "/" + DataManager.DEVICE_ROOM_KEY, room.getKey());
+            }
+        }
+        // A null would delete the path; a missing v2 field should leave v3 alone
+        update.values().removeIf(value -> value == null);
+        return update;
+    }
+}
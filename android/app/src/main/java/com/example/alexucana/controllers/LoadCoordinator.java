@@ -0,0 +1,149 @@
+/**
+ * LoadCoordinator: Load state of each part of the home, with at most one load in flight per part.
+ *
+ * A part is the room headers ("") or the devices of one room (its room ID). Attaching a database
+ * listener starts a load that ends with the listener's initial-load signal. Asking for a part
+ * that is already loading joins that load instead of starting another, and a part with cached
+ * data is revalidated while the cached data stays on screen.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import com.example.alexucana.models.LoadState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The LoadCoordinator class tracks load states and notifies their observers. Main thread only.
+ */
+final class LoadCoordinator {
+
+    private final HashMap<String, LoadState> states = new HashMap<>();
+    private final HashMap<String, ArrayList<DataManager.OnLoadStateChanged>> observers = new HashMap<>();
+
+    // Called after a change of any part, to wait for several parts at once
+    private final ArrayList<Runnable> anyObservers = new ArrayList<>();
+
+    /**
+     * Start loading a part, unless it is already loading or its last load failed.
+     *
+     * @param key     The part: "" for the room headers, or a room ID.
+     * @param hasData Whether cached data for the part can be shown meanwhile.
+     * @return True if the caller should start the load; false if one is already in flight or
+     *         the failure was not cleared for a retry yet.
+     */
+    boolean begin(String key, boolean hasData) {
+        LoadState.Status status = get(key).status;
+        if (status == LoadState.Status.LOADING || status == LoadState.Status.ERROR) return false;
+        set(key, LoadState.loading(hasData));
+        return true;
+    }
+
+    /**
+     * End a load successfully.
+     *
+     * @param key The part.
+     */
+    void loaded(String key) {
+        if (get(key).status == LoadState.Status.LOADING) set(key, LoadState.LOADED);
+    }
+
+    /**
+     * End a load with an error. Cached data, if any, stays on screen.
+     *
+     * @param key     The part.
+     * @param error   Why the load failed.
+     * @param hasData Whether cached data for the part is still shown.
+     */
+    void failed(String key, String error, boolean hasData) {
+        set(key, LoadState.failed(error, hasData));
+    }
+
+    /**
+     * Allow a failed part to be loaded again.
+     *
+     * @param key The part.
+     */
+    void clearError(String key) {
+        if (get(key).status == LoadState.Status.ERROR) states.remove(key);
+    }
+
+    /**
+     * Allow every failed part to be loaded again.
+     */
+    void clearErrors() {
+        states.values().removeIf(state -> state.status == LoadState.Status.ERROR);
+    }
+
+    /**
+     * Abandon a load whose listener was detached before it finished.
+     *
+     * @param key The part.
+     */
+    void abandon(String key) {
+        if (get(key).status == LoadState.Status.LOADING) set(key, LoadState.IDLE);
+    }
+
+    /**
+     * Forget a part that no longer exists, e.g. a deleted room.
+     *
+     * @param key The part.
+     */
+    void remove(String key) {
+        states.remove(key);
+    }
+
+    LoadState get(String key) {
+        LoadState state = states.get(key);
+        return state == null ? LoadState.IDLE : state;
+    }
+
+    /**
+     * Observe the load state of a part. The callback is called at once with the current state.
+     *
+     * @param key The part.
+     * @param cb  The callback.
+     * @return The subscription that removes the callback.
+     */
+    DataManager.Subscription observe(String key, DataManager.OnLoadStateChanged cb) {
+        ArrayList<DataManager.OnLoadStateChanged> list = observers.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            observers.put(key, list);
+        }
+        list.add(cb);
+        cb.apply(get(key));
+        return () -> {
+            ArrayList<DataManager.OnLoadStateChanged> current = observers.get(key);
+            if (current == null) return;
+            current.remove(cb);
+            if (current.isEmpty()) observers.remove(key);
+        };
+    }
+
+    /**
+     * Observe the load states of every part. Unlike observe(), the callback is only called on
+     * changes, after the new state is stored.
+     *
+     * @param cb The callback.
+     * @return The subscription that removes the callback.
+     */
+    DataManager.Subscription observeAll(Runnable cb) {
+        anyObservers.add(cb);
+        return () -> anyObservers.remove(cb);
+    }
+
+    private void set(String key, LoadState state) {
+        states.put(key, state);
+        ArrayList<DataManager.OnLoadStateChanged> list = observers.get(key);
+        if (list != null) {
+            for (DataManager.OnLoadStateChanged cb : new ArrayList<>(list)) {
+                cb.apply(state);
+            }
+        }
+        for (Runnable cb : new ArrayList<>(anyObservers)) {
+            cb.run();
+        }
+    }
+}
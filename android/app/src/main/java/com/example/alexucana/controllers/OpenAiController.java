@@ -9,25 +9,28 @@
 package com.example.alexucana.controllers;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.example.alexucana.config;
 import com.example.alexucana.fragments.alex.AlexFragment;
+import com.example.alexucana.models.HomeSnapshot;
+import com.example.alexucana.models.Room;
 import com.example.alexucana.utils.SseHandler;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
-import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.internal.sse.RealEventSource;
 
 /**
@@ -37,16 +40,37 @@ public class OpenAiController {
 
     public static final String TAG = OpenAiController.class.getSimpleName();
     private static final int TIMEOUT_SECONDS = 60;
-    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
     private static final String token = config.OPENAI_API_KEY;
 
-    private JSONArray functionsAsset; // The static template
+    // Messages kept in the conversation after the system message
+    private static final int MAX_MESSAGES = 10;
+
+    // What follows the question in a user message: a full state, changes, or no changes
+    private static final String FULL_STATE = "\n Current data:\n";
+    private static final String CHANGES = "\n Changes to the data:\n";
+    private static final String NO_CHANGES = "\n No changes to the data.";
+
+    // The request before the conversation, the system message included, and after it, functions
+    // included; encoded once
+    private final byte[] requestHead;
+    private final byte[] requestTail;
     public final SseHandler.OnContentChunkHandler onContentChunk;
 
     private final DataManager dbController;
+    private final HomeContext homeContext;
+    private final PromptEncoding promptEncoding;
     private final OkHttpClient httpClient;
-    private final JSONArray msgLog;
+    private final ArrayList<ChatRequestBody.Message> msgLog;
+
+    // The user message that carries the last full state; later turns send changes against it
+    // while it is still in msgLog
+    private ChatRequestBody.Message stateMsg = null;
+    private int stateRowsLength = 0;
     private String lastResponse = "";
+    private volatile boolean gzipRequests = false;
+
+    // When the last question was sent, until its first token arrives; 0 once it did
+    private volatile long questionSentAtMs = 0;
 
     /**
      * Interface for loading JSON data.
@@ -69,11 +93,13 @@ public class OpenAiController {
      * @param jsonLoader The JSON loader for loading data.
      */
     public OpenAiController(SseHandler.OnContentChunkHandler fn_1,  JsonLoader jsonLoader) {
-        msgLog = new JSONArray();
-        functionsAsset = new JSONArray();
+        msgLog = new ArrayList<>();
         dbController = DataManager.getInstance();
+        homeContext = new HomeContext(dbController);
+        promptEncoding = new PromptEncoding();
 
         onContentChunk = (content) -> {
+            if (content != null) logFirstToken();
             fn_1.apply(content);
             if(content==null) return;
             lastResponse += content;
@@ -85,13 +111,36 @@ public class OpenAiController {
                 .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
                 .build();
 
+        String systemMsg = "";
+        JSONArray functionsAsset = new JSONArray();
         try {
-            JSONObject systemMsg = new JSONObject(jsonLoader.apply("system_msg"));
-            msgLog.put(systemMsg);
+            systemMsg = new JSONObject(jsonLoader.apply("system_msg")).toString();
             functionsAsset = new JSONArray(jsonLoader.apply("functions"));
         } catch (JSONException e) {
             Log.e(TAG, e.getMessage());
         }
+        requestHead = ("{\"model\":\"gpt-3.5-turbo\",\"messages\":[" + systemMsg).getBytes(StandardCharsets.UTF_8);
+        requestTail = ("],\"functions\":" + functionsAsset
+                + ",\"function_call\":\"auto\",\"max_tokens\":3000,\"temperature\":0.8,\"n\":1,\"stream\":true}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Set how many tokens of home state are sent with a question.
+     *
+     * @param tokens The budget; 0 or less always sends the full state.
+     */
+    public void setContextTokenBudget(int tokens) {
+        homeContext.setTokenBudget(tokens);
+    }
+
+    /**
+     * Set whether request bodies are gzipped, for an endpoint that accepts compressed requests.
+     *
+     * @param gzip True to send bodies with Content-Encoding: gzip. Off by default.
+     */
+    public void setGzipRequests(boolean gzip) {
+        gzipRequests = gzip;
     }
 
     /**
@@ -100,38 +149,39 @@ public class OpenAiController {
      * @param question The user's question.
      */
     public void callOpenAiApi(String question) {
-        // OkHttpClient
-        JSONObject jsonBody = new JSONObject();
-        JSONObject newMsg = new JSONObject();
-        while (msgLog.length() > 2) {
-            msgLog.remove(1);
+        while (msgLog.size() >= MAX_MESSAGES) {
+            msgLog.remove(0);
         }
-        try {
-            newMsg.put("role", "user");
-            newMsg.put("content", question + "\n Current data: " + dbController.getDataAsJson().toString());
-            msgLog.put(newMsg);
-
-            jsonBody.put("model", "gpt-3.5-turbo");
-            jsonBody.put("messages", msgLog);
-            jsonBody.put("functions", functionsAsset);
-            jsonBody.put("function_call", "auto");
-            jsonBody.put("max_tokens", 3000);
-            jsonBody.put("temperature", 0.8);
-            jsonBody.put("n", 1);
-            jsonBody.put("stream", true);
-        } catch (JSONException e) {
-            Log.e(TAG, "JSON Exception: " + e.getMessage());
+        HomeSnapshot snapshot = dbController.getSnapshot();
+        // Changes only make sense while the model still sees the full state they apply to
+        String changes = null;
+        if (msgLog.contains(stateMsg)) {
+            changes = promptEncoding.encodeDelta(snapshot, homeContext.build(snapshot, question, false));
+        } else {
+            promptEncoding.forgetKnownState();
+        }
+        ChatRequestBody.Message newMsg;
+        if (changes != null) {
+            newMsg = new ChatRequestBody.Message("user",
+                    question + (changes.isEmpty() ? NO_CHANGES : CHANGES + changes), null);
+        } else {
+            // The new state replaces what the model was told, so earlier data must not outlive it
+            dropEarlierData();
+            // Only the aliases are assigned here; the rows are written with the request
+            HomeSnapshot selection = homeContext.build(snapshot, question, true);
+            stateRowsLength = promptEncoding.remember(selection);
+            newMsg = new ChatRequestBody.Message("user", question + FULL_STATE, selection);
+            stateMsg = newMsg;
         }
+        msgLog.add(newMsg);
 
-        RequestBody body = RequestBody.create(jsonBody.toString(), JSON);
-        Request request = new Request.Builder()
+        ChatRequestBody body = new ChatRequestBody(requestHead, msgLog, requestTail, promptEncoding, gzipRequests);
+        Request.Builder builder = new Request.Builder()
                 .url("https://api.openai.com/v1/chat/completions")
                 .header("Authorization", "Bearer " + token)
-                .header("Accept", "text/event-stream")
-                .post(body)
-                .build();
-
-        Log.d("Req body", jsonBody.toString());
+                .header("Accept", "text/event-stream");
+        if (body.isGzipped()) builder.header("Content-Encoding", "gzip");
+        Request request = builder.post(body).build();
 
         RealEventSource realEventSource =
                 new RealEventSource(
@@ -142,22 +192,52 @@ public class OpenAiController {
                                 this::execFunction)
                 );
 
+        questionSentAtMs = SystemClock.elapsedRealtime();
         realEventSource.connect(httpClient);
 
         // Fire the request
         httpClient.newCall(request);
 
         // Logging for debug
-        Log.d(TAG, "Sent a question: " + question);
+        int bodyLength = requestHead.length + requestTail.length;
+        for (ChatRequestBody.Message msg : msgLog) {
+            bodyLength += msg.content.length() + (msg.state != null ? stateRowsLength : 0);
+        }
+        Log.d(TAG, "Sent a question: " + question + ", "
+                + (changes != null ? changes.length() + " chars of home changes" : stateRowsLength + " bytes of home data")
+                + ", about " + HomeContext.estimateTokens(bodyLength) + " prompt tokens");
+    }
 
-        JSONObject currentData = dbController.getDataAsJson();
-        if (currentData != null) {
-            Log.d(TAG, currentData.toString());
-        } else {
-            Log.d(TAG, "No data from firebase");
+    /**
+     * Strip the home data (full states and changes) from the earlier user messages, keeping their
+     * questions. The model then only sees the rows of the next full state and the changes sent
+     * after it, which is exactly what PromptEncoding tracks as known; rooms and devices that were
+     * only in an older state would otherwise stay visible with values nobody updates.
+     */
+    private void dropEarlierData() {
+        for (int i = 0; i < msgLog.size(); i++) {
+            ChatRequestBody.Message msg = msgLog.get(i);
+            if (!msg.role.equals("user")) continue;
+            int end = msg.content.length();
+            for (String marker : new String[]{FULL_STATE, CHANGES, NO_CHANGES}) {
+                int at = msg.content.lastIndexOf(marker);
+                if (at >= 0 && at < end) end = at;
+            }
+            if (end == msg.content.length() && msg.state == null) continue;
+            msgLog.set(i, new ChatRequestBody.Message("user", msg.content.substring(0, end), null));
         }
     }
 
+    /**
+     * Log the time to the first token of the answer, once per question.
+     */
+    private void logFirstToken() {
+        long sentAtMs = questionSentAtMs;
+        if (sentAtMs == 0) return;
+        questionSentAtMs = 0;
+        Log.d(TAG, "Time to first token: " + (SystemClock.elapsedRealtime() - sentAtMs) + " ms");
+    }
+
     /**
      * Execute a function based on its name and arguments.
      *
@@ -166,6 +246,8 @@ public class OpenAiController {
      * @throws JSONException    If there is an issue with JSON parsing.
      */
     private void execFunction(String fnName, String argsAsJsonString) throws JSONException {
+        logFirstToken();
+        dbController.logFunctionCall(fnName, argsAsJsonString);
         switch (fnName) {
             case "set_device_data":
                 onContentChunk.apply("Đã rõ");
@@ -189,8 +271,30 @@ public class OpenAiController {
         if (sayOk != null) sayOk.apply();
 
         final JSONObject tmp = new JSONObject(args);
-        final String roomId = tmp.optString("room_id");
-        final String deviceId = tmp.optString("device_id");
+        // The assistant names rooms and devices by their aliases
+        final String deviceAlias = tmp.optString("device_id");
+        final String deviceId = promptEncoding.deviceId(deviceAlias);
+        if (deviceId == null) {
+            Log.e(TAG, "Function call error, " + deviceAlias + " is not a device alias");
+            return;
+        }
+        final String roomAlias = tmp.optString("room_id");
+        String roomId = promptEncoding.roomId(roomAlias);
+        final String listedRoomId = promptEncoding.roomIdOfDevice(deviceAlias);
+        if (listedRoomId != null && !listedRoomId.equals(roomId)) {
+            Log.w(TAG, "Device " + deviceAlias + " called in room " + roomAlias + ", it was listed in " + listedRoomId);
+            roomId = listedRoomId;
+        }
+        if (roomId == null) {
+            Log.e(TAG, "Function call error, " + roomAlias + " is not a room alias");
+            return;
+        }
+        // A write to an ID that does not exist would create phantom nodes in the database
+        Room room = dbController.getSnapshot().room(roomId);
+        if (room == null || room.device(deviceId) == null) {
+            Log.e(TAG, "Function call error, no device " + deviceAlias + " in room " + roomAlias);
+            return;
+        }
         final String newData = tmp.optString("new_data");
         Uri uri = Uri.parse(newData);
 
@@ -219,14 +323,7 @@ public class OpenAiController {
      */
     private void appendResponseToMsgLog() {
         if (lastResponse.isEmpty()) return;
-        JSONObject newMsg = new JSONObject();
-        try {
-            newMsg.put("role", "assistant");
-            newMsg.put("content", lastResponse);
-            lastResponse = "";
-            msgLog.put(newMsg);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
+        msgLog.add(new ChatRequestBody.Message("assistant", lastResponse, null));
+        lastResponse = "";
     }
 }
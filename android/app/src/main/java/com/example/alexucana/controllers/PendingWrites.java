@@ -0,0 +1,242 @@
+/**
+ * PendingWrites: Controllable writes applied locally but not yet acknowledged by the server.
+ *
+ * Every write gets a sequence number. While a device has pending writes, DataManager keeps the
+ * last state the server reported for it ("confirmed") and shows that state with the pending
+ * values laid over it. Server events replace the confirmed state without undoing the overlay, an
+ * acknowledgement folds the acknowledged value into the confirmed state, and a rejection drops the
+ * write so the device falls back to the confirmed state.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import com.example.alexucana.models.Device;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The PendingWrites class tracks optimistic writes per device.
+ * Only sequence numbers may be taken from any thread; everything else runs on DataManager's sync thread.
+ */
+final class PendingWrites {
+
+    /**
+     * One optimistic write of a controllable value.
+     */
+    static final class Write {
+        final long seq;
+        final String roomId;
+        final String deviceId;
+        final String key;
+        final Object value;
+
+        Write(long seq, String roomId, String deviceId, String key, Object value) {
+            this.seq = seq;
+            this.roomId = roomId;
+            this.deviceId = deviceId;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The pending writes of one device and the state the server last reported for it.
+     */
+    private static final class DeviceWrites {
+        Device confirmed;
+        final HashMap<String, Write> byKey = new HashMap<>();
+
+        DeviceWrites(Device confirmed) {
+            this.confirmed = confirmed;
+        }
+    }
+
+    private final AtomicLong lastSeq = new AtomicLong();
+    private final HashMap<String, DeviceWrites> devices = new HashMap<>();
+
+    /**
+     * Take the next sequence number. Safe to call from any thread.
+     *
+     * @return The sequence number.
+     */
+    long nextSeq() {
+        return lastSeq.incrementAndGet();
+    }
+
+    /**
+     * Track a write.
+     *
+     * @param write   The write.
+     * @param current The device as currently shown, or null if it is not known yet.
+     * @return The device with all pending writes applied, or null if the device is not known.
+     */
+    Device add(Write write, Device current) {
+        String id = deviceKey(write.roomId, write.deviceId);
+        DeviceWrites pending = devices.get(id);
+        if (pending == null) {
+            // No overlay yet, so what is shown is what the server reported
+            pending = new DeviceWrites(current);
+            devices.put(id, pending);
+        }
+        Write previous = pending.byKey.get(write.key);
+        if (previous == null || previous.seq < write.seq) pending.byKey.put(write.key, write);
+        return overlay(pending);
+    }
+
+    /**
+     * Get the state the server last reported for a device.
+     *
+     * @param roomId   The ID of the room.
+     * @param deviceId The ID of the device.
+     * @param shown    The device as currently shown.
+     * @return The confirmed device; the shown one if no write is pending for it.
+     */
+    Device confirmed(String roomId, String deviceId, Device shown) {
+        DeviceWrites pending = devices.get(deviceKey(roomId, deviceId));
+        return pending == null ? shown : pending.confirmed;
+    }
+
+    /**
+     * Check whether a write to a key is pending.
+     *
+     * @param roomId   The ID of the room.
+     * @param deviceId The ID of the device.
+     * @param key      The controllable key.
+     * @return True if a write to the key was applied locally and not yet acknowledged.
+     */
+    boolean has(String roomId, String deviceId, String key) {
+        DeviceWrites pending = devices.get(deviceKey(roomId, deviceId));
+        return pending != null && pending.byKey.containsKey(key);
+    }
+
+    /**
+     * Check whether any write to a device of a room is pending.
+     *
+     * @param roomId The ID of the room.
+     * @return True if the room has a device with writes not yet acknowledged.
+     */
+    boolean hasRoom(String roomId) {
+        String prefix = roomId + "/";
+        for (String id : devices.keySet()) {
+            if (id.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drop the pending write to a key, e.g. because it was cancelled before being sent.
+     *
+     * @param roomId   The ID of the room.
+     * @param deviceId The ID of the device.
+     * @param key      The controllable key.
+     * @return The device to show now, or null if nothing was pending for it.
+     */
+    Device drop(String roomId, String deviceId, String key) {
+        String id = deviceKey(roomId, deviceId);
+        DeviceWrites pending = devices.get(id);
+        if (pending == null || pending.byKey.remove(key) == null) return null;
+        return settle(id, pending);
+    }
+
+    /**
+     * Handle a device reported by the server.
+     *
+     * @param roomId The ID of the room.
+     * @param server The device as reported.
+     * @return The device to show: the server state with pending writes laid over it.
+     */
+    Device onServerDevice(String roomId, Device server) {
+        DeviceWrites pending = devices.get(deviceKey(roomId, server.id));
+        if (pending == null) return server;
+        pending.confirmed = server;
+        return overlay(pending);
+    }
+
+    /**
+     * Handle the server accepting a write. A newer write to the same key stays pending.
+     *
+     * @param write The acknowledged write.
+     * @return The device to show now, or null if nothing was pending for it.
+     */
+    Device ack(Write write) {
+        String id = deviceKey(write.roomId, write.deviceId);
+        DeviceWrites pending = devices.get(id);
+        if (pending == null) return null;
+        if (pending.confirmed != null) {
+            pending.confirmed = pending.confirmed.withControllable(Collections.singletonMap(write.key, write.value));
+        }
+        Write current = pending.byKey.get(write.key);
+        if (current != null && current.seq <= write.seq) pending.byKey.remove(write.key);
+        return settle(id, pending);
+    }
+
+    /**
+     * Handle the server rejecting a write: it and any older write to the same key are rolled back.
+     *
+     * @param write The rejected write.
+     * @return The device to show now, or null if nothing was pending for it.
+     */
+    Device reject(Write write) {
+        String id = deviceKey(write.roomId, write.deviceId);
+        DeviceWrites pending = devices.get(id);
+        if (pending == null) return null;
+        Write current = pending.byKey.get(write.key);
+        if (current != null && current.seq <= write.seq) pending.byKey.remove(write.key);
+        return settle(id, pending);
+    }
+
+    /**
+     * Forget a removed device.
+     *
+     * @param roomId   The ID of the room.
+     * @param deviceId The ID of the device.
+     */
+    void forget(String roomId, String deviceId) {
+        devices.remove(deviceKey(roomId, deviceId));
+    }
+
+    /**
+     * Forget every device of a removed room.
+     *
+     * @param roomId The ID of the room.
+     */
+    void forgetRoom(String roomId) {
+        devices.keySet().removeIf(id -> id.startsWith(roomId + "/"));
+    }
+
+    /**
+     * Get the number of writes still waiting for the server.
+     *
+     * @return The count.
+     */
+    int size() {
+        int n = 0;
+        for (DeviceWrites pending : devices.values()) n += pending.byKey.size();
+        return n;
+    }
+
+    /**
+     * Compute the device to show, and stop tracking the device once nothing is pending.
+     */
+    private Device settle(String id, DeviceWrites pending) {
+        Device shown = overlay(pending);
+        if (pending.byKey.isEmpty()) devices.remove(id);
+        return shown;
+    }
+
+    private static Device overlay(DeviceWrites pending) {
+        if (pending.confirmed == null || pending.byKey.isEmpty()) return pending.confirmed;
+        HashMap<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, Write> entry : pending.byKey.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().value);
+        }
+        return pending.confirmed.withControllable(values);
+    }
+
+    private static String deviceKey(String roomId, String deviceId) {
+        return roomId + "/" + deviceId;
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ * PromptEncoding: Compact text form of the home state for the assistant, with short ID aliases.
+ *
+ * Firebase push IDs are 20 random characters that the model has to copy back verbatim in
+ * set_device_data; they cost prompt and completion tokens and get miscopied. Each room and device
+ * gets a short alias instead, r1, r2, ... and d1, d2, ..., kept for the whole conversation so
+ * earlier turns stay valid. Devices are sent as one row each under the row of their room:
+ *
+ *   r1 Phòng khách (+8 not shown)
+ *   d1|Đèn trần|temperature=30|rgb_led_hex_color=0xff0000
+ *
+ * with the columns alias, name, sensors and controllable values, key=value pairs separated by
+ * commas and "-" for none. Each Room and Device serializes its row once (see Device.promptRow()),
+ * and a changed device is a new object, so building a prompt only re-serializes what changed
+ * since the last one. The rows are never joined into one string: they are copied straight into
+ * the request body as it is written (see ChatRequestBody).
+ *
+ * The assistant's function calls name aliases, which resolve back to the real IDs here; a real ID
+ * passes through unchanged. Room and device aliases resolve through separate maps, so a device
+ * alias given as a room (or the reverse), or an alias never assigned, is an error rather than
+ * another node's ID.
+ *
+ * Later turns of a conversation only send what changed since the state the model was last told,
+ * one line per change:
+ *
+ *   d17.sensors.temperature 29→31      a value changed; "-" stands for a missing value
+ *   d17.name Lamp→Desk lamp            a device was renamed
+ *   +r2 d18|Desk lamp|-|power=true     a device the model has not seen yet, in room r2
+ *   -d18                               a device was removed
+ *   +r5 Garage                         a room the model has not seen yet
+ *   -r5                                a room was removed
+ *
+ */
+package com.example.alexucana.controllers;
+
+import com.example.alexucana.models.Device;
+import com.example.alexucana.models.HomeSnapshot;
+import com.example.alexucana.models.Room;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import okio.BufferedSink;
+
+/**
+ * The PromptEncoding class assigns aliases for one conversation and renders snapshots as rows.
+ * All methods are synchronized; encoding and resolving happen on different threads.
+ */
+public class PromptEncoding {
+
+    public static final byte SEPARATOR = '|';
+
+    private final HashMap<String, String> aliasById = new HashMap<>();
+    private final HashMap<String, String> roomIdByAlias = new HashMap<>();
+    private final HashMap<String, String> deviceIdByAlias = new HashMap<>();
+
+    // The room alias each device alias was last listed under
+    private final HashMap<String, String> roomAliasOfDevice = new HashMap<>();
+
+    private int roomAliases = 0;
+    private int deviceAliases = 0;
+
+    // The state the model was told so far: every room and device sent, as it was sent; null
+    // until a full state is sent
+    private HomeSnapshot known = null;
+
+    /**
+     * Remember a snapshot, or a selection of one, as what the model knows, assigning aliases to
+     * what it holds. Its rows are written later, with the request, by writeRows(). This replaces
+     * what the model knew, so the caller must drop earlier state from the conversation.
+     *
+     * @param selection The snapshot.
+     * @return The length of its rows in UTF-8 bytes.
+     */
+    public synchronized int remember(HomeSnapshot selection) {
+        known = selection;
+        int size = 0;
+        for (Room room : selection.rooms) {
+            String roomAlias = alias(room.id, 'r');
+            size += roomAlias.length() + 1 + room.promptName().length + hiddenSuffixLength(room) + 1;
+            for (Device device : room.devices) {
+                String deviceAlias = alias(device.id, 'd');
+                roomAliasOfDevice.put(deviceAlias, roomAlias);
+                size += deviceAlias.length() + 1 + device.promptRow().length + 1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Describe what changed since the state the model was last told, and remember the result as
+     * what it knows. Covers every room and device the model knows, plus the devices of the
+     * selection it has not seen yet.
+     *
+     * @param current   The current home snapshot.
+     * @param selection The devices relevant to the question, selected from current.
+     * @return The changes, one per line, empty if nothing changed; or null if the model was not
+     * told a full state yet, or the changes would take more UTF-8 bytes than the selection's rows.
+     */
+    public synchronized String encodeDelta(HomeSnapshot current, HomeSnapshot selection) {
+        if (known == null) return null;
+        StringBuilder sb = new StringBuilder();
+        HomeSnapshot next = known;
+        for (Room knownRoom : known.rooms) {
+            Room room = current.room(knownRoom.id);
+            if (room == null) {
+                sb.append('-').append(alias(knownRoom.id, 'r')).append('\n');
+                next = next.withoutRoom(knownRoom.id);
+                continue;
+            }
+            Room nextRoom = next.room(room.id);
+            if (!room.name.equals(knownRoom.name)) {
+                change(sb, alias(room.id, 'r'), "name", knownRoom.name, room.name);
+                nextRoom = Room.of(room.id, room.name, nextRoom.devices);
+            }
+            // Devices of a room that is not fully loaded are unknown, not removed
+            boolean loaded = room.devices.size() == room.deviceCount;
+            for (Device knownDevice : knownRoom.devices) {
+                Device device = room.device(knownDevice.id);
+                if (device == null) {
+                    if (!loaded) continue;
+                    sb.append('-').append(alias(knownDevice.id, 'd')).append('\n');
+                    nextRoom = nextRoom.withoutDevice(knownDevice.id);
+                } else if (!device.equals(knownDevice)) {
+                    describe(sb, alias(device.id, 'd'), knownDevice, device);
+                    nextRoom = nextRoom.withDevice(device);
+                }
+            }
+            next = next.withRoom(nextRoom);
+        }
+        for (Room room : selection.rooms) {
+            Room nextRoom = next.room(room.id);
+            String roomAlias = alias(room.id, 'r');
+            if (nextRoom == null) {
+                sb.append('+').append(roomAlias).append(' ').append(Device.promptText(room.name)).append('\n');
+                nextRoom = Room.of(room.id, room.name, Collections.emptyList());
+            }
+            for (Device device : room.devices) {
+                if (nextRoom.device(device.id) != null) continue;
+                String deviceAlias = alias(device.id, 'd');
+                roomAliasOfDevice.put(deviceAlias, roomAlias);
+                sb.append('+').append(roomAlias).append(' ').append(deviceAlias).append((char) SEPARATOR)
+                        .append(new String(device.promptRow(), StandardCharsets.UTF_8)).append('\n');
+                nextRoom = nextRoom.withDevice(device);
+            }
+            next = next.withRoom(nextRoom);
+        }
+        // Both sides in UTF-8 bytes, so non-ASCII names weigh the same in the delta and the rows
+        String delta = sb.toString();
+        if (delta.getBytes(StandardCharsets.UTF_8).length > encodedLength(selection)) return null;
+        known = next;
+        return delta;
+    }
+
+    /**
+     * Forget what the model was told, e.g. after the message holding the full state was trimmed
+     * from the conversation. The next state sent must be a full one.
+     */
+    public synchronized void forgetKnownState() {
+        known = null;
+    }
+
+    /**
+     * Write the rows of a remembered snapshot, one per line, escaped as the inside of a JSON string.
+     * Rooms and devices keep their serialized rows, so this only copies them with their aliases.
+     * The aliases are looked up under the lock and the rows written after it is released, so a slow
+     * upload never blocks alias resolution for function calls. A room whose deviceCount exceeds its
+     * listed devices says how many are not shown.
+     *
+     * @param selection The snapshot, passed to remember() before.
+     * @param sink      The sink of the request body.
+     * @throws IOException If the sink fails.
+     */
+    public void writeRows(HomeSnapshot selection, BufferedSink sink) throws IOException {
+        String[] aliases = aliasesOf(selection);
+        int k = 0;
+        // Indexed loops: the lists are random access, and an iterator per room would be the only
+        // allocation that grows with the home besides the aliases
+        for (int i = 0; i < selection.rooms.size(); i++) {
+            Room room = selection.rooms.get(i);
+            sink.writeUtf8(aliases[k++]).writeByte(' ');
+            ChatRequestBody.writeEscaped(sink, room.promptName());
+            int hidden = room.deviceCount - room.devices.size();
+            if (hidden > 0) sink.writeUtf8(" (+").writeDecimalLong(hidden).writeUtf8(" not shown)");
+            sink.writeUtf8("\\n");
+            for (int j = 0; j < room.devices.size(); j++) {
+                sink.writeUtf8(aliases[k++]).writeByte(SEPARATOR);
+                ChatRequestBody.writeEscaped(sink, room.devices.get(j).promptRow());
+                sink.writeUtf8("\\n");
+            }
+        }
+    }
+
+    /**
+     * Look up the aliases of a snapshot's rooms and devices, in the order writeRows() writes them.
+     *
+     * @param selection The snapshot.
+     * @return The aliases: each room followed by its devices.
+     */
+    private synchronized String[] aliasesOf(HomeSnapshot selection) {
+        int count = selection.rooms.size();
+        for (int i = 0; i < selection.rooms.size(); i++) {
+            count += selection.rooms.get(i).devices.size();
+        }
+        String[] aliases = new String[count];
+        int k = 0;
+        for (int i = 0; i < selection.rooms.size(); i++) {
+            Room room = selection.rooms.get(i);
+            aliases[k++] = alias(room.id, 'r');
+            for (int j = 0; j < room.devices.size(); j++) {
+                aliases[k++] = alias(room.devices.get(j).id, 'd');
+            }
+        }
+        return aliases;
+    }
+
+    /**
+     * Resolve a room alias.
+     *
+     * @param alias The alias, e.g. "r3", or a real room ID.
+     * @return The room ID; the argument itself if it is not an alias; null if it is a device alias
+     * or an alias this conversation never assigned.
+     */
+    public synchronized String roomId(String alias) {
+        String id = roomIdByAlias.get(alias);
+        if (id != null) return id;
+        return isAlias(alias) ? null : alias;
+    }
+
+    /**
+     * Resolve a device alias.
+     *
+     * @param alias The alias, e.g. "d17", or a real device ID.
+     * @return The device ID; the argument itself if it is not an alias; null if it is a room alias
+     * or an alias this conversation never assigned.
+     */
+    public synchronized String deviceId(String alias) {
+        String id = deviceIdByAlias.get(alias);
+        if (id != null) return id;
+        return isAlias(alias) ? null : alias;
+    }
+
+    /**
+     * Check whether a name has the shape of an alias, e.g. "r3" or "d17". Firebase push IDs start
+     * with '-' and never do.
+     */
+    private static boolean isAlias(String name) {
+        if (name.length() < 2 || (name.charAt(0) != 'r' && name.charAt(0) != 'd')) return false;
+        for (int i = 1; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the room a device alias was listed under, for calls that name the wrong room.
+     *
+     * @param deviceAlias The device alias.
+     * @return The room ID, or null if the alias was never sent.
+     */
+    public synchronized String roomIdOfDevice(String deviceAlias) {
+        String roomAlias = roomAliasOfDevice.get(deviceAlias);
+        return roomAlias == null ? null : roomIdByAlias.get(roomAlias);
+    }
+
+    /**
+     * Get the alias of an ID, assigning one if it has none yet.
+     *
+     * @param id     The room or device ID.
+     * @param prefix 'r' for rooms, 'd' for devices.
+     * @return The alias.
+     */
+    private String alias(String id, char prefix) {
+        String alias = aliasById.get(id);
+        if (alias == null) {
+            alias = prefix + String.valueOf(prefix == 'r' ? ++roomAliases : ++deviceAliases);
+            aliasById.put(id, alias);
+            (prefix == 'r' ? roomIdByAlias : deviceIdByAlias).put(alias, id);
+        }
+        return alias;
+    }
+
+    /**
+     * Describe the changed fields of a device.
+     */
+    private static void describe(StringBuilder sb, String alias, Device before, Device after) {
+        if (!before.name.equals(after.name)) change(sb, alias, "name", before.name, after.name);
+        TreeMap<String, Object> beforeSensors = sensorsOf(before);
+        TreeMap<String, Object> afterSensors = sensorsOf(after);
+        TreeSet<String> keys = new TreeSet<>(beforeSensors.keySet());
+        keys.addAll(afterSensors.keySet());
+        for (String key : keys) {
+            Object a = beforeSensors.get(key);
+            Object b = afterSensors.get(key);
+            if (a == null ? b != null : !a.equals(b)) change(sb, alias, "sensors." + key, a, b);
+        }
+        keys = new TreeSet<>(before.controllable.keySet());
+        keys.addAll(after.controllable.keySet());
+        for (String key : keys) {
+            Object a = before.controllable.get(key);
+            Object b = after.controllable.get(key);
+            if (a == null ? b != null : !a.equals(b)) change(sb, alias, "controllable." + key, a, b);
+        }
+    }
+
+    private static TreeMap<String, Object> sensorsOf(Device device) {
+        TreeMap<String, Object> sensors = new TreeMap<>();
+        for (int i = 0; i < device.sensorCount(); i++) {
+            sensors.put(device.sensorKey(i), device.sensorRaw(i));
+        }
+        return sensors;
+    }
+
+    private static void change(StringBuilder sb, String alias, String field, Object before, Object after) {
+        sb.append(alias).append('.').append(field).append(' ')
+                .append(before == null ? "-" : Device.promptText(String.valueOf(before))).append('→')
+                .append(after == null ? "-" : Device.promptText(String.valueOf(after))).append('\n');
+    }
+
+    /**
+     * Get the length of the rows of a snapshot, without assigning aliases.
+     */
+    private static int encodedLength(HomeSnapshot selection) {
+        int size = 0;
+        for (Room room : selection.rooms) {
+            size += 4 + room.promptName().length + hiddenSuffixLength(room) + 1;
+            for (Device device : room.devices) {
+                size += 5 + device.promptRow().length + 1;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the length of the " (+N not shown)" suffix of a room row, or 0 if every device is shown.
+     */
+    private static int hiddenSuffixLength(Room room) {
+        int hidden = room.deviceCount - room.devices.size();
+        return hidden > 0 ? 3 + String.valueOf(hidden).length() + 11 : 0;
+    }
+}
@@ -0,0 +1,617 @@
+/**
+ * RestSseBackend: HomeBackend on the Realtime Database REST streaming protocol.
+ *
+ * Each child listener opens one "Accept: text/event-stream" GET on "<path>.json", the same
+ * protocol the ESP32 firmware listens with. The server first sends a "put" of the whole subtree,
+ * then "put" and "patch" events for every change. Events are applied to a per-stream JsonTree
+ * mirror on the OkHttp thread, and only the children an event touches are reported, so a sensor
+ * update costs one small JSON parse instead of a full SDK cache. Writes are plain PATCH, PUT and
+ * DELETE requests.
+ *
+ * Listeners on the children of a parent in SHARED_PARENTS (telemetry/<device>, watched one
+ * device at a time) share one stream on the parent, filtered to the watched children, so a room
+ * of twenty devices holds one connection instead of twenty. The shared stream also downloads the
+ * readings of devices nobody watches; they are a few bytes each.
+ *
+ * The base URL can point at the production database or at a local stand-in server (e.g. the
+ * Firebase emulator), which is how the backends are compared.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import okhttp3.sse.EventSources;
+
+/**
+ * The RestSseBackend class implements HomeBackend with OkHttp and server-sent events.
+ */
+public class RestSseBackend implements HomeBackend {
+
+    public static final String TAG = RestSseBackend.class.getSimpleName();
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // Reconnect backoff after a dropped stream
+    private static final long MIN_RETRY_MS = 1000;
+    private static final long MAX_RETRY_MS = 60000;
+
+    // Parents whose children are listened to one by one, each by its own listener
+    private static final Set<String> SHARED_PARENTS = Collections.singleton(DataManager.TELEMETRY_PATH);
+
+    private final String baseUrl;
+    private final String authToken;
+    private final OkHttpClient httpClient;
+    private final Executor callbackExecutor;
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    // UTF-8 payload bytes received over all streams, for comparing backends
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    // Connected while the last stream event or request reached the server; assumed until one fails
+    private final AtomicBoolean connected = new AtomicBoolean(true);
+    private final CopyOnWriteArrayList<ConnectionListener> connectionListeners = new CopyOnWriteArrayList<>();
+
+    // Open shared streams keyed by parent path; also the lock for joining and leaving them
+    private final HashMap<String, ParentStream> parentStreams = new HashMap<>();
+
+    /**
+     * Constructor for the RestSseBackend class.
+     *
+     * @param baseUrl          The URL of the home root, e.g. "https://db.firebaseio.com/alexucana_v3".
+     * @param authToken        The auth token appended to every request, or null.
+     * @param httpClient       The HTTP client; streams need a read timeout of 0 or above the 30 s keep-alive.
+     * @param callbackExecutor The executor listener and completion callbacks run on, usually the main thread.
+     */
+    public RestSseBackend(String baseUrl, String authToken, OkHttpClient httpClient, Executor callbackExecutor) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.authToken = authToken;
+        this.httpClient = httpClient;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Get the number of event payload bytes received since the backend was created.
+     *
+     * @return The byte count.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public Registration addChildListener(String path, ChildListener listener) {
+        AtomicBoolean active = new AtomicBoolean(true);
+        ChildListener out = JsonTree.postingTo(callbackExecutor, listener, active);
+        String[] segments = JsonTree.split(path);
+        if (segments.length >= 2 && SHARED_PARENTS.contains(segments[segments.length - 2])) {
+            return joinParentStream(segments, out, active);
+        }
+        ListenerStream stream = new ListenerStream(path, out, active);
+        stream.connect();
+        return () -> {
+            active.set(false);
+            stream.close();
+        };
+    }
+
+    /**
+     * Watch one child through the shared stream of its parent, opening the stream if needed.
+     *
+     * @param segments The segments of the child's path.
+     * @param out      The listener, already posting to the callback executor.
+     * @param active   Cleared when the listener is removed.
+     * @return The registration that stops watching, closing the stream after the last watcher.
+     */
+    private Registration joinParentStream(String[] segments, ChildListener out, AtomicBoolean active) {
+        String parentPath = String.join("/", Arrays.copyOf(segments, segments.length - 1));
+        String child = segments[segments.length - 1];
+        ParentStream stream;
+        synchronized (parentStreams) {
+            stream = parentStreams.get(parentPath);
+            // A stream the server cancelled gets nothing more, so the next watcher opens a new one
+            if (stream == null || stream.stopped) {
+                stream = new ParentStream(parentPath);
+                parentStreams.put(parentPath, stream);
+                stream.connect();
+            }
+            stream.watch(child, out);
+        }
+        ParentStream joined = stream;
+        return () -> {
+            active.set(false);
+            synchronized (parentStreams) {
+                if (!joined.unwatch(child, out) || parentStreams.get(parentPath) != joined) return;
+                parentStreams.remove(parentPath);
+                joined.close();
+            }
+        };
+    }
+
+    @Override
+    public Registration addConnectionListener(ConnectionListener listener) {
+        connectionListeners.add(listener);
+        boolean current = connected.get();
+        callbackExecutor.execute(() -> listener.onConnectionChanged(current));
+        return () -> connectionListeners.remove(listener);
+    }
+
+    /**
+     * Record whether the server was reachable, and report changes.
+     *
+     * @param reachable Whether the last stream event or write reached the server.
+     */
+    private void setConnected(boolean reachable) {
+        if (connected.getAndSet(reachable) == reachable) return;
+        Log.d(TAG, reachable ? "Connected" : "Disconnected");
+        for (ConnectionListener listener : connectionListeners) {
+            callbackExecutor.execute(() -> listener.onConnectionChanged(reachable));
+        }
+        // Streams reconnect on their own, but without any the connection must be probed
+        if (!reachable) probe(MIN_RETRY_MS);
+    }
+
+    /**
+     * Poll the server with a shallow GET until it answers, backing off like the streams.
+     *
+     * @param delayMs The delay before the next probe.
+     */
+    private void probe(long delayMs) {
+        retryScheduler.schedule(() -> {
+            if (connected.get()) return;
+            String url = urlOf("");
+            url += (url.contains("?") ? "&" : "?") + "shallow=true";
+            httpClient.newCall(new Request.Builder().url(url).build()).enqueue(new Callback() {
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    probe(Math.min(delayMs * 2, MAX_RETRY_MS));
+                }
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    response.close();
+                    setConnected(true);
+                }
+            });
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void update(Map<String, Object> pathValues, Completion completion) {
+        JSONObject body = new JSONObject();
+        for (Map.Entry<String, Object> entry : pathValues.entrySet()) {
+            try {
+                body.put(entry.getKey(), JsonTree.toJson(entry.getValue()));
+            } catch (JSONException e) {
+                Log.e(TAG, "Skipping " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+        send(new Request.Builder()
+                .url(urlOf(""))
+                .patch(RequestBody.create(body.toString(), JSON))
+                .build(), completion);
+    }
+
+    @Override
+    public String push(String path, Object value) {
+        String key = JsonTree.generatePushId();
+        String childPath = path.isEmpty() ? key : path + "/" + key;
+        send(new Request.Builder()
+                .url(urlOf(childPath))
+                .put(RequestBody.create(JsonTree.toJson(value).toString(), JSON))
+                .build(), null);
+        return key;
+    }
+
+    @Override
+    public void remove(String path, Completion completion) {
+        send(new Request.Builder()
+                .url(urlOf(path))
+                .delete()
+                .build(), completion);
+    }
+
+    /**
+     * Send a write and report the result on the callback executor.
+     *
+     * @param request    The request.
+     * @param completion The completion, or null.
+     */
+    private void send(Request request, Completion completion) {
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                Log.e(TAG, request.method() + " failed: " + e.getMessage());
+                setConnected(false);
+                if (completion != null) callbackExecutor.execute(() -> completion.apply(false, e.getMessage()));
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                boolean success = response.isSuccessful();
+                setConnected(true);
+                String error = success ? null : "HTTP " + response.code();
+                response.close();
+                if (!success) Log.e(TAG, request.method() + " rejected: " + error);
+                if (completion != null) callbackExecutor.execute(() -> completion.apply(success, error));
+            }
+        });
+    }
+
+    /**
+     * Build the REST URL of a path.
+     *
+     * @param path The path relative to the home root; "" is the home root.
+     * @return The URL.
+     */
+    private String urlOf(String path) {
+        String url = path.isEmpty() ? baseUrl + "/.json" : baseUrl + "/" + path + ".json";
+        return authToken == null ? url : url + "?auth=" + authToken;
+    }
+
+    /**
+     * One event stream and the mirror of the subtree it listens to. OkHttp delivers the events of
+     * one stream sequentially; the lock only lets watchers join a shared stream between events.
+     */
+    private abstract class Stream extends EventSourceListener {
+        final String path;
+        final JsonTree mirror = new JsonTree();
+        boolean initialLoaded = false;
+        // Set when the server cancelled the stream for good
+        volatile boolean stopped = false;
+        private long retryMs = MIN_RETRY_MS;
+        private volatile EventSource source;
+
+        Stream(String path) {
+            this.path = path;
+        }
+
+        /**
+         * Check whether anyone still listens to this stream.
+         *
+         * @return False once the stream was closed by its listeners.
+         */
+        abstract boolean isActive();
+
+        /**
+         * Capture a child before an event changes it, for subclasses that diff it afterwards.
+         *
+         * @param key The key of the child.
+         * @return The value to pass to childrenChanged, or null.
+         */
+        abstract Object before(String key);
+
+        /**
+         * Report children an event changed.
+         *
+         * @param root   The mirror's root after the event.
+         * @param before The changed children's keys, each with what before() returned.
+         */
+        abstract void childrenChanged(Object root, Map<String, Object> before);
+
+        /**
+         * Report the whole subtree being replaced: on connect and reconnect, or a put at the root.
+         *
+         * @param before The old root.
+         * @param after  The new root.
+         */
+        abstract void rootReplaced(Object before, Object after);
+
+        abstract void cancelled(String reason);
+
+        void connect() {
+            if (!isActive() || stopped) return;
+            Request request = new Request.Builder()
+                    .url(urlOf(path))
+                    .header("Accept", "text/event-stream")
+                    .build();
+            source = EventSources.createFactory(httpClient).newEventSource(request, this);
+        }
+
+        void close() {
+            EventSource current = source;
+            if (current != null) current.cancel();
+        }
+
+        @Override
+        public void onOpen(@NonNull EventSource eventSource, @NonNull Response response) {
+            retryMs = MIN_RETRY_MS;
+            setConnected(true);
+        }
+
+        @Override
+        public synchronized void onEvent(@NonNull EventSource eventSource, String id, String type, @NonNull String data) {
+            if (!isActive() || stopped || type == null) return;
+            bytesReceived.addAndGet(utf8Length(data));
+            try {
+                switch (type) {
+                    case "put":
+                        applyPut(new JSONObject(data));
+                        break;
+                    case "patch":
+                        applyPatch(new JSONObject(data));
+                        break;
+                    case "keep-alive":
+                        break;
+                    case "cancel":
+                    case "auth_revoked":
+                        // The server closes the stream; the rules or token must change before a retry helps
+                        stopped = true;
+                        cancelled(type + ": " + data);
+                        eventSource.cancel();
+                        break;
+                    default:
+                        Log.d(TAG, "Ignoring event " + type);
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Bad " + type + " event on " + path + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Apply a "put" event: the data replaces the value at the event path.
+         *
+         * @param event The parsed event data.
+         * @throws JSONException If the event is malformed.
+         */
+        private void applyPut(JSONObject event) throws JSONException {
+            String[] segments = JsonTree.split(event.getString("path"));
+            Object value = JsonTree.fromJson(event.opt("data"));
+            if (segments.length == 0) {
+                // Whole subtree: the first event of every connection, including reconnects
+                Object before = mirror.get(segments);
+                mirror.set(segments, value);
+                rootReplaced(before, value);
+                initialLoaded = true;
+                return;
+            }
+            Map<String, Object> before = new LinkedHashMap<>();
+            before.put(segments[0], before(segments[0]));
+            mirror.set(segments, value);
+            childrenChanged(mirror.get(new String[0]), before);
+        }
+
+        /**
+         * Apply a "patch" event: each relative path in the data is set below the event path.
+         *
+         * @param event The parsed event data.
+         * @throws JSONException If the event is malformed.
+         */
+        private void applyPatch(JSONObject event) throws JSONException {
+            String[] base = JsonTree.split(event.getString("path"));
+            JSONObject data = event.getJSONObject("data");
+            Map<String, Object> before = new LinkedHashMap<>();
+            Iterator<String> keys = data.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                String[] relative = JsonTree.split(key);
+                String[] segments = new String[base.length + relative.length];
+                System.arraycopy(base, 0, segments, 0, base.length);
+                System.arraycopy(relative, 0, segments, base.length, relative.length);
+                if (segments.length == 0) continue;
+                if (!before.containsKey(segments[0])) before.put(segments[0], before(segments[0]));
+                mirror.set(segments, JsonTree.fromJson(data.opt(key)));
+            }
+            childrenChanged(mirror.get(new String[0]), before);
+        }
+
+        @Override
+        public void onFailure(@NonNull EventSource eventSource, Throwable err, Response response) {
+            if (!isActive() || stopped) return;
+            Log.e(TAG, "Stream " + path + " dropped (" + (response == null ? err : "HTTP " + response.code())
+                    + "), retrying in " + retryMs + " ms");
+            // An HTTP error means the server answered; anything else means it could not be reached
+            if (response == null) setConnected(false);
+            scheduleReconnect();
+        }
+
+        @Override
+        public void onClosed(@NonNull EventSource eventSource) {
+            if (!isActive() || stopped) return;
+            // The server ended the stream without an error (e.g. a keep-alive rotation); it was
+            // reachable, so reconnect without reporting the home as offline
+            scheduleReconnect();
+        }
+
+        /**
+         * Reopen the stream after the current retry delay, backing off for the next attempt.
+         */
+        private void scheduleReconnect() {
+            long delay = retryMs;
+            retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+            retryScheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The stream of one child listener, reporting every child an event touches.
+     */
+    private final class ListenerStream extends Stream {
+        private final ChildListener out;
+        private final AtomicBoolean active;
+
+        ListenerStream(String path, ChildListener out, AtomicBoolean active) {
+            super(path);
+            this.out = out;
+            this.active = active;
+        }
+
+        @Override
+        boolean isActive() {
+            return active.get();
+        }
+
+        @Override
+        Object before(String key) {
+            // Children are reported as they are now, so nothing needs to be kept
+            return null;
+        }
+
+        @Override
+        void childrenChanged(Object root, Map<String, Object> before) {
+            for (String child : before.keySet()) {
+                JsonTree.emitChild(out, root, child);
+            }
+        }
+
+        @Override
+        void rootReplaced(Object before, Object after) {
+            JsonTree.emitChildren(out, before, after);
+            if (!initialLoaded) out.onInitialLoaded(JsonTree.keysOf(after));
+        }
+
+        @Override
+        void cancelled(String reason) {
+            out.onCancelled(reason);
+        }
+    }
+
+    /**
+     * The stream of a parent shared by the listeners of its children. Each watcher gets the
+     * changes inside its child, as if it had its own stream on the child.
+     */
+    private final class ParentStream extends Stream {
+        // Listeners keyed by the child they watch; changed only under the stream's lock
+        private final HashMap<String, Set<ChildListener>> watchers = new HashMap<>();
+        private volatile boolean closed = false;
+
+        ParentStream(String path) {
+            super(path);
+        }
+
+        /**
+         * Start reporting one child to a listener. A stream that already loaded reports the
+         * child's current state at once.
+         *
+         * @param child The key of the child.
+         * @param out   The listener.
+         */
+        synchronized void watch(String child, ChildListener out) {
+            Set<ChildListener> listeners = watchers.get(child);
+            if (listeners == null) {
+                listeners = new HashSet<>();
+                watchers.put(child, listeners);
+            }
+            listeners.add(out);
+            if (!initialLoaded) return;
+            Object value = mirror.get(new String[]{child});
+            JsonTree.emitChildren(out, null, value);
+            out.onInitialLoaded(JsonTree.keysOf(value));
+        }
+
+        /**
+         * Stop reporting one child to a listener.
+         *
+         * @param child The key of the child.
+         * @param out   The listener.
+         * @return True if nobody watches any child any more, so the stream should close.
+         */
+        synchronized boolean unwatch(String child, ChildListener out) {
+            Set<ChildListener> listeners = watchers.get(child);
+            if (listeners != null && listeners.remove(out) && listeners.isEmpty()) watchers.remove(child);
+            return watchers.isEmpty();
+        }
+
+        @Override
+        void close() {
+            closed = true;
+            super.close();
+        }
+
+        @Override
+        boolean isActive() {
+            return !closed;
+        }
+
+        @Override
+        Object before(String key) {
+            // Only watched children are diffed; the copy survives the event changing the mirror
+            return watchers.containsKey(key) ? JsonTree.copy(mirror.get(new String[]{key})) : null;
+        }
+
+        @Override
+        void childrenChanged(Object root, Map<String, Object> before) {
+            for (Map.Entry<String, Object> entry : before.entrySet()) {
+                Set<ChildListener> listeners = watchers.get(entry.getKey());
+                if (listeners == null) continue;
+                Object after = childOf(root, entry.getKey());
+                for (ChildListener out : listeners) {
+                    JsonTree.emitChildren(out, entry.getValue(), after);
+                }
+            }
+        }
+
+        @Override
+        void rootReplaced(Object before, Object after) {
+            for (Map.Entry<String, Set<ChildListener>> entry : watchers.entrySet()) {
+                Object value = childOf(after, entry.getKey());
+                for (ChildListener out : entry.getValue()) {
+                    JsonTree.emitChildren(out, childOf(before, entry.getKey()), value);
+                    if (!initialLoaded) out.onInitialLoaded(JsonTree.keysOf(value));
+                }
+            }
+        }
+
+        @Override
+        void cancelled(String reason) {
+            for (Set<ChildListener> listeners : watchers.values()) {
+                for (ChildListener out : listeners) out.onCancelled(reason);
+            }
+        }
+
+        private Object childOf(Object parent, String key) {
+            return parent instanceof Map ? ((Map<?, ?>) parent).get(key) : null;
+        }
+    }
+
+    /**
+     * Count the UTF-8 bytes of a string without encoding it.
+     *
+     * @param text The text.
+     * @return The encoded length in bytes.
+     */
+    static long utf8Length(String text) {
+        long bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) bytes += 1;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else bytes += 3;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * RoomCache: Byte budget for the device maps kept in the home snapshot.
+ *
+ * Room headers (name and device count) are always resident; a room's devices are loaded when the
+ * room is opened or the assistant needs the whole home, and stay resident afterwards so reopening
+ * the room is instant. Once the resident devices exceed the budget, the least recently used rooms
+ * that nobody is watching are cut back to their headers. Opening such a room again counts as a reload.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import com.example.alexucana.models.Device;
+import com.example.alexucana.models.Room;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The RoomCache class tracks which rooms have their devices resident and picks rooms to evict.
+ * Runs on DataManager's sync thread; the counters may be read from any thread.
+ */
+final class RoomCache {
+
+    /**
+     * Decides whether a room may be evicted right now, e.g. not while it has unsent writes.
+     */
+    interface Evictable {
+        boolean test(String roomId);
+    }
+
+    // Default budget: a few hundred typical devices
+    static final long DEFAULT_BUDGET_BYTES = 256 * 1024;
+
+    // Estimated bytes of the devices of each resident room, in least-recently-used order
+    private final LinkedHashMap<String, Integer> bytesByRoom = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Rooms with an attached devices listener; they are never evicted
+    private final HashSet<String> pinned = new HashSet<>();
+
+    // Rooms cut back to their headers, so the next pin counts as a reload
+    private final HashSet<String> evicted = new HashSet<>();
+
+    private long budgetBytes = DEFAULT_BUDGET_BYTES;
+    private volatile long residentBytes = 0;
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    /**
+     * Mark a room as watched, e.g. because it was opened.
+     *
+     * @param roomId The ID of the room.
+     */
+    void pin(String roomId) {
+        pinned.add(roomId);
+        if (evicted.remove(roomId)) reloads.incrementAndGet();
+        // Opening a room makes it the most recently used
+        bytesByRoom.get(roomId);
+    }
+
+    /**
+     * Mark a room as no longer watched. Its devices stay resident until the budget needs the room.
+     *
+     * @param roomId The ID of the room.
+     */
+    void unpin(String roomId) {
+        pinned.remove(roomId);
+    }
+
+    /**
+     * Account for a room whose devices changed.
+     *
+     * @param room The room as now published.
+     */
+    void update(Room room) {
+        int bytes = 0;
+        for (Device device : room.devices) bytes += device.estimatedBytes();
+        Integer previous = bytes == 0 ? bytesByRoom.remove(room.id) : bytesByRoom.put(room.id, bytes);
+        residentBytes += bytes - (previous == null ? 0 : previous);
+    }
+
+    /**
+     * Forget a room that was deleted.
+     *
+     * @param roomId The ID of the room.
+     */
+    void remove(String roomId) {
+        Integer previous = bytesByRoom.remove(roomId);
+        if (previous != null) residentBytes -= previous;
+        pinned.remove(roomId);
+        evicted.remove(roomId);
+    }
+
+    /**
+     * Pick the rooms to cut back to their headers so the resident devices fit the budget.
+     * The picked rooms are no longer counted as resident.
+     *
+     * @param evictable Whether a room may be evicted now.
+     * @return The IDs of the rooms to evict, least recently used first; empty if within budget.
+     */
+    List<String> evict(Evictable evictable) {
+        if (residentBytes <= budgetBytes) return Collections.emptyList();
+        ArrayList<String> victims = new ArrayList<>();
+        Iterator<Map.Entry<String, Integer>> it = bytesByRoom.entrySet().iterator();
+        while (residentBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<String, Integer> entry = it.next();
+            String roomId = entry.getKey();
+            if (pinned.contains(roomId) || !evictable.test(roomId)) continue;
+            residentBytes -= entry.getValue();
+            it.remove();
+            evicted.add(roomId);
+            evictions.incrementAndGet();
+            victims.add(roomId);
+        }
+        return victims;
+    }
+
+    void setBudgetBytes(long bytes) {
+        budgetBytes = bytes;
+    }
+
+    long residentBytes() {
+        return residentBytes;
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    long reloads() {
+        return reloads.get();
+    }
+}
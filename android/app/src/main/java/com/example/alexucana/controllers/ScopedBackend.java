@@ -0,0 +1,72 @@
+/**
+ * ScopedBackend: HomeBackend for one home inside a backend rooted higher up in the database.
+ *
+ * Every home of a multi-home setup is a ScopedBackend over the same shared backend, so all homes
+ * go through one Firebase connection (or one HTTP client), and a home that has no listeners
+ * attached costs nothing on the wire.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ScopedBackend class prefixes every path with the root of its home.
+ */
+public class ScopedBackend implements HomeBackend {
+
+    private final HomeBackend shared;
+    private final String root;
+
+    /**
+     * Constructor for the ScopedBackend class.
+     *
+     * @param shared The backend rooted at the database root.
+     * @param root   The path of the home root in the shared backend, e.g. "alexucana_v3".
+     */
+    public ScopedBackend(HomeBackend shared, String root) {
+        this.shared = shared;
+        this.root = root;
+    }
+
+    @Override
+    public Registration addChildListener(String path, ChildListener listener) {
+        return shared.addChildListener(scope(path), listener);
+    }
+
+    @Override
+    public Registration addConnectionListener(ConnectionListener listener) {
+        // The connection is the shared backend's
+        return shared.addConnectionListener(listener);
+    }
+
+    @Override
+    public void update(Map<String, Object> pathValues, Completion completion) {
+        HashMap<String, Object> scoped = new HashMap<>();
+        for (Map.Entry<String, Object> entry : pathValues.entrySet()) {
+            scoped.put(scope(entry.getKey()), entry.getValue());
+        }
+        shared.update(scoped, completion);
+    }
+
+    @Override
+    public String push(String path, Object value) {
+        return shared.push(scope(path), value);
+    }
+
+    @Override
+    public void remove(String path, Completion completion) {
+        shared.remove(scope(path), completion);
+    }
+
+    /**
+     * Map a path of the home onto the shared backend.
+     *
+     * @param path The path relative to the home root.
+     * @return The path relative to the shared root.
+     */
+    private String scope(String path) {
+        return path.isEmpty() ? root : root + "/" + path;
+    }
+}
@@ -0,0 +1,752 @@
+/**
+ * SensorArchive: Persistent, compressed history of every sensor reading.
+ *
+ * Readings are appended to one memory-mapped segment file per UTC day under
+ * filesDir/sensor_history. A segment holds two kinds of records:
+ *   - sample blocks: up to 1000 samples of one series, Gorilla-compressed (see GorillaBlock)
+ *   - minute rollups: min, max, sum and count of one series over one minute
+ * Hour rollups of all series go to a separate memory-mapped file, so a query over a week reads
+ * 168 fixed-size records per series instead of decoding any samples.
+ *
+ * Every file starts with a 16-byte header: magic, version, used bytes and the epoch day. Series
+ * are numbered in series.txt, one "deviceId/sensorKey" per line. Samples and rollups still in
+ * memory are merged into query results. Blocks and the open rollups are written out every few
+ * minutes and on close, so a crash loses at most that window. An open rollup is written once and
+ * then rewritten in place, and after a restart within the same minute or hour it is read back and
+ * merged into, so every series has at most one record per minute and hour. Segments older than
+ * RETENTION_DAYS are deleted on startup.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The SensorArchive class stores sensor readings on disk and answers range and rollup queries.
+ * All methods are synchronized; records are appended on the sync thread.
+ */
+public class SensorArchive {
+
+    public static final String TAG = SensorArchive.class.getSimpleName();
+
+    // How long segments (samples and minute rollups) and hour rollups are kept
+    public static final int RETENTION_DAYS = 31;
+    public static final int HOUR_RETENTION_DAYS = 92;
+
+    // Partially filled blocks are written out at least this often
+    private static final long FLUSH_INTERVAL_MS = 5 * 60 * 1000;
+
+    private static final int SEGMENT_MAGIC = 0x41585347; // "AXSG"
+    private static final int HOURS_MAGIC = 0x41584852; // "AXHR"
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int INITIAL_FILE_BYTES = 64 * 1024;
+
+    private static final byte RECORD_BLOCK = 1;
+    private static final byte RECORD_MINUTE = 2;
+    // series, minute, min, max, sum, count
+    private static final int MINUTE_RECORD_BYTES = 1 + 2 + 4 + 4 + 4 + 4 + 4;
+    // series, hour, min, max, sum, count
+    private static final int HOUR_RECORD_BYTES = 2 + 4 + 4 + 4 + 4 + 4;
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Aggregate of a series over a time window.
+     */
+    public static final class Stats {
+        public float min = Float.NaN;
+        public float max = Float.NaN;
+        public double sum = 0;
+        public long count = 0;
+
+        public float mean() {
+            return count == 0 ? Float.NaN : (float) (sum / count);
+        }
+
+        void add(float rollupMin, float rollupMax, double rollupSum, long rollupCount) {
+            if (rollupCount == 0) return;
+            if (count == 0 || rollupMin < min) min = rollupMin;
+            if (count == 0 || rollupMax > max) max = rollupMax;
+            sum += rollupSum;
+            count += rollupCount;
+        }
+    }
+
+    /**
+     * Running min, max, sum and count over one minute or hour.
+     */
+    private static final class Rollup {
+        long start = -1;
+        float min;
+        float max;
+        double sum;
+        int count;
+
+        // Position of the last record of this series written for this kind of rollup, and the day
+        // of the segment holding it (minutes only); -1 if none is known
+        int diskPos = -1;
+        long diskDay;
+
+        void reset(long start) {
+            this.start = start;
+            count = 0;
+            sum = 0;
+        }
+
+        void add(float value) {
+            if (count == 0 || value < min) min = value;
+            if (count == 0 || value > max) max = value;
+            sum += value;
+            count++;
+        }
+    }
+
+    /**
+     * In-memory state of one series.
+     */
+    private static final class Series {
+        final short index;
+        final GorillaBlock block = new GorillaBlock();
+        final Rollup minute = new Rollup();
+        final Rollup hour = new Rollup();
+
+        Series(short index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * One memory-mapped, append-only file.
+     */
+    private static final class MappedFile {
+        final long day;
+        final FileChannel channel;
+        MappedByteBuffer buffer;
+        int used;
+
+        MappedFile(File file, int magic, long day) throws IOException {
+            this.day = day;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_FILE_BYTES);
+                buffer.putInt(0, magic);
+                buffer.putShort(4, VERSION);
+                buffer.putInt(8, HEADER_BYTES);
+                buffer.putInt(12, (int) day);
+            } else {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (buffer.getInt(0) != magic || buffer.getShort(4) != VERSION) {
+                    throw new IOException("Unknown file format: " + file.getName());
+                }
+            }
+            used = buffer.getInt(8);
+        }
+
+        /**
+         * Get a buffer positioned to append n bytes, growing the mapping if needed.
+         */
+        ByteBuffer append(int n) throws IOException {
+            if (used + n > buffer.capacity()) {
+                long size = Math.max((long) buffer.capacity() * 2, used + n);
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            buffer.position(used);
+            used += n;
+            return buffer;
+        }
+
+        /**
+         * Publish appended records by updating the header.
+         */
+        void commit() {
+            buffer.putInt(8, used);
+        }
+
+        void close() {
+            buffer.force();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Close failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private final File dir;
+    private final File seriesFile;
+    private final ArrayList<String> seriesNames = new ArrayList<>();
+    private final HashMap<String, Series> seriesByName = new HashMap<>();
+
+    private MappedFile segment;
+    private MappedFile hours;
+    private long lastFlushMs = System.currentTimeMillis();
+
+    // Reused when reading blocks from older segments
+    private final byte[] readBuffer = new byte[GorillaBlock.MAX_BYTES + 16];
+
+    /**
+     * Constructor for the SensorArchive class. Opens the archive, deletes expired segments and
+     * compacts expired hour rollups.
+     *
+     * @param dir The archive directory; created if missing.
+     */
+    public SensorArchive(File dir) {
+        this.dir = dir;
+        this.seriesFile = new File(dir, "series.txt");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create " + dir);
+        }
+        loadSeriesNames();
+        long today = Math.floorDiv(System.currentTimeMillis() / 1000, SECONDS_PER_DAY);
+        deleteExpiredSegments(today - RETENTION_DAYS);
+        compactHours((today - HOUR_RETENTION_DAYS) * 24);
+        try {
+            hours = new MappedFile(new File(dir, "hours.bin"), HOURS_MAGIC, 0);
+            for (int pos = HEADER_BYTES; pos + HOUR_RECORD_BYTES <= hours.used; pos += HOUR_RECORD_BYTES) {
+                Series series = seriesAt(hours.buffer.getShort(pos));
+                if (series != null) series.hour.diskPos = pos;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open hour rollups: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Record a reading.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The sensor key.
+     * @param timeMs   The time of the reading, in epoch milliseconds.
+     * @param value    The reading.
+     */
+    public synchronized void record(String deviceId, String key, long timeMs, float value) {
+        if (Float.isNaN(value)) return;
+        try {
+            Series series = series(deviceId + "/" + key);
+            long sec = timeMs / 1000;
+            if (!series.block.isEmpty() && sec < series.block.lastSec()) sec = series.block.lastSec();
+
+            // Close the minute and hour this reading is past; the records go to the current segment
+            long minute = sec / 60;
+            boolean newMinute = series.minute.start != minute;
+            if (newMinute) {
+                if (series.minute.count > 0) writeMinute(series);
+                series.minute.reset(minute);
+            }
+            long hour = sec / 3600;
+            if (series.hour.start != hour) {
+                if (series.hour.count > 0) writeHour(series);
+                series.hour.reset(hour);
+                if (hours != null) restore(series.hour, hours.buffer, 2, 6);
+            }
+            series.hour.add(value);
+
+            long day = Math.floorDiv(sec, SECONDS_PER_DAY);
+            if (segment == null || segment.day != day) openSegment(day);
+            if (newMinute && series.minute.diskDay == day) restore(series.minute, segment.buffer, 3, 7);
+            series.minute.add(value);
+
+            series.block.append(sec, value);
+            if (series.block.isFull()) writeBlock(series);
+
+            long now = System.currentTimeMillis();
+            if (now - lastFlushMs >= FLUSH_INTERVAL_MS) {
+                lastFlushMs = now;
+                flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Record failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write every partially filled block and open rollup, and sync the files to disk.
+     */
+    public synchronized void flush() {
+        try {
+            for (Series series : seriesByName.values()) {
+                if (!series.block.isEmpty()) writeBlock(series);
+                if (series.minute.count > 0) writeMinute(series);
+                if (series.hour.count > 0) writeHour(series);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Flush failed: " + e.getMessage());
+        }
+        if (segment != null) segment.buffer.force();
+        if (hours != null) hours.buffer.force();
+    }
+
+    /**
+     * Flush the archive and release its files. Nothing may be recorded afterwards.
+     */
+    public synchronized void close() {
+        flush();
+        if (segment != null) segment.close();
+        if (hours != null) hours.close();
+        segment = null;
+        hours = null;
+    }
+
+    /**
+     * Aggregate a series over a window from the hour rollups; the window is widened to whole hours.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The sensor key.
+     * @param fromMs   The start of the window, in epoch milliseconds.
+     * @param toMs     The end of the window, in epoch milliseconds.
+     * @return The aggregate; empty if there is no data.
+     */
+    public synchronized Stats stats(String deviceId, String key, long fromMs, long toMs) {
+        Stats stats = new Stats();
+        Series series = seriesByName.get(deviceId + "/" + key);
+        if (series == null || hours == null) return stats;
+        long fromHour = fromMs / 1000 / 3600;
+        long toHour = toMs / 1000 / 3600;
+        ByteBuffer in = hours.buffer.duplicate();
+        for (int pos = HEADER_BYTES; pos + HOUR_RECORD_BYTES <= hours.used; pos += HOUR_RECORD_BYTES) {
+            if (in.getShort(pos) != series.index) continue;
+            long hour = in.getInt(pos + 2) & 0xFFFFFFFFL;
+            if (hour < fromHour || hour > toHour || isOpen(series.hour, hour)) continue;
+            stats.add(in.getFloat(pos + 6), in.getFloat(pos + 10), in.getFloat(pos + 14), in.getInt(pos + 18));
+        }
+        if (series.hour.start >= fromHour && series.hour.start <= toHour) {
+            stats.add(series.hour.min, series.hour.max, series.hour.sum, series.hour.count);
+        }
+        return stats;
+    }
+
+    /**
+     * Read the hour rollups of a series, oldest first.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The sensor key.
+     * @param fromMs   The start of the window, in epoch milliseconds.
+     * @param toMs     The end of the window, in epoch milliseconds.
+     * @param outTimes Receives the start of each hour, in epoch milliseconds.
+     * @param outMins  Receives the minimums.
+     * @param outMaxs  Receives the maximums.
+     * @param outMeans Receives the means.
+     * @return The number of hours copied, at most the length of the output arrays.
+     */
+    public synchronized int hourly(String deviceId, String key, long fromMs, long toMs,
+                                   long[] outTimes, float[] outMins, float[] outMaxs, float[] outMeans) {
+        Series series = seriesByName.get(deviceId + "/" + key);
+        if (series == null || hours == null) return 0;
+        long fromHour = fromMs / 1000 / 3600;
+        long toHour = toMs / 1000 / 3600;
+        int n = 0;
+        ByteBuffer in = hours.buffer.duplicate();
+        for (int pos = HEADER_BYTES; pos + HOUR_RECORD_BYTES <= hours.used && n < outTimes.length; pos += HOUR_RECORD_BYTES) {
+            if (in.getShort(pos) != series.index) continue;
+            long hour = in.getInt(pos + 2) & 0xFFFFFFFFL;
+            if (hour < fromHour || hour > toHour || isOpen(series.hour, hour)) continue;
+            outTimes[n] = hour * 3600 * 1000;
+            outMins[n] = in.getFloat(pos + 6);
+            outMaxs[n] = in.getFloat(pos + 10);
+            outMeans[n] = in.getFloat(pos + 14) / in.getInt(pos + 18);
+            n++;
+        }
+        Rollup current = series.hour;
+        if (current.count > 0 && current.start >= fromHour && current.start <= toHour && n < outTimes.length) {
+            outTimes[n] = current.start * 3600 * 1000;
+            outMins[n] = current.min;
+            outMaxs[n] = current.max;
+            outMeans[n] = (float) (current.sum / current.count);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Read the minute rollups of a series, oldest first.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The sensor key.
+     * @param fromMs   The start of the window, in epoch milliseconds.
+     * @param toMs     The end of the window, in epoch milliseconds.
+     * @param outTimes Receives the start of each minute, in epoch milliseconds.
+     * @param outMins  Receives the minimums.
+     * @param outMaxs  Receives the maximums.
+     * @param outMeans Receives the means.
+     * @return The number of minutes copied, at most the length of the output arrays.
+     */
+    public synchronized int minutely(String deviceId, String key, long fromMs, long toMs,
+                                     long[] outTimes, float[] outMins, float[] outMaxs, float[] outMeans) {
+        Series series = seriesByName.get(deviceId + "/" + key);
+        if (series == null) return 0;
+        long fromMinute = fromMs / 1000 / 60;
+        long toMinute = toMs / 1000 / 60;
+        int n = 0;
+        for (long day = Math.floorDiv(fromMs / 1000, SECONDS_PER_DAY); day <= Math.floorDiv(toMs / 1000, SECONDS_PER_DAY); day++) {
+            ByteBuffer in = segmentBuffer(day);
+            if (in == null) continue;
+            int used = in.getInt(8);
+            for (int pos = HEADER_BYTES; pos < used && n < outTimes.length; ) {
+                byte type = in.get(pos);
+                if (type == RECORD_MINUTE) {
+                    long minute = in.getInt(pos + 3) & 0xFFFFFFFFL;
+                    if (in.getShort(pos + 1) == series.index && minute >= fromMinute && minute <= toMinute
+                            && !isOpen(series.minute, minute)) {
+                        outTimes[n] = minute * 60 * 1000;
+                        outMins[n] = in.getFloat(pos + 7);
+                        outMaxs[n] = in.getFloat(pos + 11);
+                        outMeans[n] = in.getFloat(pos + 15) / in.getInt(pos + 19);
+                        n++;
+                    }
+                    pos += MINUTE_RECORD_BYTES;
+                } else if (type == RECORD_BLOCK) {
+                    pos += blockRecordBytes(in.getShort(pos + 13) & 0xFFFF);
+                } else {
+                    break;
+                }
+            }
+        }
+        Rollup current = series.minute;
+        if (current.count > 0 && current.start >= fromMinute && current.start <= toMinute && n < outTimes.length) {
+            outTimes[n] = current.start * 60 * 1000;
+            outMins[n] = current.min;
+            outMaxs[n] = current.max;
+            outMeans[n] = (float) (current.sum / current.count);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Read the raw samples of a series, oldest first, decoding only the blocks of the window's days.
+     *
+     * @param deviceId  The ID of the device.
+     * @param key       The sensor key.
+     * @param fromMs    The start of the window, in epoch milliseconds.
+     * @param toMs      The end of the window, in epoch milliseconds.
+     * @param outTimes  Receives the timestamps, in epoch milliseconds (second precision).
+     * @param outValues Receives the readings.
+     * @return The number of samples copied, at most the length of the output arrays.
+     */
+    public synchronized int samples(String deviceId, String key, long fromMs, long toMs,
+                                    long[] outTimes, float[] outValues) {
+        Series series = seriesByName.get(deviceId + "/" + key);
+        if (series == null) return 0;
+        long[] blockTimes = new long[GorillaBlock.MAX_SAMPLES];
+        float[] blockValues = new float[GorillaBlock.MAX_SAMPLES];
+        int n = 0;
+        for (long day = Math.floorDiv(fromMs / 1000, SECONDS_PER_DAY); day <= Math.floorDiv(toMs / 1000, SECONDS_PER_DAY); day++) {
+            ByteBuffer in = segmentBuffer(day);
+            if (in == null) continue;
+            int used = in.getInt(8);
+            for (int pos = HEADER_BYTES; pos < used; ) {
+                byte type = in.get(pos);
+                if (type == RECORD_MINUTE) {
+                    pos += MINUTE_RECORD_BYTES;
+                    continue;
+                } else if (type != RECORD_BLOCK) {
+                    break;
+                }
+                int length = in.getShort(pos + 13) & 0xFFFF;
+                if (in.getShort(pos + 1) == series.index) {
+                    int count = in.getShort(pos + 3) & 0xFFFF;
+                    in.position(pos + 15);
+                    in.get(readBuffer, 0, length);
+                    int decoded = GorillaBlock.decode(readBuffer, 0, count, in.getLong(pos + 5), blockTimes, blockValues, 0);
+                    n = copyWindow(blockTimes, blockValues, decoded, fromMs, toMs, outTimes, outValues, n);
+                }
+                pos += blockRecordBytes(length);
+            }
+        }
+        if (!series.block.isEmpty()) {
+            int decoded = GorillaBlock.decode(series.block.bytes(), 0, series.block.count(), series.block.firstSec(), blockTimes, blockValues, 0);
+            n = copyWindow(blockTimes, blockValues, decoded, fromMs, toMs, outTimes, outValues, n);
+        }
+        return n;
+    }
+
+    /**
+     * Check whether a rollup on disk is the one still open in memory, which holds its whole total.
+     */
+    private static boolean isOpen(Rollup rollup, long start) {
+        return rollup.count > 0 && rollup.start == start;
+    }
+
+    /**
+     * Copy the samples of a decoded block that fall in a window.
+     *
+     * @return The new number of samples in the outputs.
+     */
+    private static int copyWindow(long[] times, float[] values, int count, long fromMs, long toMs,
+                                  long[] outTimes, float[] outValues, int n) {
+        for (int i = 0; i < count && n < outTimes.length; i++) {
+            if (times[i] < fromMs || times[i] > toMs) continue;
+            outTimes[n] = times[i];
+            outValues[n] = values[i];
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Get the total size of the archive files.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long diskBytes() {
+        long total = 0;
+        File[] files = dir.listFiles();
+        if (files == null) return 0;
+        for (File file : files) total += file.length();
+        return total;
+    }
+
+    /**
+     * Get or create the state of a series, numbering new series in series.txt.
+     */
+    private Series series(String name) throws IOException {
+        Series series = seriesByName.get(name);
+        if (series != null) return series;
+        if (seriesNames.size() >= Short.MAX_VALUE) throw new IOException("Too many series");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(seriesFile, true), StandardCharsets.UTF_8)) {
+            out.write(name + "\n");
+        }
+        seriesNames.add(name);
+        series = new Series((short) (seriesNames.size() - 1));
+        seriesByName.put(name, series);
+        return series;
+    }
+
+    /**
+     * Get the state of a series by its index.
+     *
+     * @return The Series, or null if the index is unknown.
+     */
+    private Series seriesAt(short index) {
+        return index >= 0 && index < seriesNames.size() ? seriesByName.get(seriesNames.get(index)) : null;
+    }
+
+    /**
+     * Read series.txt; a series' index is its line number.
+     */
+    private void loadSeriesNames() {
+        if (!seriesFile.isFile()) return;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(seriesFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                seriesByName.put(line, new Series((short) seriesNames.size()));
+                seriesNames.add(line);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read series: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Switch appends to the segment of another day, writing out the blocks of the previous one.
+     */
+    private void openSegment(long day) throws IOException {
+        if (segment != null) {
+            for (Series series : seriesByName.values()) {
+                if (!series.block.isEmpty()) writeBlock(series);
+            }
+            segment.close();
+        }
+        segment = new MappedFile(segmentFile(day), SEGMENT_MAGIC, day);
+
+        // Reopening a segment after a restart: find the last minute rollup of every series
+        ByteBuffer in = segment.buffer;
+        for (int pos = HEADER_BYTES; pos < segment.used; ) {
+            byte type = in.get(pos);
+            if (type == RECORD_MINUTE) {
+                Series series = seriesAt(in.getShort(pos + 1));
+                if (series != null) {
+                    series.minute.diskPos = pos;
+                    series.minute.diskDay = day;
+                }
+                pos += MINUTE_RECORD_BYTES;
+            } else if (type == RECORD_BLOCK) {
+                pos += blockRecordBytes(in.getShort(pos + 13) & 0xFFFF);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private File segmentFile(long day) {
+        return new File(dir, "seg-" + day + ".bin");
+    }
+
+    /**
+     * Map the segment of a day for reading.
+     *
+     * @return A buffer over the segment, or null if there is none.
+     */
+    private ByteBuffer segmentBuffer(long day) {
+        if (segment != null && segment.day == day) return segment.buffer.duplicate();
+        File file = segmentFile(day);
+        if (!file.isFile()) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt(0) != SEGMENT_MAGIC) return null;
+            return buffer;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static int blockRecordBytes(int length) {
+        // type, series, count, first second, length, bits
+        return 1 + 2 + 2 + 8 + 2 + length;
+    }
+
+    private void writeBlock(Series series) throws IOException {
+        GorillaBlock block = series.block;
+        if (segment == null) openSegment(Math.floorDiv(block.firstSec(), SECONDS_PER_DAY));
+        int length = block.byteLength();
+        ByteBuffer out = segment.append(blockRecordBytes(length));
+        out.put(RECORD_BLOCK);
+        out.putShort(series.index);
+        out.putShort((short) block.count());
+        out.putLong(block.firstSec());
+        out.putShort((short) length);
+        out.put(block.bytes(), 0, length);
+        segment.commit();
+        block.reset();
+    }
+
+    /**
+     * Write the minute rollup of a series, over its earlier record if that is for the same minute.
+     */
+    private void writeMinute(Series series) throws IOException {
+        if (segment == null) openSegment(Math.floorDiv(series.minute.start * 60, SECONDS_PER_DAY));
+        Rollup rollup = series.minute;
+        ByteBuffer out;
+        if (rollup.diskPos >= 0 && rollup.diskDay == segment.day
+                && (segment.buffer.getInt(rollup.diskPos + 3) & 0xFFFFFFFFL) == rollup.start) {
+            out = segment.buffer;
+            out.position(rollup.diskPos);
+        } else {
+            rollup.diskPos = segment.used;
+            rollup.diskDay = segment.day;
+            out = segment.append(MINUTE_RECORD_BYTES);
+        }
+        out.put(RECORD_MINUTE);
+        out.putShort(series.index);
+        out.putInt((int) rollup.start);
+        putRollup(out, rollup);
+        segment.commit();
+    }
+
+    /**
+     * Write the hour rollup of a series, over its earlier record if that is for the same hour.
+     */
+    private void writeHour(Series series) throws IOException {
+        if (hours == null) return;
+        Rollup rollup = series.hour;
+        ByteBuffer out;
+        if (rollup.diskPos >= 0 && (hours.buffer.getInt(rollup.diskPos + 2) & 0xFFFFFFFFL) == rollup.start) {
+            out = hours.buffer;
+            out.position(rollup.diskPos);
+        } else {
+            rollup.diskPos = hours.used;
+            out = hours.append(HOUR_RECORD_BYTES);
+        }
+        out.putShort(series.index);
+        out.putInt((int) rollup.start);
+        putRollup(out, rollup);
+        hours.commit();
+    }
+
+    private static void putRollup(ByteBuffer out, Rollup rollup) {
+        out.putFloat(rollup.min);
+        out.putFloat(rollup.max);
+        out.putFloat((float) rollup.sum);
+        out.putInt(rollup.count);
+    }
+
+    /**
+     * Continue a rollup from its record on disk if that is for the rollup's new start, e.g. the
+     * minute or hour that was open when the archive was last closed.
+     *
+     * @param rollup      The rollup, just reset to its new start.
+     * @param in          The file holding the rollup's last record.
+     * @param startOffset The offset of the start within a record.
+     * @param statsOffset The offset of min, max, sum and count within a record.
+     */
+    private static void restore(Rollup rollup, ByteBuffer in, int startOffset, int statsOffset) {
+        if (rollup.diskPos < 0 || (in.getInt(rollup.diskPos + startOffset) & 0xFFFFFFFFL) != rollup.start) return;
+        int pos = rollup.diskPos + statsOffset;
+        rollup.min = in.getFloat(pos);
+        rollup.max = in.getFloat(pos + 4);
+        rollup.sum = in.getFloat(pos + 8);
+        rollup.count = in.getInt(pos + 12);
+    }
+
+    /**
+     * Delete the segments of days before a cutoff.
+     */
+    private void deleteExpiredSegments(long firstKeptDay) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith("seg-") || !name.endsWith(".bin")) continue;
+            try {
+                long day = Long.parseLong(name.substring(4, name.length() - 4));
+                if (day < firstKeptDay && !file.delete()) Log.e(TAG, "Cannot delete " + name);
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Unexpected file " + name);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the hour rollups without the hours before a cutoff, if there are any.
+     */
+    private void compactHours(long firstKeptHour) {
+        File file = new File(dir, "hours.bin");
+        if (!file.isFile()) return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (in.getInt(0) != HOURS_MAGIC) return;
+            int used = in.getInt(8);
+            // Records are appended in time order, so only a prefix can be expired
+            int firstKept = HEADER_BYTES;
+            while (firstKept + HOUR_RECORD_BYTES <= used && (in.getInt(firstKept + 2) & 0xFFFFFFFFL) < firstKeptHour) {
+                firstKept += HOUR_RECORD_BYTES;
+            }
+            if (firstKept == HEADER_BYTES) return;
+            File tmp = new File(dir, "hours.bin.tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(0, HOURS_MAGIC);
+                header.putShort(4, VERSION);
+                header.putInt(8, HEADER_BYTES + used - firstKept);
+                out.write(header.array());
+                byte[] kept = new byte[used - firstKept];
+                in.position(firstKept);
+                in.get(kept);
+                out.write(kept);
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) Log.e(TAG, "Cannot replace hours.bin");
+        } catch (IOException e) {
+            Log.e(TAG, "Hour compaction failed: " + e.getMessage());
+        }
+    }
+}
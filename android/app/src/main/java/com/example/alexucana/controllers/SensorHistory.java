@@ -0,0 +1,106 @@
+/**
+ * SensorHistory: In-memory time series of every sensor seen during this session.
+ *
+ * One SensorSeries per device and sensor key. With the defaults (1440 slots of one minute) a
+ * series holds 24 h in 29 KiB, and at most MAX_SERIES series are kept, the least recently used
+ * one being dropped first, so the whole store stays under 15 MiB however many sensors appear.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The SensorHistory class maps device sensors to their ring buffers.
+ */
+public class SensorHistory {
+
+    // Defaults: one slot per minute for 24 hours, for up to 512 sensors
+    public static final int DEFAULT_CAPACITY = 1440;
+    public static final long DEFAULT_RESOLUTION_MS = 60 * 1000;
+    public static final int MAX_SERIES = 512;
+
+    private final int capacity;
+    private final long resolutionMs;
+    private final int maxSeries;
+
+    // Series keyed by "deviceId/sensorKey", in least-recently-used order (guarded by this)
+    private final LinkedHashMap<String, SensorSeries> series;
+
+    /**
+     * Constructor for the SensorHistory class with the default sizes.
+     */
+    public SensorHistory() {
+        this(DEFAULT_CAPACITY, DEFAULT_RESOLUTION_MS, MAX_SERIES);
+    }
+
+    /**
+     * Constructor for the SensorHistory class.
+     *
+     * @param capacity     The number of slots per series.
+     * @param resolutionMs The minimum time between slots of a series.
+     * @param maxSeries    The maximum number of series kept.
+     */
+    public SensorHistory(int capacity, long resolutionMs, int maxSeries) {
+        this.capacity = capacity;
+        this.resolutionMs = resolutionMs;
+        this.maxSeries = maxSeries;
+        this.series = new LinkedHashMap<String, SensorSeries>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SensorSeries> eldest) {
+                return size() > SensorHistory.this.maxSeries;
+            }
+        };
+    }
+
+    /**
+     * Record a reading. Allocates only the first time a sensor is seen.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The sensor key, e.g. "temperature(°C)".
+     * @param timeMs   The time of the reading, in epoch milliseconds.
+     * @param value    The reading.
+     */
+    public void record(String deviceId, String key, long timeMs, float value) {
+        SensorSeries target;
+        synchronized (this) {
+            String id = deviceId + "/" + key;
+            target = series.get(id);
+            if (target == null) {
+                target = new SensorSeries(capacity, resolutionMs);
+                series.put(id, target);
+            }
+        }
+        target.append(timeMs, value);
+    }
+
+    /**
+     * Get the series of one sensor.
+     *
+     * @param deviceId The ID of the device.
+     * @param key      The sensor key.
+     * @return The series, or null if the sensor has not reported yet.
+     */
+    public synchronized SensorSeries get(String deviceId, String key) {
+        return series.get(deviceId + "/" + key);
+    }
+
+    /**
+     * Drop every series of a device, e.g. after it was removed.
+     *
+     * @param deviceId The ID of the device.
+     */
+    public synchronized void removeDevice(String deviceId) {
+        series.keySet().removeIf(id -> id.startsWith(deviceId + "/"));
+    }
+
+    /**
+     * Get the memory reserved by all series buffers.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long memoryBytes() {
+        return (long) series.size() * capacity * (8 + 4);
+    }
+}
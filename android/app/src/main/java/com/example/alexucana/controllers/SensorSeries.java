@@ -0,0 +1,207 @@
+/**
+ * SensorSeries: Fixed-capacity ring buffer of one sensor's readings.
+ *
+ * Timestamps are kept in a long[] and readings in float[]s, so a slot costs 20 bytes and
+ * appending never allocates or boxes. Samples closer together than the resolution are merged into
+ * one slot holding their mean, lowest and highest reading, so a short spike still shows in min()
+ * and max(); once the buffer is full the oldest slot is overwritten. A series therefore covers
+ * capacity * resolution of history in a size fixed at construction.
+ *
+ */
+package com.example.alexucana.controllers;
+
+/**
+ * The SensorSeries class stores and queries the recent history of one sensor.
+ * All methods are synchronized: samples are appended on the sync thread and read on the main thread.
+ */
+public class SensorSeries {
+
+    private final long[] times;
+    private final float[] values;
+    private final float[] mins;
+    private final float[] maxs;
+    private final long resolutionMs;
+
+    // Index of the oldest slot, and the number of used slots
+    private int head = 0;
+    private int size = 0;
+
+    // Number of samples merged into the newest slot
+    private int lastCount = 0;
+
+    /**
+     * Constructor for the SensorSeries class.
+     *
+     * @param capacity     The number of slots.
+     * @param resolutionMs The minimum time between slots; 0 keeps every sample.
+     */
+    public SensorSeries(int capacity, long resolutionMs) {
+        this.times = new long[capacity];
+        this.values = new float[capacity];
+        this.mins = new float[capacity];
+        this.maxs = new float[capacity];
+        this.resolutionMs = resolutionMs;
+    }
+
+    /**
+     * Append a reading. A reading within the resolution of the newest slot, or older than it,
+     * is merged into that slot.
+     *
+     * @param timeMs The time of the reading, in epoch milliseconds.
+     * @param value  The reading.
+     */
+    public synchronized void append(long timeMs, float value) {
+        if (Float.isNaN(value)) return;
+        if (size > 0) {
+            int last = slot(size - 1);
+            if (timeMs < times[last] + resolutionMs) {
+                // Running mean; the slot keeps the time of its first sample
+                lastCount++;
+                values[last] += (value - values[last]) / lastCount;
+                if (value < mins[last]) mins[last] = value;
+                if (value > maxs[last]) maxs[last] = value;
+                return;
+            }
+        }
+        if (size == times.length) {
+            head = (head + 1) % times.length;
+            size--;
+        }
+        int next = slot(size);
+        times[next] = timeMs;
+        values[next] = value;
+        mins[next] = value;
+        maxs[next] = value;
+        size++;
+        lastCount = 1;
+    }
+
+    /**
+     * Get the number of slots in use.
+     *
+     * @return The slot count.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the fixed memory cost of this series' buffers.
+     *
+     * @return The size of all arrays in bytes.
+     */
+    public int capacityBytes() {
+        return times.length * (8 + 3 * 4);
+    }
+
+    /**
+     * Get the newest reading.
+     *
+     * @return The reading, or NaN if the series is empty.
+     */
+    public synchronized float latest() {
+        return size == 0 ? Float.NaN : values[slot(size - 1)];
+    }
+
+    /**
+     * Copy the slot means within a time window, oldest first.
+     *
+     * @param fromMs    The start of the window, inclusive.
+     * @param toMs      The end of the window, inclusive.
+     * @param outTimes  Receives the timestamps.
+     * @param outValues Receives the slot means.
+     * @return The number of slots copied, at most the length of the output arrays.
+     */
+    public synchronized int range(long fromMs, long toMs, long[] outTimes, float[] outValues) {
+        int limit = Math.min(outTimes.length, outValues.length);
+        int n = 0;
+        for (int i = firstAtOrAfter(fromMs); i < size && n < limit; i++) {
+            int s = slot(i);
+            if (times[s] > toMs) break;
+            outTimes[n] = times[s];
+            outValues[n] = values[s];
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Get the lowest reading within a time window, including readings merged into a slot.
+     *
+     * @param fromMs The start of the window, inclusive.
+     * @param toMs   The end of the window, inclusive.
+     * @return The minimum, or NaN if the window is empty.
+     */
+    public synchronized float min(long fromMs, long toMs) {
+        float min = Float.NaN;
+        for (int i = firstAtOrAfter(fromMs); i < size; i++) {
+            int s = slot(i);
+            if (times[s] > toMs) break;
+            if (Float.isNaN(min) || mins[s] < min) min = mins[s];
+        }
+        return min;
+    }
+
+    /**
+     * Get the highest reading within a time window, including readings merged into a slot.
+     *
+     * @param fromMs The start of the window, inclusive.
+     * @param toMs   The end of the window, inclusive.
+     * @return The maximum, or NaN if the window is empty.
+     */
+    public synchronized float max(long fromMs, long toMs) {
+        float max = Float.NaN;
+        for (int i = firstAtOrAfter(fromMs); i < size; i++) {
+            int s = slot(i);
+            if (times[s] > toMs) break;
+            if (Float.isNaN(max) || maxs[s] > max) max = maxs[s];
+        }
+        return max;
+    }
+
+    /**
+     * Get the mean of the slots within a time window.
+     *
+     * @param fromMs The start of the window, inclusive.
+     * @param toMs   The end of the window, inclusive.
+     * @return The mean, or NaN if the window is empty.
+     */
+    public synchronized float mean(long fromMs, long toMs) {
+        double sum = 0;
+        int n = 0;
+        for (int i = firstAtOrAfter(fromMs); i < size; i++) {
+            int s = slot(i);
+            if (times[s] > toMs) break;
+            sum += values[s];
+            n++;
+        }
+        return n == 0 ? Float.NaN : (float) (sum / n);
+    }
+
+    /**
+     * Binary search for the first slot at or after a time; slots are in time order.
+     *
+     * @param timeMs The time.
+     * @return The logical index (0 is the oldest slot), or size if there is none.
+     */
+    private int firstAtOrAfter(long timeMs) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[slot(mid)] < timeMs) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Map a logical index to a position in the arrays.
+     *
+     * @param index The logical index; 0 is the oldest slot.
+     * @return The array position.
+     */
+    private int slot(int index) {
+        return (head + index) % times.length;
+    }
+}
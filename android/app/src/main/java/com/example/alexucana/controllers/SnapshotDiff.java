@@ -0,0 +1,137 @@
+/**
+ * SnapshotDiff: Compares two HomeSnapshots and emits typed HomeChange events.
+ *
+ * Rooms and devices are sorted by ID in both snapshots, so they are compared with a merge join.
+ * A subtree that is the same object is skipped without being looked into, which makes a diff
+ * after one sensor update cost a walk over the room list plus one room's device list. Equal
+ * structural hashes are not trusted on their own: a pair of strings with the same hashCode can
+ * collide, so such subtrees are confirmed by content before being skipped.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import com.example.alexucana.models.Device;
+import com.example.alexucana.models.HomeChange;
+import com.example.alexucana.models.HomeSnapshot;
+import com.example.alexucana.models.Room;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The SnapshotDiff class computes the typed changes between two snapshots.
+ */
+public final class SnapshotDiff {
+
+    private SnapshotDiff() {}
+
+    /**
+     * Compute the changes that turn one snapshot into another.
+     *
+     * @param before The older snapshot.
+     * @param after  The newer snapshot.
+     * @return The changes, in room then device order; empty if both are equal.
+     */
+    public static List<HomeChange> diff(HomeSnapshot before, HomeSnapshot after) {
+        ArrayList<HomeChange> out = new ArrayList<>();
+        if (before == after || before.equals(after)) return out;
+        List<Room> a = before.rooms;
+        List<Room> b = after.rooms;
+        int i = 0;
+        int j = 0;
+        while (i < a.size() || j < b.size()) {
+            int cmp = i == a.size() ? 1 : j == b.size() ? -1 : a.get(i).id.compareTo(b.get(j).id);
+            if (cmp < 0) {
+                out.add(new HomeChange.RoomRemoved(a.get(i++)));
+            } else if (cmp > 0) {
+                out.add(new HomeChange.RoomAdded(b.get(j++)));
+            } else {
+                diffRoom(a.get(i++), b.get(j++), out);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Compare two versions of the same room.
+     *
+     * @param before The older room.
+     * @param after  The newer room.
+     * @param out    The list collecting changes.
+     */
+    private static void diffRoom(Room before, Room after, List<HomeChange> out) {
+        if (before == after || before.equals(after)) return;
+        if (!before.name.equals(after.name)) {
+            out.add(new HomeChange.RoomRenamed(after.id, before.name, after.name));
+        }
+        if (before.deviceCount != after.deviceCount) {
+            out.add(new HomeChange.DeviceCountChanged(after.id, before.deviceCount, after.deviceCount));
+        }
+        List<Device> a = before.devices;
+        List<Device> b = after.devices;
+        int i = 0;
+        int j = 0;
+        while (i < a.size() || j < b.size()) {
+            int cmp = i == a.size() ? 1 : j == b.size() ? -1 : a.get(i).id.compareTo(b.get(j).id);
+            if (cmp < 0) {
+                out.add(new HomeChange.DeviceRemoved(after.id, a.get(i++)));
+            } else if (cmp > 0) {
+                out.add(new HomeChange.DeviceAdded(after.id, b.get(j++)));
+            } else {
+                diffDevice(after.id, a.get(i++), b.get(j++), out);
+            }
+        }
+    }
+
+    /**
+     * Compare two versions of the same device.
+     *
+     * @param roomId The ID of the room holding the device.
+     * @param before The older device.
+     * @param after  The newer device.
+     * @param out    The list collecting changes.
+     */
+    private static void diffDevice(String roomId, Device before, Device after, List<HomeChange> out) {
+        if (before == after || before.equals(after)) return;
+        if (!before.name.equals(after.name)) {
+            out.add(new HomeChange.DeviceRenamed(roomId, after.id, before.name, after.name));
+        }
+
+        // Sensors are sorted by key in both devices
+        int i = 0;
+        int j = 0;
+        while (i < before.sensorCount() || j < after.sensorCount()) {
+            int cmp = i == before.sensorCount() ? 1
+                    : j == after.sensorCount() ? -1
+                    : before.sensorKey(i).compareTo(after.sensorKey(j));
+            if (cmp < 0) {
+                out.add(new HomeChange.SensorChanged(roomId, after.id, before.sensorKey(i), before.sensorValue(i), Double.NaN));
+                i++;
+            } else if (cmp > 0) {
+                out.add(new HomeChange.SensorChanged(roomId, after.id, after.sensorKey(j), Double.NaN, after.sensorValue(j)));
+                j++;
+            } else {
+                boolean sameValue = Double.doubleToLongBits(before.sensorValue(i)) == Double.doubleToLongBits(after.sensorValue(j));
+                if (!sameValue || !Objects.equals(before.sensorText(i), after.sensorText(j))) {
+                    out.add(new HomeChange.SensorChanged(roomId, after.id, after.sensorKey(j), before.sensorValue(i), after.sensorValue(j)));
+                }
+                i++;
+                j++;
+            }
+        }
+
+        for (Map.Entry<String, Object> entry : after.controllable.entrySet()) {
+            Object old = before.controllable.get(entry.getKey());
+            if (!Objects.equals(old, entry.getValue())) {
+                out.add(new HomeChange.ControllableChanged(roomId, after.id, entry.getKey(), old, entry.getValue()));
+            }
+        }
+        for (Map.Entry<String, Object> entry : before.controllable.entrySet()) {
+            if (!after.controllable.containsKey(entry.getKey())) {
+                out.add(new HomeChange.ControllableChanged(roomId, after.id, entry.getKey(), entry.getValue(), null));
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * SnapshotStore: Persists the last HomeSnapshot in a compact binary file.
+ *
+ * The file is written once the home state settles and is memory-mapped on cold start, so the
+ * rooms screen can render the last known state before the database answers. The format is a
+ * flat sequence of length-prefixed fields that is walked once, with no JSON tokenizing.
+ *
+ * Layout (big-endian):
+ *   int magic, short version, int roomCount,
+ *   per room:   str id, str name, int deviceCount,
+ *   per device: str id, str name, short sensorCount, short controllableCount,
+ *   per sensor: str key, double value, str text ("" when numeric),
+ *   per controllable: str key, byte type, value
+ * where str is a short byte length followed by UTF-8 bytes.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.util.Log;
+
+import com.example.alexucana.models.Device;
+import com.example.alexucana.models.HomeSnapshot;
+import com.example.alexucana.models.Room;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The SnapshotStore class reads and writes HomeSnapshot files.
+ */
+public class SnapshotStore {
+
+    public static final String TAG = SnapshotStore.class.getSimpleName();
+
+    private static final int MAGIC = 0x41584853; // "AXHS"
+    private static final short VERSION = 1;
+
+    // Controllable value types
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_STRING = 4;
+
+    private final File file;
+
+    /**
+     * Constructor for the SnapshotStore class.
+     *
+     * @param file The file holding the snapshot.
+     */
+    public SnapshotStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the persisted snapshot.
+     *
+     * @return The snapshot, or null if there is none or it cannot be read.
+     */
+    public HomeSnapshot load() {
+        if (!file.exists() || file.length() == 0) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getShort() != VERSION) {
+                Log.e(TAG, "Unknown snapshot format, ignoring " + file);
+                return null;
+            }
+            int roomCount = buf.getInt();
+            ArrayList<Room> rooms = new ArrayList<>(roomCount);
+            for (int r = 0; r < roomCount; r++) {
+                String roomId = readString(buf);
+                String roomName = readString(buf);
+                int deviceCount = buf.getInt();
+                ArrayList<Device> devices = new ArrayList<>(deviceCount);
+                for (int d = 0; d < deviceCount; d++) {
+                    devices.add(readDevice(buf));
+                }
+                rooms.add(Room.of(roomId, roomName, devices));
+            }
+            return HomeSnapshot.of(rooms);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to load snapshot: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Persist a snapshot, replacing the previous file atomically.
+     *
+     * @param snapshot The snapshot to persist.
+     */
+    public void save(HomeSnapshot snapshot) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(snapshot.rooms.size());
+            for (Room room : snapshot.rooms) {
+                writeString(out, room.id);
+                writeString(out, room.name);
+                out.writeInt(room.devices.size());
+                for (Device device : room.devices) {
+                    writeDevice(out, device);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save snapshot: " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Failed to replace snapshot file " + file);
+        }
+    }
+
+    /**
+     * Write one device.
+     *
+     * @param out    The output stream.
+     * @param device The device to write.
+     * @throws IOException If writing fails.
+     */
+    private static void writeDevice(DataOutputStream out, Device device) throws IOException {
+        writeString(out, device.id);
+        writeString(out, device.name);
+        out.writeShort(device.sensorCount());
+        out.writeShort(device.controllable.size());
+        for (int i = 0; i < device.sensorCount(); i++) {
+            writeString(out, device.sensorKey(i));
+            out.writeDouble(device.sensorValue(i));
+            String text = device.sensorText(i);
+            writeString(out, text == null ? "" : text);
+        }
+        for (Map.Entry<String, Object> entry : device.controllable.entrySet()) {
+            writeString(out, entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Long || value instanceof Integer) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble(((Number) value).doubleValue());
+            } else if (value != null) {
+                out.writeByte(TYPE_STRING);
+                writeString(out, value.toString());
+            } else {
+                out.writeByte(TYPE_NULL);
+            }
+        }
+    }
+
+    /**
+     * Read one device.
+     *
+     * @param buf The mapped buffer, positioned at the device.
+     * @return The device.
+     */
+    private static Device readDevice(ByteBuffer buf) {
+        String id = readString(buf);
+        String name = readString(buf);
+        int sensorCount = buf.getShort();
+        int controllableCount = buf.getShort();
+        String[] keys = new String[sensorCount];
+        double[] values = new double[sensorCount];
+        String[] texts = new String[sensorCount];
+        for (int i = 0; i < sensorCount; i++) {
+            keys[i] = readString(buf);
+            values[i] = buf.getDouble();
+            String text = readString(buf);
+            texts[i] = text.isEmpty() ? null : text;
+        }
+        LinkedHashMap<String, Object> controllable = new LinkedHashMap<>();
+        for (int i = 0; i < controllableCount; i++) {
+            String key = readString(buf).intern();
+            switch (buf.get()) {
+                case TYPE_BOOLEAN:
+                    controllable.put(key, buf.get() != 0);
+                    break;
+                case TYPE_LONG:
+                    controllable.put(key, buf.getLong());
+                    break;
+                case TYPE_DOUBLE:
+                    controllable.put(key, buf.getDouble());
+                    break;
+                case TYPE_STRING:
+                    controllable.put(key, readString(buf));
+                    break;
+                default:
+                    controllable.put(key, null);
+                    break;
+            }
+        }
+        return Device.of(id, name, keys, values, texts, controllable);
+    }
+
+    /**
+     * Write a short-length-prefixed UTF-8 string.
+     *
+     * @param out The output stream.
+     * @param s   The string to write.
+     * @throws IOException If writing fails.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a short-length-prefixed UTF-8 string.
+     *
+     * @param buf The mapped buffer.
+     * @return The string.
+     */
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * WriteCoalescer: Batches database writes into multi-path updates.
+ *
+ * Writes are keyed by their full database path. Writes that arrive within the coalescing window
+ * are merged, the last value for a path wins, and the whole batch is handed over as one
+ * multi-path update when the window closes.
+ *
+ */
+package com.example.alexucana.controllers;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The WriteCoalescer class merges writes to the same paths within a short window.
+ */
+public class WriteCoalescer {
+
+    public static final String TAG = WriteCoalescer.class.getSimpleName();
+
+    /**
+     * Interface for sending one merged batch of writes.
+     */
+    public interface Flusher {
+        void apply(Map<String, Object> pathValues);
+    }
+
+    private final Handler handler;
+    private final Flusher flusher;
+    private long windowMs;
+
+    // Pending writes keyed by full path, in arrival order
+    private final LinkedHashMap<String, Object> pending = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+
+    // Counters: writes requested by callers vs. batches actually sent
+    private long requestedWrites = 0;
+    private long sentBatches = 0;
+
+    /**
+     * Constructor for the WriteCoalescer class.
+     *
+     * @param handler  The handler on which batches are flushed.
+     * @param windowMs The coalescing window in milliseconds.
+     * @param flusher  The callback that sends one merged batch.
+     */
+    public WriteCoalescer(Handler handler, long windowMs, Flusher flusher) {
+        this.handler = handler;
+        this.windowMs = windowMs;
+        this.flusher = flusher;
+    }
+
+    /**
+     * Set the coalescing window. A window of 0 flushes on the next handler turn.
+     *
+     * @param windowMs The coalescing window in milliseconds.
+     */
+    public synchronized void setWindowMs(long windowMs) {
+        this.windowMs = Math.max(0, windowMs);
+    }
+
+    /**
+     * Check whether a write to a path is waiting to be sent.
+     *
+     * @param path The full database path.
+     * @return True if a write is pending.
+     */
+    public synchronized boolean isPending(String path) {
+        return pending.containsKey(path);
+    }
+
+    /**
+     * Queue one write. A pending write to the same path or below it is replaced, since a
+     * multi-path update may not contain both a path and one of its descendants.
+     *
+     * @param path  The full database path.
+     * @param value The value to write.
+     */
+    public synchronized void put(String path, Object value) {
+        requestedWrites++;
+        pending.remove(path); // Re-insert so the batch keeps the latest arrival order
+        pending.keySet().removeIf(queued -> queued.startsWith(path + "/"));
+        pending.put(path, value);
+        scheduleFlush();
+    }
+
+    /**
+     * Drop a pending write, e.g. because a newer write restores the current value.
+     *
+     * @param path The full database path.
+     */
+    public synchronized void cancel(String path) {
+        requestedWrites++;
+        pending.remove(path);
+    }
+
+    /**
+     * Schedule a flush at the end of the current window, if none is scheduled.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled) return;
+        flushScheduled = true;
+        handler.postDelayed(this::flush, windowMs);
+    }
+
+    /**
+     * Send everything pending as one multi-path update.
+     */
+    private void flush() {
+        Map<String, Object> batch;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty()) return;
+            batch = new HashMap<>(pending);
+            pending.clear();
+            sentBatches++;
+            Log.d(TAG, "Flushing " + batch.size() + " paths (" + requestedWrites + " writes requested, " + sentBatches + " batches sent)");
+        }
+        flusher.apply(batch);
+    }
+}
@@ -3,7 +3,7 @@ package com.example.alexucana;
 public class config {
     public static final String OPENAI_API_KEY = "your api key here";
     // this api key will expire soon
-    public static final String DATABASE_PATH = "alexucana_v2";
+    public static final String DATABASE_PATH = "alexucana_v3";
     public static final String[] TTS_DEFAULT_LOCALE = {"vi", "VN"}; // For text to speech engines to choose their default language
 
 }
\ No newline at end of file
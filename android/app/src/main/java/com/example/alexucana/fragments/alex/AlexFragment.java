@@ -18,6 +18,7 @@ import android.widget.TextView;
 import androidx.fragment.app.Fragment;
 
 import com.example.alexucana.R;
+import com.example.alexucana.controllers.DataManager;
 import com.example.alexucana.controllers.OpenAiController;
 import com.example.alexucana.controllers.TtsController;
 
@@ -51,6 +52,12 @@ public class AlexFragment extends Fragment {
     // Reference to the parent activity
     private final Activity parent;
 
+    // How long a question waits for rooms that are still loading before it is asked anyway
+    private static final long HOME_LOAD_TIMEOUT_MS = 5000;
+
+    // Subscription to the whole home, held while the conversation is on screen
+    private DataManager.Subscription homeSubscription;
+
     // Set of special characters
     private final Set<String> specialCharacters = new HashSet<>(Arrays.asList(".", ",", "?", "!"));
 
@@ -80,6 +87,17 @@ public class AlexFragment extends Fragment {
         return view;
     }
 
+    /**
+     * Stop syncing the whole home when the conversation leaves the screen.
+     */
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (homeSubscription == null) return;
+        homeSubscription.unsubscribe();
+        homeSubscription = null;
+    }
+
     /**
      * Clean up resources when the fragment is destroyed.
      */
@@ -90,15 +108,21 @@ public class AlexFragment extends Fragment {
     }
 
     /**
-     * Ask a question to Alex.
+     * Ask a question to Alex. The question waits for the home to finish loading, at most
+     * HOME_LOAD_TIMEOUT_MS, so the assistant sees the devices of every room.
      *
      * @param question The question to ask.
      */
     public void askAlex(String question) {
         fullAns = "";
         sentenceCache = "";
+        if (homeSubscription == null) {
+            // The assistant answers about every room, so keep the whole home in sync meanwhile
+            homeSubscription = DataManager.getInstance().subscribeHome();
+        }
         tts.createEngine();
-        openAi.callOpenAiApi(question);
+        // Rooms never opened only hold their header until their devices arrive
+        DataManager.getInstance().whenHomeLoaded(HOME_LOAD_TIMEOUT_MS, () -> openAi.callOpenAiApi(question));
     }
 
     /**
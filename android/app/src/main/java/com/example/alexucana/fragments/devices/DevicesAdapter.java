@@ -22,15 +22,18 @@ import android.widget.LinearLayout;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
+import androidx.lifecycle.LifecycleOwner;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.alexucana.R;
 import com.example.alexucana.controllers.EspTouchV2Controller;
 import com.example.alexucana.controllers.DataManager;
 import com.example.alexucana.models.Device;
+import com.example.alexucana.models.LoadState;
+import com.example.alexucana.utils.LoadStateViews;
 import com.example.alexucana.utils.PopUpDialogHelper;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The DevicesAdapter class represents an adapter for managing the data and views of devices in a RecyclerView.
@@ -47,11 +50,22 @@ public class DevicesAdapter extends RecyclerView.Adapter<DeviceViewHolder> {
     private final DataManager dbController;
 
     // List to hold device data
-    private ArrayList<Device> data;
+    private List<Device> data;
 
     // Current room identifier
     private String currentRoom;
 
+    // Subscription to the current room's devices_map, held while the room is on screen
+    private DataManager.Subscription roomSubscription;
+
+    // Change listener for the current room
+    private DataManager.Subscription changeSubscription;
+
+    // Load state of the current room's devices, its listener, and the views showing it (may be null)
+    private LoadState loadState = LoadState.IDLE;
+    private DataManager.Subscription loadStateSubscription;
+    private LoadStateViews loadStateViews;
+
     /**
      * Constructor for the DevicesAdapter class.
      *
@@ -85,7 +99,6 @@ public class DevicesAdapter extends RecyclerView.Adapter<DeviceViewHolder> {
 
         // Initialize the DataManager
         dbController = DataManager.getInstance();
-        dbController.setOnDataChanged(this::onDataChanged);
 
         // Initialize the data list with devices for the current room
         data = dbController.getDevicesList(this.currentRoom);
@@ -97,21 +110,72 @@ public class DevicesAdapter extends RecyclerView.Adapter<DeviceViewHolder> {
     }
 
     /**
-     * Set the current room for the DevicesAdapter.
+     * Set the current room for the DevicesAdapter and sync its devices for as long as the owner lives.
      *
      * @param roomId The identifier of the current room.
+     * @param owner  The lifecycle owner, typically the fragment's view lifecycle owner.
      */
-    public void setCurrentRoom(String roomId) {
+    public void setCurrentRoom(String roomId, LifecycleOwner owner) {
+        leaveRoom();
         this.currentRoom = roomId;
+        if (roomId != null) {
+            roomSubscription = DataManager.bindTo(owner, dbController.subscribeRoom(roomId));
+            changeSubscription = DataManager.bindTo(owner, dbController.observe(roomId, true, this::onDataChanged));
+            loadStateSubscription = DataManager.bindTo(owner, dbController.observeLoadState(roomId, this::onLoadStateChanged));
+        }
         onDataChanged();
     }
 
+    /**
+     * Set the views that show whether the current room's devices are loading or failed.
+     *
+     * @param views The load state views.
+     */
+    public void setLoadStateViews(LoadStateViews views) {
+        this.loadStateViews = views;
+        showLoadState();
+    }
+
+    /**
+     * Stop syncing the current room's devices and listening to its changes.
+     */
+    public void leaveRoom() {
+        if (roomSubscription != null) {
+            roomSubscription.unsubscribe();
+            roomSubscription = null;
+        }
+        if (changeSubscription != null) {
+            changeSubscription.unsubscribe();
+            changeSubscription = null;
+        }
+        if (loadStateSubscription != null) {
+            loadStateSubscription.unsubscribe();
+            loadStateSubscription = null;
+        }
+        loadState = LoadState.IDLE;
+    }
+
     /**
      * Update the data when it changes.
      */
     private void onDataChanged() {
         this.data = dbController.getDevicesList(this.currentRoom);
         notifyDataSetChanged();
+        showLoadState();
+    }
+
+    /**
+     * Called when the load state of the current room's devices changes.
+     *
+     * @param state The new load state.
+     */
+    private void onLoadStateChanged(LoadState state) {
+        this.loadState = state;
+        showLoadState();
+    }
+
+    private void showLoadState() {
+        if (loadStateViews != null) loadStateViews.show(loadState, data.isEmpty());
     }
 
     /**
@@ -13,6 +13,8 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -21,6 +23,8 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.alexucana.R; // Import for accessing resources from the res folder
+import com.example.alexucana.controllers.DataManager;
+import com.example.alexucana.utils.LoadStateViews;
 
 /**
  * The DevicesFragment class represents a Fragment for displaying a list of devices in a RecyclerView.
@@ -58,6 +62,12 @@ public class DevicesFragment extends Fragment {
         // Set the DevicesAdapter for the RecyclerView
         devicesAdapter = new DevicesAdapter(getActivity());
         rcv.setAdapter(devicesAdapter);
+
+        // Show a spinner while the room has nothing cached, and failures with a way to retry
+        ProgressBar progress = view.findViewById(R.id.progress_devices);
+        TextView status = view.findViewById(R.id.txt_devices_status);
+        devicesAdapter.setLoadStateViews(new LoadStateViews(progress, status, () -> DataManager.getInstance().retryLoad()));
+
         view.findViewById(R.id.btn_add_device).setOnClickListener(v -> devicesAdapter.addDevice());
         return view;
     }
@@ -70,7 +80,7 @@ public class DevicesFragment extends Fragment {
      */
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
-        this.devicesAdapter.setCurrentRoom(currentRoom);
+        this.devicesAdapter.setCurrentRoom(currentRoom, getViewLifecycleOwner());
     }
 
     /**
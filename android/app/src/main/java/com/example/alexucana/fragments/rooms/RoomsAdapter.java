@@ -17,13 +17,17 @@ import android.widget.EditText;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
+import androidx.lifecycle.LifecycleOwner;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.alexucana.R; // Import for accessing resources from the res folder
+import com.example.alexucana.controllers.ChangeRegistry;
 import com.example.alexucana.controllers.DataManager;
+import com.example.alexucana.models.LoadState;
 import com.example.alexucana.models.Room;
+import com.example.alexucana.utils.LoadStateViews;
 
-import java.util.ArrayList;
+import java.util.List;
 
 /**
  * The RoomsAdapter class represents an adapter for managing room data in a RecyclerView.
@@ -45,7 +49,11 @@ public class RoomsAdapter extends RecyclerView.Adapter<RoomViewHolder> {
     private final DataManager dbController;
 
     // List to hold room data
-    private ArrayList<Room> data;
+    private List<Room> data;
+
+    // Load state of the room headers, and the views showing it (may be null)
+    private LoadState loadState = LoadState.IDLE;
+    private LoadStateViews loadStateViews;
 
     /**
      * Constructor for RoomsAdapter.
@@ -61,7 +69,29 @@ public class RoomsAdapter extends RecyclerView.Adapter<RoomViewHolder> {
         if (!data.isEmpty()) {
             notifyDataSetChanged();
         }
-        dbController.setOnDataChanged(this::onDataChanged);
+    }
+
+    /**
+     * Sync room headers and refresh on their changes for as long as the owner lives.
+     * Only room-level changes (name, device count, added or removed rooms) reach this adapter.
+     *
+     * @param owner The lifecycle owner, typically the fragment's view lifecycle owner.
+     */
+    public void observe(LifecycleOwner owner) {
+        DataManager.bindTo(owner, dbController.observe(ChangeRegistry.WILDCARD, false, this::onDataChanged));
+        DataManager.bindTo(owner, dbController.subscribeRooms());
+        DataManager.bindTo(owner, dbController.observeLoadState("", this::onLoadStateChanged));
+        onDataChanged();
+    }
+
+    /**
+     * Set the views that show whether the room headers are loading or failed.
+     *
+     * @param views The load state views.
+     */
+    public void setLoadStateViews(LoadStateViews views) {
+        this.loadStateViews = views;
+        showLoadState();
     }
 
     /**
@@ -71,6 +101,21 @@ public class RoomsAdapter extends RecyclerView.Adapter<RoomViewHolder> {
     private void onDataChanged() {
         this.data = dbController.getRoomsList();
         notifyDataSetChanged();
+        showLoadState();
+    }
+
+    /**
+     * Listener method called when the load state of the room headers changes.
+     *
+     * @param state The new load state.
+     */
+    private void onLoadStateChanged(LoadState state) {
+        this.loadState = state;
+        showLoadState();
+    }
+
+    private void showLoadState() {
+        if (loadStateViews != null) loadStateViews.show(loadState, data.isEmpty());
     }
 
     /**
@@ -12,12 +12,18 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.alexucana.R; // Import for accessing resources from the res folder
+import com.example.alexucana.controllers.DataManager;
+import com.example.alexucana.utils.LoadStateViews;
 
 /**
  * The RoomsFragment class represents a Fragment for displaying a list of rooms.
@@ -65,9 +71,25 @@ public class RoomsFragment extends Fragment {
         roomsAdapter = new RoomsAdapter(getContext(), openOneRoom);
         rcv.setAdapter(roomsAdapter);
 
+        // Show a spinner while there is nothing cached, and failures with a way to retry
+        ProgressBar progress = view.findViewById(R.id.progress_rooms);
+        TextView status = view.findViewById(R.id.txt_rooms_status);
+        roomsAdapter.setLoadStateViews(new LoadStateViews(progress, status, () -> DataManager.getInstance().retryLoad()));
+
         // Set a click listener for the "Add Room" button to add a new room
         view.findViewById(R.id.btn_add_room).setOnClickListener(v -> roomsAdapter.addRoom());
 
         return view;
     }
+
+    /**
+     * Called immediately after onCreateView(); ties the room headers sync to the view's lifecycle.
+     *
+     * @param view               The created view.
+     * @param savedInstanceState If non-null, this fragment is being re-constructed from a previous saved state.
+     */
+    @Override
+    public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        roomsAdapter.observe(getViewLifecycleOwner());
+    }
 }
@@ -1,8 +1,404 @@
+/**
+ * Device: Immutable view of one device inside a HomeSnapshot.
+ *
+ * A Device is built once when its branch of the database changes. Sensor readings are kept as
+ * primitive doubles behind interned keys, controllable values are kept in an unmodifiable map,
+ * and the text shown on the device card is precomputed, so binding a card never allocates. Its row
+ * in the assistant's prompt is serialized on first use and kept with it.
+ *
+ */
 package com.example.alexucana.models;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 
-public class Device {
-    public String id;
-    public String name;
-    public Object data;
-}
\ No newline at end of file
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The Device class represents an immutable device entry of the home state.
+ */
+public final class Device {
+
+    private static final String[] NO_KEYS = new String[0];
+    private static final double[] NO_VALUES = new double[0];
+
+    public final String id;
+    public final String name;
+
+    // Precomputed text for the device card
+    public final String data;
+
+    // Structural hash of name, sensors and controllable values; equal devices have equal hashes,
+    // but equal hashes do not prove equal devices, so use it only to reject quickly
+    public final long hash;
+
+    // Controllable values keyed by interned keys, in key order
+    public final Map<String, Object> controllable;
+
+    // Sensor readings, in key order; NaN marks a reading that is not a number (e.g. "?")
+    private final String[] sensorKeys;
+    private final double[] sensorValues;
+    private final String[] sensorTexts;
+
+    // UTF-8 row of the device in the assistant's prompt, built on first use
+    private volatile byte[] promptRow;
+
+    private Device(String id, String name, String[] sensorKeys, double[] sensorValues, String[] sensorTexts,
+                   Map<String, Object> controllable) {
+        this.id = id;
+        this.name = name;
+        this.sensorKeys = sensorKeys;
+        this.sensorValues = sensorValues;
+        this.sensorTexts = sensorTexts;
+        this.controllable = controllable;
+        this.data = buildData();
+        this.hash = computeHash();
+    }
+
+    /**
+     * Build a Device from the raw map delivered by the database.
+     *
+     * @param id    The ID of the device.
+     * @param props The device props: [device_name | sensors | controllable].
+     * @return The immutable Device.
+     */
+    public static Device fromMap(String id, Map<String, Object> props) {
+        Object rawName = props.get("device_name");
+        String name = rawName == null ? "Unnamed device" : rawName.toString();
+
+        Object rawSensors = props.get("sensors");
+        Map<?, ?> sensors = rawSensors instanceof Map ? (Map<?, ?>) rawSensors : Collections.emptyMap();
+        int count = sensors.size();
+        String[] keys = count == 0 ? NO_KEYS : new String[count];
+        double[] values = count == 0 ? NO_VALUES : new double[count];
+        String[] texts = count == 0 ? NO_KEYS : new String[count];
+        parseSensors(sensors, keys, values, texts);
+
+        Map<String, Object> controllable = Collections.emptyMap();
+        Object rawControllable = props.get("controllable");
+        if (rawControllable instanceof Map && !((Map<?, ?>) rawControllable).isEmpty()) {
+            TreeMap<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) rawControllable).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()).intern(), entry.getValue());
+            }
+            controllable = Collections.unmodifiableMap(new LinkedHashMap<>(sorted));
+        }
+
+        return new Device(id, name, keys, values, texts, controllable);
+    }
+
+    /**
+     * Parse raw sensor readings into parallel arrays, in key order.
+     *
+     * @param sensors The readings keyed by sensor key.
+     * @param keys    Receives the interned keys.
+     * @param values  Receives the readings; NaN for non-numeric readings.
+     * @param texts   Receives the raw text of non-numeric readings, null elsewhere.
+     */
+    private static void parseSensors(Map<?, ?> sensors, String[] keys, double[] values, String[] texts) {
+        if (sensors.isEmpty()) return;
+        TreeMap<String, Object> sorted = new TreeMap<>();
+        for (Map.Entry<?, ?> entry : sensors.entrySet()) {
+            sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        int i = 0;
+        for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+            keys[i] = entry.getKey().intern();
+            values[i] = toDouble(entry.getValue());
+            texts[i] = Double.isNaN(values[i]) && entry.getValue() != null ? entry.getValue().toString() : null;
+            i++;
+        }
+    }
+
+    /**
+     * Build a Device from already-typed parts, e.g. when restoring a persisted snapshot.
+     *
+     * @param id           The ID of the device.
+     * @param name         The device name.
+     * @param sensorKeys   The sensor keys, in key order.
+     * @param sensorValues The sensor readings; NaN for non-numeric readings.
+     * @param sensorTexts  The raw text of non-numeric readings, null elsewhere.
+     * @param controllable The controllable values, in key order.
+     * @return The immutable Device.
+     */
+    public static Device of(String id, String name, String[] sensorKeys, double[] sensorValues, String[] sensorTexts,
+                            Map<String, Object> controllable) {
+        for (int i = 0; i < sensorKeys.length; i++) {
+            sensorKeys[i] = sensorKeys[i].intern();
+        }
+        return new Device(id, name, sensorKeys, sensorValues, sensorTexts, Collections.unmodifiableMap(controllable));
+    }
+
+    /**
+     * Build a copy of this device with some controllable values replaced.
+     * Sensor arrays are shared with this device.
+     *
+     * @param changes The new values keyed by controllable key; a null value removes the key.
+     * @return The new Device, or this device if nothing changes.
+     */
+    public Device withControllable(Map<String, Object> changes) {
+        TreeMap<String, Object> sorted = new TreeMap<>(controllable);
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+            if (entry.getValue() == null) sorted.remove(entry.getKey());
+            else sorted.put(entry.getKey().intern(), entry.getValue());
+        }
+        if (sorted.equals(controllable)) return this;
+        return new Device(id, name, sensorKeys, sensorValues, sensorTexts,
+                Collections.unmodifiableMap(new LinkedHashMap<>(sorted)));
+    }
+
+    /**
+     * Estimate the heap held by this device, for cache budgets.
+     * Counts the object, its card text, its sensor arrays and its controllable entries; interned
+     * keys are shared between devices and not counted.
+     *
+     * @return The estimated size in bytes.
+     */
+    public int estimatedBytes() {
+        int bytes = 96 + 40 + data.length() * 2;
+        bytes += 3 * 16 + sensorKeys.length * (4 + 8 + 4);
+        for (String text : sensorTexts) {
+            if (text != null) bytes += 40 + text.length() * 2;
+        }
+        bytes += 64 + controllable.size() * 56;
+        return bytes;
+    }
+
+    /**
+     * Build a copy of this device with all sensor readings replaced, e.g. from its telemetry branch.
+     * The controllable map is shared with this device.
+     *
+     * @param sensors The readings keyed by sensor key.
+     * @return The new Device, or this device if nothing changes.
+     */
+    public Device withSensors(Map<String, Object> sensors) {
+        int count = sensors.size();
+        String[] keys = count == 0 ? NO_KEYS : new String[count];
+        double[] values = count == 0 ? NO_VALUES : new double[count];
+        String[] texts = count == 0 ? NO_KEYS : new String[count];
+        parseSensors(sensors, keys, values, texts);
+        if (Arrays.equals(keys, sensorKeys) && Arrays.equals(values, sensorValues) && Arrays.equals(texts, sensorTexts)) {
+            return this;
+        }
+        return new Device(id, name, keys, values, texts, controllable);
+    }
+
+    /**
+     * Get the number of sensor readings.
+     *
+     * @return The number of sensors.
+     */
+    public int sensorCount() {
+        return sensorKeys.length;
+    }
+
+    /**
+     * Get the key of a sensor reading.
+     *
+     * @param index The index of the sensor, in key order.
+     * @return The interned sensor key.
+     */
+    public String sensorKey(int index) {
+        return sensorKeys[index];
+    }
+
+    /**
+     * Get the value of a sensor reading.
+     *
+     * @param index The index of the sensor, in key order.
+     * @return The reading, or NaN if it is not a number.
+     */
+    public double sensorValue(int index) {
+        return sensorValues[index];
+    }
+
+    /**
+     * Get the raw text of a non-numeric sensor reading.
+     *
+     * @param index The index of the sensor, in key order.
+     * @return The text, or null if the reading is a number.
+     */
+    public String sensorText(int index) {
+        return sensorTexts[index];
+    }
+
+    /**
+     * Get the value of a sensor reading by key.
+     *
+     * @param key The sensor key.
+     * @return The reading, or NaN if the sensor is missing or not a number.
+     */
+    public double sensorValue(String key) {
+        for (int i = 0; i < sensorKeys.length; i++) {
+            if (sensorKeys[i].equals(key)) return sensorValues[i];
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Get a sensor reading as it should be shown or sent, preserving non-numeric readings.
+     *
+     * @param index The index of the sensor, in key order.
+     * @return A Long, Double or String reading, or null.
+     */
+    public Object sensorRaw(int index) {
+        double value = sensorValues[index];
+        if (Double.isNaN(value)) return sensorTexts[index];
+        if (value == Math.rint(value) && !Double.isInfinite(value)) return (long) value;
+        return value;
+    }
+
+    /**
+     * Convert this device into the JSON shape used by the database.
+     *
+     * @return The device as a JSON object.
+     * @throws JSONException If there is an issue with JSON building.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject sensors = new JSONObject();
+        for (int i = 0; i < sensorKeys.length; i++) {
+            sensors.put(sensorKeys[i], sensorRaw(i));
+        }
+        JSONObject json = new JSONObject();
+        json.put("device_name", name);
+        json.put("sensors", sensors);
+        json.put("controllable", new JSONObject(controllable));
+        return json;
+    }
+
+    /**
+     * Get the row of this device in the assistant's prompt, after its alias:
+     * name|sensors|controllable, with comma-separated key=value pairs and "-" for none.
+     * The row is serialized once; a changed device is a new Device with its own row, so the
+     * rows of unchanged devices are reused by every prompt.
+     *
+     * @return The UTF-8 bytes of the row; must not be modified.
+     */
+    public byte[] promptRow() {
+        byte[] row = promptRow;
+        if (row == null) {
+            StringBuilder sb = new StringBuilder(promptText(name)).append('|');
+            if (sensorKeys.length == 0) sb.append('-');
+            for (int i = 0; i < sensorKeys.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(sensorKeys[i]).append('=').append(promptText(String.valueOf(sensorRaw(i))));
+            }
+            sb.append('|');
+            if (controllable.isEmpty()) sb.append('-');
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : controllable.entrySet()) {
+                if (!first) sb.append(',');
+                first = false;
+                sb.append(entry.getKey()).append('=').append(promptText(String.valueOf(entry.getValue())));
+            }
+            row = sb.toString().getBytes(StandardCharsets.UTF_8);
+            promptRow = row;
+        }
+        return row;
+    }
+
+    /**
+     * Keep free text from breaking the rows and pairs of a prompt.
+     *
+     * @param text The text.
+     * @return The text on one line, without column or pair separators.
+     */
+    public static String promptText(String text) {
+        return text.replace('\n', ' ').replace('|', '/').replace(',', ';');
+    }
+
+    /**
+     * Build the card text once, in the same shape the UI has always shown.
+     *
+     * @return The text for the device card.
+     */
+    private String buildData() {
+        StringBuilder sb = new StringBuilder("sensors: {");
+        for (int i = 0; i < sensorKeys.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(sensorKeys[i]).append('=').append(sensorRaw(i));
+        }
+        sb.append("}\ncontrollable: ").append(controllable);
+        return sb.toString();
+    }
+
+    /**
+     * Compare this device with another by content: ID, name, sensor readings and controllable
+     * values. Different structural hashes reject at once; equal ones are confirmed field by field.
+     *
+     * @param o The object to compare with.
+     * @return True if both devices hold the same content.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Device)) return false;
+        Device other = (Device) o;
+        return hash == other.hash
+                && id.equals(other.id)
+                && name.equals(other.name)
+                && Arrays.equals(sensorKeys, other.sensorKeys)
+                && Arrays.equals(sensorValues, other.sensorValues)
+                && Arrays.equals(sensorTexts, other.sensorTexts)
+                && controllable.equals(other.controllable);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Compute the structural hash of this device.
+     *
+     * @return The hash.
+     */
+    private long computeHash() {
+        long h = mix(id.hashCode(), name.hashCode());
+        for (int i = 0; i < sensorKeys.length; i++) {
+            h = mix(h, sensorKeys[i].hashCode());
+            h = mix(h, Double.doubleToLongBits(sensorValues[i]));
+            h = mix(h, sensorTexts[i] == null ? 0 : sensorTexts[i].hashCode());
+        }
+        for (Map.Entry<String, Object> entry : controllable.entrySet()) {
+            h = mix(h, entry.getKey().hashCode());
+            h = mix(h, entry.getValue() == null ? 0 : entry.getValue().hashCode());
+        }
+        return h;
+    }
+
+    /**
+     * Fold a value into a 64-bit structural hash.
+     *
+     * @param h The hash so far.
+     * @param v The value to fold in.
+     * @return The new hash.
+     */
+    static long mix(long h, long v) {
+        h = (h ^ v) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Convert a raw database value into a double.
+     *
+     * @param value The raw value.
+     * @return The numeric value, or NaN if it is not a number.
+     */
+    private static double toDouble(Object value) {
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException err) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+}
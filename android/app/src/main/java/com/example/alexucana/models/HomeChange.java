@@ -0,0 +1,256 @@
+/**
+ * HomeChange: Typed description of one difference between two HomeSnapshots.
+ *
+ * Each change knows the database path it touches (relative to the home), so it can be routed to
+ * the listeners registered for that path.
+ *
+ */
+package com.example.alexucana.models;
+
+/**
+ * The HomeChange class is the base of all typed home change events.
+ */
+public abstract class HomeChange {
+
+    public final String roomId;
+
+    private HomeChange(String roomId) {
+        this.roomId = roomId;
+    }
+
+    /**
+     * Get the database path this change touches.
+     *
+     * @return The '/'-separated path relative to the home.
+     */
+    public abstract String path();
+
+    /**
+     * Build the database path of a device.
+     *
+     * @param roomId   The ID of the room.
+     * @param deviceId The ID of the device.
+     * @return The device path.
+     */
+    static String devicePath(String roomId, String deviceId) {
+        return roomId + "/devices_map/" + deviceId;
+    }
+
+    /**
+     * A room appeared.
+     */
+    public static final class RoomAdded extends HomeChange {
+        public final Room room;
+
+        public RoomAdded(Room room) {
+            super(room.id);
+            this.room = room;
+        }
+
+        @Override
+        public String path() {
+            return roomId;
+        }
+
+        @Override
+        public String toString() {
+            return "RoomAdded(" + roomId + ")";
+        }
+    }
+
+    /**
+     * A room disappeared.
+     */
+    public static final class RoomRemoved extends HomeChange {
+        public final Room room;
+
+        public RoomRemoved(Room room) {
+            super(room.id);
+            this.room = room;
+        }
+
+        @Override
+        public String path() {
+            return roomId;
+        }
+
+        @Override
+        public String toString() {
+            return "RoomRemoved(" + roomId + ")";
+        }
+    }
+
+    /**
+     * A room got another name.
+     */
+    public static final class RoomRenamed extends HomeChange {
+        public final String oldName;
+        public final String newName;
+
+        public RoomRenamed(String roomId, String oldName, String newName) {
+            super(roomId);
+            this.oldName = oldName;
+            this.newName = newName;
+        }
+
+        @Override
+        public String path() {
+            return roomId;
+        }
+
+        @Override
+        public String toString() {
+            return "RoomRenamed(" + roomId + ", " + oldName + " -> " + newName + ")";
+        }
+    }
+
+    /**
+     * The number of devices in a room changed.
+     */
+    public static final class DeviceCountChanged extends HomeChange {
+        public final int oldCount;
+        public final int newCount;
+
+        public DeviceCountChanged(String roomId, int oldCount, int newCount) {
+            super(roomId);
+            this.oldCount = oldCount;
+            this.newCount = newCount;
+        }
+
+        @Override
+        public String path() {
+            return roomId;
+        }
+
+        @Override
+        public String toString() {
+            return "DeviceCountChanged(" + roomId + ", " + oldCount + " -> " + newCount + ")";
+        }
+    }
+
+    /**
+     * A device appeared in a room.
+     */
+    public static final class DeviceAdded extends HomeChange {
+        public final Device device;
+
+        public DeviceAdded(String roomId, Device device) {
+            super(roomId);
+            this.device = device;
+        }
+
+        @Override
+        public String path() {
+            return devicePath(roomId, device.id);
+        }
+
+        @Override
+        public String toString() {
+            return "DeviceAdded(" + roomId + ", " + device.id + ")";
+        }
+    }
+
+    /**
+     * A device disappeared from a room.
+     */
+    public static final class DeviceRemoved extends HomeChange {
+        public final Device device;
+
+        public DeviceRemoved(String roomId, Device device) {
+            super(roomId);
+            this.device = device;
+        }
+
+        @Override
+        public String path() {
+            return devicePath(roomId, device.id);
+        }
+
+        @Override
+        public String toString() {
+            return "DeviceRemoved(" + roomId + ", " + device.id + ")";
+        }
+    }
+
+    /**
+     * A device got another name.
+     */
+    public static final class DeviceRenamed extends HomeChange {
+        public final String deviceId;
+        public final String oldName;
+        public final String newName;
+
+        public DeviceRenamed(String roomId, String deviceId, String oldName, String newName) {
+            super(roomId);
+            this.deviceId = deviceId;
+            this.oldName = oldName;
+            this.newName = newName;
+        }
+
+        @Override
+        public String path() {
+            return devicePath(roomId, deviceId) + "/device_name";
+        }
+
+        @Override
+        public String toString() {
+            return "DeviceRenamed(" + roomId + ", " + deviceId + ", " + oldName + " -> " + newName + ")";
+        }
+    }
+
+    /**
+     * A sensor reading changed, appeared or disappeared (NaN stands for a missing or non-numeric reading).
+     */
+    public static final class SensorChanged extends HomeChange {
+        public final String deviceId;
+        public final String key;
+        public final double oldValue;
+        public final double newValue;
+
+        public SensorChanged(String roomId, String deviceId, String key, double oldValue, double newValue) {
+            super(roomId);
+            this.deviceId = deviceId;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        @Override
+        public String path() {
+            return devicePath(roomId, deviceId) + "/sensors/" + key;
+        }
+
+        @Override
+        public String toString() {
+            return "SensorChanged(" + deviceId + ", " + key + ", " + oldValue + " -> " + newValue + ")";
+        }
+    }
+
+    /**
+     * A controllable value changed, appeared (old is null) or disappeared (new is null).
+     */
+    public static final class ControllableChanged extends HomeChange {
+        public final String deviceId;
+        public final String key;
+        public final Object oldValue;
+        public final Object newValue;
+
+        public ControllableChanged(String roomId, String deviceId, String key, Object oldValue, Object newValue) {
+            super(roomId);
+            this.deviceId = deviceId;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        @Override
+        public String path() {
+            return devicePath(roomId, deviceId) + "/controllable/" + key;
+        }
+
+        @Override
+        public String toString() {
+            return "ControllableChanged(" + deviceId + ", " + key + ", " + oldValue + " -> " + newValue + ")";
+        }
+    }
+}
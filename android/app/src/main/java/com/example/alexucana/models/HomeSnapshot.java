@@ -0,0 +1,172 @@
+/**
+ * HomeSnapshot: Immutable, typed state of the whole home.
+ *
+ * A HomeSnapshot is built once per sync and never mutated. Its room list is precomputed and
+ * sorted by room ID, so reading rooms or devices is a lookup with no allocation. Every change
+ * produces a new snapshot that shares all untouched rooms with the previous one.
+ *
+ */
+package com.example.alexucana.models;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HomeSnapshot class represents an immutable state of the home.
+ */
+public final class HomeSnapshot {
+
+    public static final HomeSnapshot EMPTY = new HomeSnapshot(new Room[0]);
+
+    // Rooms sorted by ID; Firebase push IDs sort in creation order
+    public final List<Room> rooms;
+
+    // Structural hash of every room hash; use it only to reject quickly
+    public final long hash;
+
+    private final Room[] sortedRooms;
+    private final Map<String, Room> roomsById;
+
+    private HomeSnapshot(Room[] sortedRooms) {
+        this.sortedRooms = sortedRooms;
+        this.rooms = Collections.unmodifiableList(Arrays.asList(sortedRooms));
+        HashMap<String, Room> byId = new HashMap<>();
+        for (Room room : sortedRooms) {
+            byId.put(room.id, room);
+        }
+        this.roomsById = byId;
+        long h = 0;
+        for (Room room : sortedRooms) {
+            h = Device.mix(h, room.hash);
+        }
+        this.hash = h;
+    }
+
+    /**
+     * Create a snapshot from rooms, e.g. when restoring a persisted snapshot.
+     *
+     * @param rooms The rooms, in any order.
+     * @return The new HomeSnapshot.
+     */
+    public static HomeSnapshot of(List<Room> rooms) {
+        Room[] sorted = rooms.toArray(new Room[0]);
+        Arrays.sort(sorted, (a, b) -> a.id.compareTo(b.id));
+        return new HomeSnapshot(sorted);
+    }
+
+    /**
+     * Check whether the home has no rooms.
+     *
+     * @return True if there are no rooms.
+     */
+    public boolean isEmpty() {
+        return sortedRooms.length == 0;
+    }
+
+    /**
+     * Get a room by ID.
+     *
+     * @param roomId The ID of the room.
+     * @return The Room, or null if it does not exist.
+     */
+    public Room room(String roomId) {
+        if (roomId == null) return null;
+        return roomsById.get(roomId);
+    }
+
+    /**
+     * Copy this snapshot with a room added or replaced.
+     *
+     * @param room The room to put.
+     * @return The updated HomeSnapshot.
+     */
+    public HomeSnapshot withRoom(Room room) {
+        int index = indexOf(room.id);
+        Room[] next;
+        if (index >= 0) {
+            next = sortedRooms.clone();
+            next[index] = room;
+        } else {
+            int at = -index - 1;
+            next = new Room[sortedRooms.length + 1];
+            System.arraycopy(sortedRooms, 0, next, 0, at);
+            next[at] = room;
+            System.arraycopy(sortedRooms, at, next, at + 1, sortedRooms.length - at);
+        }
+        return new HomeSnapshot(next);
+    }
+
+    /**
+     * Copy this snapshot without a room.
+     *
+     * @param roomId The ID of the room to remove.
+     * @return The updated HomeSnapshot, or this snapshot if the room does not exist.
+     */
+    public HomeSnapshot withoutRoom(String roomId) {
+        int index = indexOf(roomId);
+        if (index < 0) return this;
+        Room[] next = new Room[sortedRooms.length - 1];
+        System.arraycopy(sortedRooms, 0, next, 0, index);
+        System.arraycopy(sortedRooms, index + 1, next, index, next.length - index);
+        return new HomeSnapshot(next);
+    }
+
+    /**
+     * Convert the home into the JSON shape used by the database.
+     *
+     * @return The home as a JSON object.
+     * @throws JSONException If there is an issue with JSON building.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Room room : sortedRooms) {
+            json.put(room.id, room.toJson());
+        }
+        return json;
+    }
+
+    /**
+     * Compare this snapshot with another by content, room by room.
+     * Different structural hashes reject at once; equal ones are confirmed room by room.
+     *
+     * @param o The object to compare with.
+     * @return True if both snapshots hold the same content.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HomeSnapshot)) return false;
+        HomeSnapshot other = (HomeSnapshot) o;
+        return hash == other.hash && Arrays.equals(sortedRooms, other.sortedRooms);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Binary search a room by ID.
+     *
+     * @param roomId The ID of the room.
+     * @return The index, or (-(insertion point) - 1) if it does not exist.
+     */
+    private int indexOf(String roomId) {
+        int low = 0;
+        int high = sortedRooms.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = sortedRooms[mid].id.compareTo(roomId);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * LoadState: Immutable load status of one part of the home (the room headers, or one room's devices).
+ *
+ * While a part is revalidated the cached data stays on screen: such a load is marked stale, and
+ * only a load with nothing to show yet should put up a spinner.
+ *
+ */
+package com.example.alexucana.models;
+
+/**
+ * The LoadState class describes whether the data of a part of the home is loading, loaded or failed.
+ */
+public final class LoadState {
+
+    /**
+     * The status of a load.
+     */
+    public enum Status {
+        IDLE, LOADING, LOADED, ERROR
+    }
+
+    public static final LoadState IDLE = new LoadState(Status.IDLE, false, null);
+    public static final LoadState LOADED = new LoadState(Status.LOADED, false, null);
+
+    public final Status status;
+
+    // True while cached data is shown and the database is still being asked for the current data
+    public final boolean stale;
+
+    // Why the load failed, or null
+    public final String error;
+
+    private LoadState(Status status, boolean stale, String error) {
+        this.status = status;
+        this.stale = stale;
+        this.error = error;
+    }
+
+    /**
+     * Create the state of a load in flight.
+     *
+     * @param stale Whether cached data is shown meanwhile.
+     * @return The LoadState.
+     */
+    public static LoadState loading(boolean stale) {
+        return new LoadState(Status.LOADING, stale, null);
+    }
+
+    /**
+     * Create the state of a failed load.
+     *
+     * @param error Why the load failed.
+     * @param stale Whether cached data is still shown.
+     * @return The LoadState.
+     */
+    public static LoadState failed(String error, boolean stale) {
+        return new LoadState(Status.ERROR, stale, error);
+    }
+
+    /**
+     * Check whether a loading indicator should replace the content.
+     *
+     * @return True if a load is in flight and there is nothing cached to show.
+     */
+    public boolean isBlocking() {
+        return status == Status.LOADING && !stale;
+    }
+
+    @Override
+    public String toString() {
+        return status + (stale ? " (stale)" : "") + (error == null ? "" : ": " + error);
+    }
+}
@@ -1,7 +1,241 @@
+/**
+ * Room: Immutable view of one room inside a HomeSnapshot.
+ *
+ * A Room holds its devices as a precomputed list sorted by device ID. Changing one device builds
+ * a new Room that shares every other Device with the previous one.
+ *
+ */
 package com.example.alexucana.models;
 
-public class Room {
-    public String id;
-    public String name;
-    public String devices_count;
-}
\ No newline at end of file
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Room class represents an immutable room entry of the home state.
+ */
+public final class Room {
+
+    private static final Device[] NO_DEVICES = new Device[0];
+
+    public final String id;
+    public final String name;
+    public final String devices_count;
+
+    // Number of devices; comes from the room header when the devices themselves are not synced
+    public final int deviceCount;
+
+    // Structural hash of the header and every device hash; use it only to reject quickly
+    public final long hash;
+
+    // Devices sorted by ID; Firebase push IDs sort in creation order
+    public final List<Device> devices;
+
+    private final Device[] sortedDevices;
+    private final Map<String, Device> devicesById;
+
+    // UTF-8 name of the room in the assistant's prompt, built on first use
+    private volatile byte[] promptName;
+
+    private Room(String id, String name, Device[] sortedDevices, int deviceCount) {
+        this.id = id;
+        this.name = name;
+        this.sortedDevices = sortedDevices;
+        this.deviceCount = deviceCount;
+        this.devices_count = String.valueOf(deviceCount);
+        this.devices = Collections.unmodifiableList(Arrays.asList(sortedDevices));
+        HashMap<String, Device> byId = new HashMap<>();
+        for (Device device : sortedDevices) {
+            byId.put(device.id, device);
+        }
+        this.devicesById = byId;
+        long h = Device.mix(id.hashCode(), name.hashCode());
+        h = Device.mix(h, deviceCount);
+        for (Device device : sortedDevices) {
+            h = Device.mix(h, device.hash);
+        }
+        this.hash = h;
+    }
+
+    /**
+     * Create a room from its header only, without devices.
+     *
+     * @param id          The ID of the room.
+     * @param name        The room name, or null if it is missing.
+     * @param deviceCount The number of devices reported by the header.
+     * @return The new Room.
+     */
+    public static Room header(String id, String name, int deviceCount) {
+        return new Room(id, name == null ? "Unnamed room" : name, NO_DEVICES, deviceCount);
+    }
+
+    /**
+     * Create a room with its devices, e.g. when restoring a persisted snapshot.
+     *
+     * @param id      The ID of the room.
+     * @param name    The room name, or null if it is missing.
+     * @param devices The devices, in any order.
+     * @return The new Room.
+     */
+    public static Room of(String id, String name, List<Device> devices) {
+        Device[] sorted = devices.toArray(new Device[0]);
+        Arrays.sort(sorted, (a, b) -> a.id.compareTo(b.id));
+        return new Room(id, name == null ? "Unnamed room" : name, sorted, sorted.length);
+    }
+
+    /**
+     * Get a device of this room.
+     *
+     * @param deviceId The ID of the device.
+     * @return The Device, or null if it does not exist.
+     */
+    public Device device(String deviceId) {
+        return devicesById.get(deviceId);
+    }
+
+    /**
+     * Copy this room with another header, keeping the devices already known.
+     *
+     * @param newName        The new room name, or null if it is missing.
+     * @param newDeviceCount The number of devices reported by the header.
+     * @return The updated Room, or this room if the header did not change.
+     */
+    public Room withHeader(String newName, int newDeviceCount) {
+        String resolved = newName == null ? "Unnamed room" : newName;
+        if (resolved.equals(name) && newDeviceCount == deviceCount) return this;
+        return new Room(id, resolved, sortedDevices, newDeviceCount);
+    }
+
+    /**
+     * Copy this room with a device added or replaced.
+     *
+     * @param device The device to put.
+     * @return The updated Room, or this room if an equal device is already in it.
+     */
+    public Room withDevice(Device device) {
+        int index = indexOf(device.id);
+        // Re-delivered unchanged devices (e.g. after a resume) leave the room as it is
+        if (index >= 0 && sortedDevices[index].equals(device)) return this;
+        Device[] next;
+        if (index >= 0) {
+            next = sortedDevices.clone();
+            next[index] = device;
+        } else {
+            int at = -index - 1;
+            next = new Device[sortedDevices.length + 1];
+            System.arraycopy(sortedDevices, 0, next, 0, at);
+            next[at] = device;
+            System.arraycopy(sortedDevices, at, next, at + 1, sortedDevices.length - at);
+        }
+        return new Room(id, name, next, countAfter(next));
+    }
+
+    /**
+     * Copy this room without a device.
+     *
+     * @param deviceId The ID of the device to remove.
+     * @return The updated Room, or this room if the device does not exist.
+     */
+    public Room withoutDevice(String deviceId) {
+        int index = indexOf(deviceId);
+        if (index < 0) return this;
+        Device[] next = new Device[sortedDevices.length - 1];
+        System.arraycopy(sortedDevices, 0, next, 0, index);
+        System.arraycopy(sortedDevices, index + 1, next, index, next.length - index);
+        return new Room(id, name, next, countAfter(next));
+    }
+
+    /**
+     * Device count of a copy of this room holding other devices. A room holding fewer devices
+     * than its header reports (e.g. an evicted room that is loading again) keeps the header's
+     * count, so the list does not count up 1, 2, 3 while the devices arrive.
+     *
+     * @param next The devices of the copy.
+     * @return The device count of the copy.
+     */
+    private int countAfter(Device[] next) {
+        if (sortedDevices.length == deviceCount) return next.length;
+        return Math.max(deviceCount, next.length);
+    }
+
+    /**
+     * Get the name of this room as written in the assistant's prompt.
+     *
+     * @return The UTF-8 bytes of the name; must not be modified.
+     */
+    public byte[] promptName() {
+        byte[] bytes = promptName;
+        if (bytes == null) {
+            bytes = Device.promptText(name).getBytes(StandardCharsets.UTF_8);
+            promptName = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Convert this room into the JSON shape used by the database.
+     *
+     * @return The room as a JSON object.
+     * @throws JSONException If there is an issue with JSON building.
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("room_name", name);
+        if (sortedDevices.length == 0) return json;
+        JSONObject devicesMap = new JSONObject();
+        for (Device device : sortedDevices) {
+            devicesMap.put(device.id, device.toJson());
+        }
+        json.put("devices_map", devicesMap);
+        return json;
+    }
+
+    /**
+     * Compare this room with another by content: ID, header and every device.
+     * Different structural hashes reject at once; equal ones are confirmed device by device.
+     *
+     * @param o The object to compare with.
+     * @return True if both rooms hold the same content.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Room)) return false;
+        Room other = (Room) o;
+        return hash == other.hash
+                && id.equals(other.id)
+                && name.equals(other.name)
+                && deviceCount == other.deviceCount
+                && Arrays.equals(sortedDevices, other.sortedDevices);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Binary search a device by ID.
+     *
+     * @param deviceId The ID of the device.
+     * @return The index, or (-(insertion point) - 1) if it does not exist.
+     */
+    private int indexOf(String deviceId) {
+        int low = 0;
+        int high = sortedDevices.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = sortedDevices[mid].id.compareTo(deviceId);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+}
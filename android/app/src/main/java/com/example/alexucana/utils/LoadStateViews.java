@@ -0,0 +1,53 @@
+/**
+ * LoadStateViews: Shows a LoadState with a progress bar and a status line over a list.
+ *
+ * Cached content always wins: the progress bar only appears while there is nothing to show, and
+ * an error over cached content is a short hint rather than a replacement for the list.
+ *
+ */
+package com.example.alexucana.utils;
+
+import android.view.View;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import com.example.alexucana.models.LoadState;
+
+/**
+ * The LoadStateViews class binds a LoadState to a progress bar and a status text.
+ */
+public class LoadStateViews {
+
+    private final ProgressBar progress;
+    private final TextView status;
+
+    /**
+     * Constructor for the LoadStateViews class.
+     *
+     * @param progress The progress bar shown while the list is loading and empty.
+     * @param status   The status text shown when the load failed; tapping it calls onRetry.
+     * @param onRetry  Called when the user asks to retry.
+     */
+    public LoadStateViews(ProgressBar progress, TextView status, Runnable onRetry) {
+        this.progress = progress;
+        this.status = status;
+        status.setOnClickListener(v -> onRetry.run());
+    }
+
+    /**
+     * Show a load state.
+     *
+     * @param state The load state.
+     * @param empty Whether the list has nothing to show.
+     */
+    public void show(LoadState state, boolean empty) {
+        progress.setVisibility(empty && state.isBlocking() ? View.VISIBLE : View.GONE);
+        if (state.status == LoadState.Status.ERROR) {
+            status.setText((empty ? "Could not load: " : "Showing saved data, could not refresh: ")
+                    + state.error + "\nTap to retry");
+            status.setVisibility(View.VISIBLE);
+        } else {
+            status.setVisibility(View.GONE);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.alexucana.controllers;
+
+import com.example.alexucana.models.Device;
+import com.example.alexucana.models.HomeSnapshot;
+import com.example.alexucana.models.Room;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ChatRequestBody.
+ */
+public class ChatRequestBodyTest {
+
+    private static final byte[] HEAD = "{\"messages\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TAIL = "],\"stream\":true}".getBytes(StandardCharsets.UTF_8);
+
+    private static String write(ChatRequestBody body) throws IOException {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return buffer.readUtf8();
+    }
+
+    @Test
+    public void escapesMessageContent() throws IOException {
+        List<ChatRequestBody.Message> messages = Arrays.asList(
+                new ChatRequestBody.Message("user", "Bật \"đèn\" \\ ngay\n\tđi\r\u0001", null),
+                new ChatRequestBody.Message("assistant", "Đã rõ!", null));
+        ChatRequestBody body = new ChatRequestBody(HEAD, messages, TAIL, new PromptEncoding(), false);
+        assertEquals("{\"messages\":["
+                + "{\"role\":\"user\",\"content\":\"Bật \\\"đèn\\\" \\\\ ngay\\n\\tđi\\r\\u0001\"},"
+                + "{\"role\":\"assistant\",\"content\":\"Đã rõ!\"}"
+                + "],\"stream\":true}", write(body));
+        assertFalse(body.isGzipped());
+    }
+
+    @Test
+    public void writesStateRowsEscaped() throws IOException {
+        Map<String, Object> controllable = new HashMap<>();
+        controllable.put("rgb_led_hex_color", "0xff0000");
+        Map<String, Object> props = new HashMap<>();
+        props.put("device_name", "Đèn \"trần\"");
+        props.put("controllable", controllable);
+        Device lamp = Device.fromMap("devA", props);
+        HomeSnapshot state = HomeSnapshot.of(Arrays.asList(
+                Room.of("roomA", "Phòng\\khách", Collections.singletonList(lamp)),
+                Room.header("roomB", "Garage", 2)));
+
+        PromptEncoding encoding = new PromptEncoding();
+        encoding.remember(state);
+        List<ChatRequestBody.Message> messages = Collections.singletonList(
+                new ChatRequestBody.Message("user", "Hi\n Current data:\n", state));
+        String json = write(new ChatRequestBody(HEAD, messages, TAIL, encoding, false));
+        assertEquals("{\"messages\":[{\"role\":\"user\",\"content\":\"Hi\\n Current data:\\n"
+                + "r1 Phòng\\\\khách\\n"
+                + "d1|Đèn \\\"trần\\\"|-|rgb_led_hex_color=0xff0000\\n"
+                + "r2 Garage (+2 not shown)\\n"
+                + "\"}],\"stream\":true}", json);
+    }
+
+    @Test
+    public void gzipOutputInflatesToThePlainBody() throws IOException {
+        List<ChatRequestBody.Message> messages = Collections.singletonList(
+                new ChatRequestBody.Message("user", "Nhiệt độ phòng khách là bao nhiêu?", null));
+        ChatRequestBody plain = new ChatRequestBody(HEAD, messages, TAIL, new PromptEncoding(), false);
+        ChatRequestBody gzipped = new ChatRequestBody(HEAD, messages, TAIL, new PromptEncoding(), true);
+        assertTrue(gzipped.isGzipped());
+
+        Buffer buffer = new Buffer();
+        gzipped.writeTo(buffer);
+        byte[] compressed = buffer.readByteArray();
+        assertEquals(0x1f, compressed[0] & 0xFF);
+        assertEquals(0x8b, compressed[1] & 0xFF);
+
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] chunk = new byte[256];
+            int n;
+            while ((n = in.read(chunk)) > 0) inflated.write(chunk, 0, n);
+        }
+        assertEquals(write(plain), inflated.toString("UTF-8"));
+
+        // A retry writes the same body again
+        Buffer again = new Buffer();
+        gzipped.writeTo(again);
+        assertArrayEquals(compressed, again.readByteArray());
+    }
+}
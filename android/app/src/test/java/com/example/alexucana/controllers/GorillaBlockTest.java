@@ -0,0 +1,90 @@
+package com.example.alexucana.controllers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the GorillaBlock codec.
+ */
+public class GorillaBlockTest {
+
+    private static void assertRoundTrip(GorillaBlock block, long[] times, float[] values, int count) {
+        long[] outTimes = new long[count];
+        float[] outValues = new float[count];
+        int decoded = GorillaBlock.decode(block.bytes(), 0, block.count(), block.firstSec(), outTimes, outValues, 0);
+        assertEquals(count, decoded);
+        for (int i = 0; i < count; i++) {
+            assertEquals("time " + i, times[i] * 1000, outTimes[i]);
+            assertEquals("value " + i, Float.floatToRawIntBits(values[i]), Float.floatToRawIntBits(outValues[i]));
+        }
+    }
+
+    @Test
+    public void steadyCadence_costsAboutTwoBitsPerSample() {
+        GorillaBlock block = new GorillaBlock();
+        long[] times = new long[500];
+        float[] values = new float[500];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = 1_700_000_000L + i * 60;
+            values[i] = 21.5f;
+            block.append(times[i], values[i]);
+        }
+        assertRoundTrip(block, times, values, times.length);
+        assertTrue(block.byteLength() < 140);
+    }
+
+    @Test
+    public void randomSamples_roundTrip() {
+        Random random = new Random(42);
+        for (int run = 0; run < 200; run++) {
+            GorillaBlock block = new GorillaBlock();
+            long[] times = new long[GorillaBlock.MAX_SAMPLES];
+            float[] values = new float[GorillaBlock.MAX_SAMPLES];
+            long sec = 1_700_000_000L + random.nextInt(1_000_000);
+            int count = 0;
+            while (!block.isFull()) {
+                // Mix steady, jittered and long gaps, and small, large and special readings
+                int gapKind = random.nextInt(4);
+                sec += gapKind == 0 ? 0 : gapKind == 1 ? 60 : gapKind == 2 ? random.nextInt(600) : random.nextInt(1 << 20);
+                int valueKind = random.nextInt(5);
+                float value = valueKind == 0 && count > 0 ? values[count - 1]
+                        : valueKind == 1 ? 20 + random.nextInt(100) / 10f
+                        : valueKind == 2 ? random.nextFloat() * 1e6f - 5e5f
+                        : valueKind == 3 ? Float.intBitsToFloat(random.nextInt())
+                        : -0f;
+                times[count] = sec;
+                values[count] = value;
+                block.append(sec, value);
+                count++;
+            }
+            assertTrue(block.byteLength() <= GorillaBlock.MAX_BYTES + 16);
+            assertRoundTrip(block, times, values, count);
+        }
+    }
+
+    @Test
+    public void reset_startsAnEmptyBlock() {
+        GorillaBlock block = new GorillaBlock();
+        block.append(100, 1f);
+        block.append(160, 2f);
+        block.reset();
+        assertTrue(block.isEmpty());
+        block.append(500, 3f);
+        block.append(530, 3f);
+        assertRoundTrip(block, new long[]{500, 530}, new float[]{3f, 3f}, 2);
+    }
+
+    @Test
+    public void decode_stopsAtOutputLength() {
+        GorillaBlock block = new GorillaBlock();
+        for (int i = 0; i < 10; i++) block.append(i * 10, i);
+        long[] outTimes = new long[4];
+        float[] outValues = new float[4];
+        assertEquals(3, GorillaBlock.decode(block.bytes(), 0, block.count(), block.firstSec(), outTimes, outValues, 1));
+        assertEquals(20_000, outTimes[3]);
+        assertEquals(2f, outValues[3], 0);
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.alexucana.controllers;
+
+import com.example.alexucana.models.Device;
+import com.example.alexucana.models.HomeSnapshot;
+import com.example.alexucana.models.Room;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for PromptEncoding.
+ */
+public class PromptEncodingTest {
+
+    private static Device device(String id, String name, Object power) {
+        Map<String, Object> controllable = new HashMap<>();
+        controllable.put("power", power);
+        Map<String, Object> props = new HashMap<>();
+        props.put("device_name", name);
+        props.put("controllable", controllable);
+        return Device.fromMap(id, props);
+    }
+
+    private static HomeSnapshot home(Room... rooms) {
+        return HomeSnapshot.of(Arrays.asList(rooms));
+    }
+
+    @Test
+    public void aliases_resolveOnlyToTheirKind() {
+        PromptEncoding encoding = new PromptEncoding();
+        encoding.remember(home(Room.of("roomA", "Kitchen", Arrays.asList(device("devA", "Lamp", true)))));
+
+        assertEquals("roomA", encoding.roomId("r1"));
+        assertEquals("devA", encoding.deviceId("d1"));
+        assertEquals("roomA", encoding.roomIdOfDevice("d1"));
+        // A device alias is not a room, and a room alias is not a device
+        assertNull(encoding.roomId("d1"));
+        assertNull(encoding.deviceId("r1"));
+        // Real IDs pass through; aliases never assigned do not
+        assertEquals("roomA", encoding.roomId("roomA"));
+        assertEquals("devA", encoding.deviceId("devA"));
+        assertNull(encoding.roomId("r9"));
+        assertNull(encoding.deviceId("d42"));
+    }
+
+    @Test
+    public void encodeDelta_describesChangesAndRemembersThem() {
+        PromptEncoding encoding = new PromptEncoding();
+        HomeSnapshot before = home(Room.of("roomA", "Kitchen", Arrays.asList(device("devA", "Lamp", true))));
+        encoding.remember(before);
+
+        HomeSnapshot after = home(Room.of("roomA", "Kitchen", Arrays.asList(device("devA", "Lamp", false))));
+        assertEquals("d1.controllable.power true→false\n", encoding.encodeDelta(after, after));
+        assertEquals("", encoding.encodeDelta(after, after));
+    }
+
+    @Test
+    public void encodeDelta_reportsChangesWithCollidingHashes() {
+        PromptEncoding encoding = new PromptEncoding();
+        HomeSnapshot before = home(Room.of("roomA", "Kitchen", Arrays.asList(device("devA", "Aa", true))));
+        encoding.remember(before);
+
+        // "Aa" and "BB" share String.hashCode
+        HomeSnapshot after = home(Room.of("roomA", "Kitchen", Arrays.asList(device("devA", "BB", true))));
+        assertEquals("d1.name Aa→BB\n", encoding.encodeDelta(after, after));
+    }
+
+    @Test
+    public void encodeDelta_needsAFullStateAfterForgetting() {
+        PromptEncoding encoding = new PromptEncoding();
+        HomeSnapshot snapshot = home(Room.of("roomA", "Kitchen", Arrays.asList(device("devA", "Lamp", true))));
+        assertNull(encoding.encodeDelta(snapshot, snapshot));
+        encoding.remember(snapshot);
+        encoding.forgetKnownState();
+        assertNull(encoding.encodeDelta(snapshot, snapshot));
+    }
+
+    @Test
+    public void encodeDelta_comparesUtf8Bytes() {
+        PromptEncoding encoding = new PromptEncoding();
+        Device other = device("devB", "bbbbbb", true);
+        encoding.remember(home(Room.of("roomA", "K", Arrays.asList(device("devA", "a", true), other))));
+
+        // 24 chars but 39 UTF-8 bytes of changes, against 31 bytes of rows for the selection
+        HomeSnapshot current = home(Room.of("roomA", "K", Arrays.asList(device("devA", "ĐĐĐĐĐĐĐĐĐĐĐĐĐ", true), other)));
+        HomeSnapshot selection = home(Room.of("roomA", "K", Arrays.asList(other)));
+        assertNull(encoding.encodeDelta(current, selection));
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.alexucana.controllers;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for SensorArchive rollups and samples across restarts.
+ */
+public class SensorArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Start of the current hour, so the segments are not expired on open
+    private final long hourMs = System.currentTimeMillis() / 3_600_000 * 3_600_000;
+
+    @Test
+    public void samples_roundTripThroughClose() throws Exception {
+        File dir = folder.newFolder();
+        SensorArchive archive = new SensorArchive(dir);
+        for (int i = 0; i < 30; i++) archive.record("d1", "temp", hourMs + i * 10_000, 20 + i * 0.5f);
+        archive.close();
+
+        archive = new SensorArchive(dir);
+        long[] times = new long[64];
+        float[] values = new float[64];
+        assertEquals(30, archive.samples("d1", "temp", hourMs, hourMs + 3_600_000, times, values));
+        assertEquals(hourMs + 290_000, times[29]);
+        assertEquals(34.5f, values[29], 0);
+        archive.close();
+    }
+
+    @Test
+    public void openRollups_surviveRestartWithoutDuplicates() throws Exception {
+        File dir = folder.newFolder();
+        SensorArchive archive = new SensorArchive(dir);
+        archive.record("d1", "temp", hourMs + 1_000, 20f);
+        archive.record("d1", "temp", hourMs + 2_000, 40f);
+        archive.close();
+
+        // Same minute and hour after the restart
+        archive = new SensorArchive(dir);
+        SensorArchive.Stats before = archive.stats("d1", "temp", hourMs, hourMs);
+        assertEquals(2, before.count);
+        archive.record("d1", "temp", hourMs + 3_000, 30f);
+        archive.close();
+
+        archive = new SensorArchive(dir);
+        SensorArchive.Stats stats = archive.stats("d1", "temp", hourMs, hourMs);
+        assertEquals(3, stats.count);
+        assertEquals(20f, stats.min, 0);
+        assertEquals(40f, stats.max, 0);
+        assertEquals(30f, stats.mean(), 1e-4);
+
+        long[] times = new long[8];
+        float[] mins = new float[8];
+        float[] maxs = new float[8];
+        float[] means = new float[8];
+        assertEquals(1, archive.hourly("d1", "temp", hourMs, hourMs, times, mins, maxs, means));
+        assertEquals(30f, means[0], 1e-4);
+        assertEquals(1, archive.minutely("d1", "temp", hourMs, hourMs + 59_000, times, mins, maxs, means));
+        assertEquals(hourMs, times[0]);
+        assertEquals(30f, means[0], 1e-4);
+        archive.close();
+    }
+
+    @Test
+    public void flushedRollup_isNotCountedTwiceWhileOpen() throws Exception {
+        SensorArchive archive = new SensorArchive(folder.newFolder());
+        archive.record("d1", "temp", hourMs + 1_000, 10f);
+        archive.flush();
+        archive.record("d1", "temp", hourMs + 2_000, 20f);
+        archive.flush();
+        assertEquals(2, archive.stats("d1", "temp", hourMs, hourMs).count);
+
+        // A later minute closes the first one; still one record per minute and hour
+        archive.record("d1", "temp", hourMs + 61_000, 30f);
+        long[] times = new long[8];
+        float[] mins = new float[8];
+        float[] maxs = new float[8];
+        float[] means = new float[8];
+        assertEquals(2, archive.minutely("d1", "temp", hourMs, hourMs + 120_000, times, mins, maxs, means));
+        assertEquals(15f, means[0], 1e-4);
+        assertEquals(30f, means[1], 1e-4);
+        assertEquals(1, archive.hourly("d1", "temp", hourMs, hourMs, times, mins, maxs, means));
+        assertEquals(20f, means[0], 1e-4);
+        archive.close();
+    }
+}
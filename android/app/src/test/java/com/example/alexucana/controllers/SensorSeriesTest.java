@@ -0,0 +1,50 @@
+package com.example.alexucana.controllers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for SensorSeries.
+ */
+public class SensorSeriesTest {
+
+    @Test
+    public void mergedSlot_keepsMeanAndExtremes() {
+        SensorSeries series = new SensorSeries(4, 60_000);
+        series.append(0, 20f);
+        series.append(10_000, 35f);
+        series.append(20_000, 20f);
+        assertEquals(1, series.size());
+        assertEquals(25f, series.latest(), 1e-4);
+        assertEquals(35f, series.max(0, 60_000), 0);
+        assertEquals(20f, series.min(0, 60_000), 0);
+        assertEquals(25f, series.mean(0, 60_000), 1e-4);
+    }
+
+    @Test
+    public void minMax_spanSlotsInWindow() {
+        SensorSeries series = new SensorSeries(4, 60_000);
+        series.append(0, 20f);
+        series.append(60_000, 18f);
+        series.append(90_000, 31f);
+        series.append(120_000, 22f);
+        assertEquals(3, series.size());
+        assertEquals(31f, series.max(60_000, 60_000), 0);
+        assertEquals(18f, series.min(60_000, 120_000), 0);
+        assertEquals(22f, series.max(120_000, 180_000), 0);
+        assertTrue(Float.isNaN(series.min(200_000, 300_000)));
+    }
+
+    @Test
+    public void overwrittenSlot_resetsExtremes() {
+        SensorSeries series = new SensorSeries(2, 60_000);
+        series.append(0, 50f);
+        series.append(60_000, 20f);
+        series.append(120_000, 21f);
+        series.append(130_000, 19f);
+        assertEquals(2, series.size());
+        assertEquals(21f, series.max(0, 200_000), 0);
+        assertEquals(19f, series.min(0, 200_000), 0);
+    }
+}
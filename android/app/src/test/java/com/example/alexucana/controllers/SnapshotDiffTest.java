@@ -0,0 +1,120 @@
+package com.example.alexucana.controllers;
+
+import com.example.alexucana.models.Device;
+import com.example.alexucana.models.HomeChange;
+import com.example.alexucana.models.HomeSnapshot;
+import com.example.alexucana.models.Room;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for SnapshotDiff.
+ */
+public class SnapshotDiffTest {
+
+    private static Device device(String id, String name, double temperature, String power) {
+        Map<String, Object> sensors = new HashMap<>();
+        sensors.put("temperature", temperature);
+        Map<String, Object> controllable = new HashMap<>();
+        controllable.put("power", power);
+        Map<String, Object> props = new HashMap<>();
+        props.put("device_name", name);
+        props.put("sensors", sensors);
+        props.put("controllable", controllable);
+        return Device.fromMap(id, props);
+    }
+
+    private static HomeSnapshot home(Room... rooms) {
+        return HomeSnapshot.of(Arrays.asList(rooms));
+    }
+
+    private static Room room(String id, String name, Device... devices) {
+        return Room.of(id, name, Arrays.asList(devices));
+    }
+
+    @Test
+    public void sameSnapshot_hasNoChanges() {
+        HomeSnapshot snapshot = home(room("r1", "Kitchen", device("d1", "Lamp", 20, "on")));
+        assertTrue(SnapshotDiff.diff(snapshot, snapshot).isEmpty());
+        HomeSnapshot copy = home(room("r1", "Kitchen", device("d1", "Lamp", 20, "on")));
+        assertTrue(SnapshotDiff.diff(snapshot, copy).isEmpty());
+    }
+
+    @Test
+    public void roomAddedAndRemoved() {
+        Room kitchen = room("r1", "Kitchen");
+        Room hall = room("r2", "Hall");
+        List<HomeChange> changes = SnapshotDiff.diff(home(kitchen), home(hall));
+        assertEquals(2, changes.size());
+        assertTrue(changes.get(0) instanceof HomeChange.RoomRemoved);
+        assertEquals("r1", changes.get(0).roomId);
+        assertTrue(changes.get(1) instanceof HomeChange.RoomAdded);
+        assertEquals("r2", changes.get(1).roomId);
+    }
+
+    @Test
+    public void deviceAddedAndRemoved() {
+        Device lamp = device("d1", "Lamp", 20, "on");
+        Device fan = device("d2", "Fan", 20, "off");
+        List<HomeChange> added = SnapshotDiff.diff(home(room("r1", "Kitchen", lamp)), home(room("r1", "Kitchen", lamp, fan)));
+        assertEquals(2, added.size());
+        assertTrue(added.get(0) instanceof HomeChange.DeviceCountChanged);
+        assertSame(fan, ((HomeChange.DeviceAdded) added.get(1)).device);
+
+        List<HomeChange> removed = SnapshotDiff.diff(home(room("r1", "Kitchen", lamp, fan)), home(room("r1", "Kitchen", lamp)));
+        assertEquals(2, removed.size());
+        assertSame(fan, ((HomeChange.DeviceRemoved) removed.get(1)).device);
+    }
+
+    @Test
+    public void renames() {
+        List<HomeChange> changes = SnapshotDiff.diff(
+                home(room("r1", "Kitchen", device("d1", "Lamp", 20, "on"))),
+                home(room("r1", "Dining", device("d1", "Light", 20, "on"))));
+        assertEquals(2, changes.size());
+        HomeChange.RoomRenamed room = (HomeChange.RoomRenamed) changes.get(0);
+        assertEquals("Kitchen", room.oldName);
+        assertEquals("Dining", room.newName);
+        HomeChange.DeviceRenamed device = (HomeChange.DeviceRenamed) changes.get(1);
+        assertEquals("d1", device.deviceId);
+        assertEquals("Lamp", device.oldName);
+        assertEquals("Light", device.newName);
+    }
+
+    @Test
+    public void valueChanges() {
+        List<HomeChange> changes = SnapshotDiff.diff(
+                home(room("r1", "Kitchen", device("d1", "Lamp", 20, "on"))),
+                home(room("r1", "Kitchen", device("d1", "Lamp", 21.5, "off"))));
+        assertEquals(2, changes.size());
+        HomeChange.SensorChanged sensor = (HomeChange.SensorChanged) changes.get(0);
+        assertEquals("temperature", sensor.key);
+        assertEquals(20, sensor.oldValue, 0);
+        assertEquals(21.5, sensor.newValue, 0);
+        HomeChange.ControllableChanged controllable = (HomeChange.ControllableChanged) changes.get(1);
+        assertEquals("power", controllable.key);
+        assertEquals("on", controllable.oldValue);
+        assertEquals("off", controllable.newValue);
+    }
+
+    @Test
+    public void hashCollision_stillProducesChanges() {
+        // "Aa" and "BB" share String.hashCode, so every level has equal structural hashes
+        HomeSnapshot before = home(room("r1", "Kitchen", device("d1", "Aa", 20, "Aa")));
+        HomeSnapshot after = home(room("r1", "Kitchen", device("d1", "BB", 20, "BB")));
+        assertEquals(before.hash, after.hash);
+
+        List<HomeChange> changes = SnapshotDiff.diff(before, after);
+        assertEquals(2, changes.size());
+        assertEquals("BB", ((HomeChange.DeviceRenamed) changes.get(0)).newName);
+        assertEquals("BB", ((HomeChange.ControllableChanged) changes.get(1)).newValue);
+        assertTrue(SnapshotDiff.diff(before, home(room("r1", "Kitchen", device("d1", "Aa", 20, "Aa")))).isEmpty());
+    }
+}
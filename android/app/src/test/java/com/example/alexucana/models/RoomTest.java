@@ -0,0 +1,69 @@
+package com.example.alexucana.models;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for Room and Device equality.
+ */
+public class RoomTest {
+
+    private static Device named(String id, String name) {
+        Map<String, Object> props = new HashMap<>();
+        props.put("device_name", name);
+        return Device.fromMap(id, props);
+    }
+
+    @Test
+    public void collidingNames_haveEqualHashes() {
+        // "Aa" and "BB" share String.hashCode, so their structural hashes collide
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertEquals(named("d1", "Aa").hash, named("d1", "BB").hash);
+    }
+
+    @Test
+    public void withDevice_keepsRoomForEqualDevice() {
+        Room room = Room.of("r1", "Kitchen", Collections.singletonList(named("d1", "Aa")));
+        assertSame(room, room.withDevice(named("d1", "Aa")));
+    }
+
+    @Test
+    public void withDevice_appliesRenameDespiteHashCollision() {
+        Room room = Room.of("r1", "Kitchen", Collections.singletonList(named("d1", "Aa")));
+        Room renamed = room.withDevice(named("d1", "BB"));
+        assertNotSame(room, renamed);
+        assertEquals("BB", renamed.device("d1").name);
+        assertNotEquals(room, renamed);
+    }
+
+    @Test
+    public void withDevice_keepsHeaderCountWhileLoading() {
+        Room room = Room.header("r1", "Kitchen", 3);
+        room = room.withDevice(named("d1", "Lamp"));
+        assertEquals(3, room.deviceCount);
+        room = room.withDevice(named("d2", "Fan"));
+        room = room.withDevice(named("d3", "Heater"));
+        assertEquals(3, room.deviceCount);
+        // Once every device is in, the count follows the devices again
+        assertEquals(4, room.withDevice(named("d4", "Kettle")).deviceCount);
+        assertEquals(2, room.withoutDevice("d1").deviceCount);
+    }
+
+    @Test
+    public void equals_comparesControllableValues() {
+        Map<String, Object> a = new HashMap<>();
+        a.put("power", "Aa");
+        Map<String, Object> b = new HashMap<>();
+        b.put("power", "BB");
+        Device before = named("d1", "Lamp").withControllable(a);
+        Device after = named("d1", "Lamp").withControllable(b);
+        assertEquals(before.hash, after.hash);
+        assertNotEquals(before, after);
+        assertEquals(before, named("d1", "Lamp").withControllable(a));
+    }
+}
@@ -1,7 +1,31 @@
+#include "stdio.h"
 #include "string.h"
 #include "ledc.h"
 #include "esp_log.h"
 #include "esp_system.h"
+#include "esp_http_client.h"
+#include "project_config.h"
+#include "global_variables.h"
+
+// Function: report the color this device applied, so the app can tell when its command converged
+static void report_applied_color(const char *hex_color)
+{
+    char reported_url[160];
+    snprintf(reported_url, sizeof(reported_url), "%s/%s.json", DB_REPORTED_URL, device_id);
+    char jsonString[64];
+    snprintf(jsonString, sizeof(jsonString), "{ \"rgb_led_hex_color\" : \"%s\" }", hex_color);
+    esp_http_client_config_t config = {
+        .url = reported_url,
+    };
+    esp_http_client_handle_t client = esp_http_client_init(&config);
+    esp_http_client_set_method(client, HTTP_METHOD_PATCH);
+    esp_http_client_set_header(client, "Content-Type", "application/json");
+    esp_http_client_set_post_field(client, jsonString, strlen(jsonString));
+    if (esp_http_client_perform(client) != ESP_OK)
+        ESP_LOGE("controllable_event_handler", "Failed to report applied color");
+    esp_http_client_cleanup(client);
+}
+
 // Function: read the chunk buffer from firebase and decide what to do with it
 void controllable_event_handler(const char *buffer)
 {
@@ -23,6 +47,7 @@ void controllable_event_handler(const char *buffer)
                 // TODO: Now local_cache contains the hex color string
                 ESP_LOGI("controllable_event_handler", "Received hex color: %s", local_cache);
                 ledc_set_color(hex_color_to_uint32(local_cache));
+                report_applied_color(local_cache);
             }
             else
             {
@@ -20,7 +20,7 @@ static const int ESPTOUCH_DONE_BIT = BIT1;
 static bool introduce_new_device()
 {
     char devices_map_url[151] = {0};
-    snprintf(devices_map_url, 151, "%s/%s/devices_map.json", DB_ROOT_URL, room_id);
+    snprintf(devices_map_url, 151, "%s/%s/devices_map.json", DB_ROOMS_URL, room_id);
     esp_http_client_config_t config = {
         .url = devices_map_url,
     };
@@ -76,6 +76,26 @@ static bool introduce_new_device()
     return true;
 }
 
+// Function: create this device's node under telemetry/ or reported/ while it is registered in its room,
+// so the database rules can deny every later write once the device is deleted (see README)
+static bool create_device_node(const char *branch_url)
+{
+    char url[182];
+    snprintf(url, sizeof(url), "%s/%s.json", branch_url, device_id);
+    char jsonString[64];
+    snprintf(jsonString, sizeof(jsonString), "{ \"room_id\" : \"%s\" }", (char *)room_id);
+    esp_http_client_config_t config = {
+        .url = url,
+    };
+    esp_http_client_handle_t client = esp_http_client_init(&config);
+    esp_http_client_set_method(client, HTTP_METHOD_PUT);
+    esp_http_client_set_header(client, "Content-Type", "application/json");
+    esp_http_client_set_post_field(client, jsonString, strlen(jsonString));
+    bool ok = esp_http_client_perform(client) == ESP_OK && esp_http_client_get_status_code(client) == 200;
+    esp_http_client_cleanup(client);
+    return ok;
+}
+
 // TASK: smartconfig
 static void smartconfig_task(void *parm)
 {
@@ -89,7 +109,7 @@ static void smartconfig_task(void *parm)
         if (uxBits & CONNECTED_BIT)
         {
             ESP_LOGI(TAG_INIT, "WiFi Connected to ap");
-            if (introduce_new_device() && write_nvs())
+            if (introduce_new_device() && create_device_node(DB_TELEMETRY_URL) && create_device_node(DB_REPORTED_URL) && write_nvs())
             {
                 ESP_LOGI(TAG_INIT, "init ok, restarting");
                 esp_restart();
@@ -19,7 +19,8 @@
 static void run_when_wifi_connected_task(void *parm)
 {
     char sensors_url[182];
-    snprintf(sensors_url, sizeof(sensors_url), "%s/%s/devices_map/%s/sensors.json", DB_ROOT_URL, room_id, device_id);
+    // Readings go to their own branch, so listeners on the room configuration never receive them
+    snprintf(sensors_url, sizeof(sensors_url), "%s/%s.json", DB_TELEMETRY_URL, device_id);
     while (1)
     {
         vTaskDelay(2000); // update data to database every 10 seconds
@@ -42,7 +43,7 @@ static void run_when_wifi_connected_task(void *parm)
         esp_http_client_perform(client);
         if (esp_http_client_get_status_code(client) == 401)
         {
-            // permission denied -> user has deleted this device
+            // permission denied -> user has deleted this device, and with it telemetry/<device_id>
             interrupt_hard_reset();
         }
         else
@@ -57,7 +58,7 @@ static void run_when_wifi_connected_task(void *parm)
 static void rtdb_listening_task(void *parm)
 {
     char controllable_url[182];
-    snprintf(controllable_url, sizeof(controllable_url), "%s/%s/devices_map/%s/controllable.json", DB_ROOT_URL, room_id, device_id);
+    snprintf(controllable_url, sizeof(controllable_url), "%s/%s/devices_map/%s/controllable.json", DB_ROOMS_URL, room_id, device_id);
     ESP_LOGI(TAG_WORKER, "Start listening to rtdb, url = %s", controllable_url);
     while (1)
     {
@@ -1,6 +1,12 @@
 
 /////// Root db url /////
-#define DB_ROOT_URL "https://android-39f37-default-rtdb.asia-southeast1.firebasedatabase.app/alexu_v2/"
-#define DATA_MODEL "{ \"controllable\" : { \"rgb_led_hex_color\" : \"0x000000\" } , \"device_name\" : \"esp32 smarthome controller\" , \"sensors\" : { \"humidity(%)\" : \"?\" , \"temperature(°C)\" : \"?\" } }"
+#define DB_ROOT_URL "https://android-39f37-default-rtdb.asia-southeast1.firebasedatabase.app/alexu_v3/"
+// Layout v3: configuration under rooms/, sensor readings under telemetry/<device_id>
+#define DB_ROOMS_URL DB_ROOT_URL "rooms"
+#define DB_TELEMETRY_URL DB_ROOT_URL "telemetry"
+// Both nodes of a device are created at registration and hold its room_id; later writes need them to exist
+// What the device applied, reported back so the app can measure command convergence
+#define DB_REPORTED_URL DB_ROOT_URL "reported"
+#define DATA_MODEL "{ \"controllable\" : { \"rgb_led_hex_color\" : \"0x000000\" } , \"device_name\" : \"esp32 smarthome controller\" }"
 
 